@@ -0,0 +1,213 @@
+package me.bechberger.jfr;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copies a single JFR chunk without the events of some event types, without decoding any event.
+ * An additional {@link EventFilter} can remove single events, e.g. by reading their start time with a {@link MappedChunk}.
+ * <p>
+ * The JDK parser then never sees the removed events, so it neither creates objects for them
+ * nor resolves their constants. Metadata and constant pool events are always kept.
+ * Removing events moves the events behind them, so the filter adjusts the chunk size and the offsets
+ * in the chunk header and the relative links between the constant pool events.
+ */
+final class ChunkFilter {
+
+    /**
+     * Size of a LEB128 encoded negative long
+     */
+    private static final int DELTA_SIZE = 9;
+
+    private ChunkFilter() {
+    }
+
+    /**
+     * The link from a constant pool event to the previous one, it has to be rewritten
+     *
+     * @param position          Position of the delta value in the input chunk
+     * @param eventPosition     Position of the constant pool event in the input chunk
+     * @param previousPosition  Position of the previous constant pool event in the input chunk
+     */
+    private record Delta(int position, long eventPosition, long previousPosition) {
+    }
+
+    /**
+     * Decides about the removal of single events
+     */
+    @FunctionalInterface
+    interface EventFilter {
+        /**
+         * @param typeId   The type id of the event
+         * @param position The position of the event in the chunk
+         * @return true if the event should be removed
+         */
+        boolean removes(long typeId, int position);
+    }
+
+    /**
+     * Write the chunk without the events of the given types.
+     *
+     * @param chunk        Buffer containing the whole chunk, starting with its header at position 0
+     * @param header       The header of the chunk
+     * @param removedTypes Names of the event types to remove
+     * @param out          Channel to write the filtered chunk to
+     * @return The number of removed events
+     * @throws IOException if the chunk is malformed or uses an unsupported encoding, nothing is written then
+     */
+    static long filter(ByteBuffer chunk, ChunkHeader header, Set<String> removedTypes, WritableByteChannel out) throws IOException {
+        return filter(chunk, header, removedTypes, null, out);
+    }
+
+    /**
+     * Write the chunk without the events of the given types and the events that the event filter removes.
+     *
+     * @param chunk        Buffer containing the whole chunk, starting with its header at position 0
+     * @param header       The header of the chunk
+     * @param removedTypes Names of the event types to remove
+     * @param eventFilter  Removes single events, it is not called for metadata and constant pool events, null to keep them
+     * @param out          Channel to write the filtered chunk to
+     * @return The number of removed events
+     * @throws IOException if the chunk is malformed or uses an unsupported encoding, nothing is written then
+     */
+    static long filter(ByteBuffer chunk, ChunkHeader header, Set<String> removedTypes, EventFilter eventFilter,
+                       WritableByteChannel out) throws IOException {
+        chunk = chunk.slice().order(ByteOrder.BIG_ENDIAN);
+        Set<Long> removedIds = new HashSet<>();
+        for (Map.Entry<Long, String> entry : new ChunkScanner(chunk, header).readEventTypes().entrySet()) {
+            if (removedTypes.contains(entry.getValue())) {
+                removedIds.add(entry.getKey());
+            }
+        }
+        if (removedIds.isEmpty() && eventFilter == null) {
+            writeFully(out, chunk.duplicate().limit((int) header.size()));
+            return 0;
+        }
+
+        // Find the kept ranges and the output position of every kept metadata and constant pool event
+        List<int[]> keptRanges = new ArrayList<>();
+        Map<Long, Long> outputPositions = new HashMap<>();
+        List<Delta> deltas = new ArrayList<>();
+        int end = (int) header.size();
+        int position = ChunkHeader.HEADER_SIZE;
+        long removedBytes = 0;
+        long removedEvents = 0;
+        ByteBuffer reader = chunk.duplicate().order(ByteOrder.BIG_ENDIAN);
+        while (position < end) {
+            reader.position(position);
+            long size = ChunkScanner.readVarLong(reader);
+            long typeId = ChunkScanner.readVarLong(reader);
+            if (size <= 0 || position + size > end) {
+                throw new IOException("Invalid event size " + size + " at chunk offset " + position);
+            }
+            boolean constantsOrMetadata = typeId == ChunkScanner.METADATA_TYPE_ID || typeId == ChunkScanner.CONSTANT_POOL_TYPE_ID;
+            if ((!removedIds.isEmpty() && removedIds.contains(typeId))
+                    || (eventFilter != null && !constantsOrMetadata && removes(eventFilter, typeId, position))) {
+                removedBytes += size;
+                removedEvents++;
+            } else {
+                if (!keptRanges.isEmpty() && keptRanges.getLast()[1] == position) {
+                    keptRanges.getLast()[1] = (int) (position + size);
+                } else {
+                    keptRanges.add(new int[]{position, (int) (position + size)});
+                }
+                if (constantsOrMetadata) {
+                    outputPositions.put((long) position, position - removedBytes);
+                }
+                if (typeId == ChunkScanner.CONSTANT_POOL_TYPE_ID) {
+                    ChunkScanner.readVarLong(reader); // start time
+                    ChunkScanner.readVarLong(reader); // duration
+                    int deltaPosition = reader.position();
+                    long delta = ChunkScanner.readVarLong(reader);
+                    if (delta != 0) {
+                        if (reader.position() - deltaPosition != DELTA_SIZE) {
+                            throw new IOException("Unsupported constant pool link encoding at chunk offset " + position);
+                        }
+                        deltas.add(new Delta(deltaPosition, position, position + delta));
+                    }
+                }
+            }
+            position += (int) size;
+        }
+        if (removedEvents == 0) {
+            writeFully(out, chunk.duplicate().limit(end));
+            return 0;
+        }
+
+        // Write the header with the new size and offsets
+        ByteBuffer newHeader = ByteBuffer.allocate(ChunkHeader.HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        newHeader.put(chunk.duplicate().limit(ChunkHeader.HEADER_SIZE)).flip();
+        newHeader.putLong(8, header.size() - removedBytes);
+        newHeader.putLong(16, outputPosition(outputPositions, header.constantPoolOffset()));
+        newHeader.putLong(24, outputPosition(outputPositions, header.metadataOffset()));
+        Map<Integer, byte[]> patches = new HashMap<>();
+        for (Delta delta : deltas) {
+            long newDelta = outputPosition(outputPositions, delta.previousPosition())
+                    - outputPosition(outputPositions, delta.eventPosition());
+            patches.put(delta.position(), encodeDelta(newDelta));
+        }
+        writeFully(out, newHeader);
+
+        // Write the kept events, replacing the constant pool links
+        List<Integer> patchPositions = new ArrayList<>(patches.keySet());
+        patchPositions.sort(null);
+        int patchIndex = 0;
+        for (int[] range : keptRanges) {
+            int from = range[0];
+            while (patchIndex < patchPositions.size() && patchPositions.get(patchIndex) < range[1]) {
+                int patchPosition = patchPositions.get(patchIndex++);
+                writeFully(out, chunk.duplicate().limit(patchPosition).position(from));
+                writeFully(out, ByteBuffer.wrap(patches.get(patchPosition)));
+                from = patchPosition + DELTA_SIZE;
+            }
+            writeFully(out, chunk.duplicate().limit(range[1]).position(from));
+        }
+        return removedEvents;
+    }
+
+    /**
+     * Call the event filter, it decodes the event and fails with a runtime exception for malformed events
+     */
+    private static boolean removes(EventFilter eventFilter, long typeId, int position) throws IOException {
+        try {
+            return eventFilter.removes(typeId, position);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException | IllegalStateException e) {
+            throw new IOException("Malformed event at chunk offset " + position + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static long outputPosition(Map<Long, Long> outputPositions, long inputPosition) throws IOException {
+        Long position = outputPositions.get(inputPosition);
+        if (position == null) {
+            throw new IOException("No metadata or constant pool event at chunk offset " + inputPosition);
+        }
+        return position;
+    }
+
+    /**
+     * Encode a value as LEB128 in exactly {@link #DELTA_SIZE} bytes
+     */
+    private static byte[] encodeDelta(long value) {
+        byte[] bytes = new byte[DELTA_SIZE];
+        for (int i = 0; i < DELTA_SIZE - 1; i++) {
+            bytes[i] = (byte) (((value >>> (7 * i)) & 0x7F) | 0x80);
+        }
+        bytes[DELTA_SIZE - 1] = (byte) (value >>> 56);
+        return bytes;
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package me.bechberger.jfr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Header of a single chunk in a JFR file.
+ * <p>
+ * A JFR file is a sequence of self-contained chunks, each starting with a fixed-size header
+ * that contains the chunk size, the offsets of the constant pools and the metadata,
+ * and the time span the chunk covers. Concatenating chunks yields a valid JFR file.
+ *
+ * @param offset             Absolute position of the chunk in the file
+ * @param size               Size of the chunk in bytes, including the header
+ * @param constantPoolOffset Offset of the first constant pool event, relative to the chunk start
+ * @param metadataOffset     Offset of the metadata event, relative to the chunk start
+ * @param startNanos         Start of the chunk in nanoseconds since epoch
+ * @param durationNanos      Duration of the chunk in nanoseconds
+ * @param startTicks         Start of the chunk in ticks
+ * @param ticksPerSecond     Number of ticks per second
+ * @param flags              Feature flags (e.g. compressed integers, final chunk)
+ */
+record ChunkHeader(long offset, long size, long constantPoolOffset, long metadataOffset,
+                   long startNanos, long durationNanos, long startTicks, long ticksPerSecond, int flags) {
+
+    static final int HEADER_SIZE = 68;
+    /**
+     * Flag for integers encoded as LEB128 varints, all JDK versions since JFR 2.0 set it
+     */
+    static final int COMPRESSED_INTEGERS = 1;
+    /**
+     * Maximum difference between the times that two chunks assign to the same ticks, for which the chunks
+     * count ticks with the same clock. The chunks of one recording measure their start in ticks and in
+     * nanoseconds separately, so their conversions differ slightly.
+     */
+    private static final long CLOCK_TOLERANCE_NANOS = 1_000_000;
+    /**
+     * Additional tolerance in nanoseconds per millisecond between the chunk starts (1000 ppm). The tick counter
+     * and the wall clock drift apart, e.g. while NTP slews the wall clock, so the difference grows with the time
+     * between the chunks of a long recording. Clocks of different JVMs usually differ by far more.
+     */
+    private static final long CLOCK_DRIFT_NANOS_PER_MILLI = 1_000;
+    private static final byte[] MAGIC = {'F', 'L', 'R', '\0'};
+
+    /**
+     * Read the header of the chunk that starts at the given position.
+     *
+     * @param buffer Buffer containing at least {@link #HEADER_SIZE} bytes of the header
+     * @param offset Absolute position of the chunk in the file
+     * @throws IOException if the buffer does not contain a valid chunk header
+     */
+    static ChunkHeader read(ByteBuffer buffer, long offset) throws IOException {
+        buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IOException("Incomplete chunk header at position " + offset);
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                throw new IOException("Not a JFR chunk at position " + offset);
+            }
+        }
+        short major = buffer.getShort(4);
+        if (major != 1 && major != 2) {
+            throw new IOException("Unsupported JFR version " + major + " at position " + offset);
+        }
+        long size = buffer.getLong(8);
+        if (size < HEADER_SIZE) {
+            throw new IOException("Chunk at position " + offset + " is not finished (size " + size + ")");
+        }
+        return new ChunkHeader(offset, size,
+                buffer.getLong(16),
+                buffer.getLong(24),
+                buffer.getLong(32),
+                buffer.getLong(40),
+                buffer.getLong(48),
+                buffer.getLong(56),
+                buffer.getInt(64));
+    }
+
+    /**
+     * Read the headers of all chunks in the given file, in file order.
+     */
+    static List<ChunkHeader> readAll(FileChannel channel) throws IOException {
+        List<ChunkHeader> headers = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        long fileSize = channel.size();
+        while (position < fileSize) {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Incomplete chunk header at position " + position);
+                }
+            }
+            buffer.flip();
+            ChunkHeader header = read(buffer, position);
+            if (position + header.size() > fileSize) {
+                throw new IOException("Chunk at position " + position + " exceeds the file size");
+            }
+            headers.add(header);
+            position += header.size();
+        }
+        return headers;
+    }
+
+    /**
+     * Read the header of the next chunk from a channel.
+     *
+     * @param channel Channel positioned at the start of a chunk
+     * @param buffer  Buffer for the header, it contains the raw header afterwards
+     * @param offset  Position of the chunk in the stream
+     * @return The header, or null if the channel is at its end
+     * @throws IOException if the channel ends within the header or the header is invalid
+     */
+    static ChunkHeader read(ReadableByteChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        buffer.clear().limit(HEADER_SIZE);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == 0) {
+                    return null;
+                }
+                throw new IOException("Incomplete chunk header at position " + offset);
+            }
+        }
+        buffer.flip();
+        return read(buffer, offset);
+    }
+
+    /**
+     * Check if the integers of the chunk are encoded as LEB128 varints instead of fixed-size values.
+     */
+    boolean hasCompressedIntegers() {
+        return (flags & COMPRESSED_INTEGERS) != 0;
+    }
+
+    /**
+     * Convert ticks of the chunk to nanoseconds since epoch, like the JDK parser.
+     */
+    long toEpochNanos(long ticks) {
+        long relativeTicks = ticks - startTicks;
+        if (ticksPerSecond == 1_000_000_000L) {
+            return startNanos + relativeTicks;
+        }
+        return startNanos + (long) (relativeTicks * (1_000_000_000.0 / ticksPerSecond));
+    }
+
+    /**
+     * Check if the other chunk counts ticks with the same clock, like the chunks of a recording of one JVM.
+     * Chunks of recordings of different JVMs, e.g. in concatenated files, usually do not.
+     * The allowed difference grows with the time between the chunk starts, see {@link #CLOCK_DRIFT_NANOS_PER_MILLI}.
+     */
+    boolean hasSameClock(ChunkHeader other) {
+        if (ticksPerSecond != other.ticksPerSecond) {
+            return false;
+        }
+        long elapsedMillis = Math.abs(other.startNanos - startNanos) / 1_000_000;
+        long tolerance = CLOCK_TOLERANCE_NANOS + elapsedMillis * CLOCK_DRIFT_NANOS_PER_MILLI;
+        return Math.abs(toEpochNanos(other.startTicks) - other.startNanos) <= tolerance;
+    }
+
+    /**
+     * End of the chunk in the file (exclusive).
+     */
+    long end() {
+        return offset + size;
+    }
+}
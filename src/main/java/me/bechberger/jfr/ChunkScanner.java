@@ -0,0 +1,238 @@
+package me.bechberger.jfr;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cheap scanner for a single JFR chunk that finds the event types present in the chunk
+ * without decoding any event.
+ * <p>
+ * It only reads the metadata event (to map type ids to names) and the size and type id
+ * of every event in the chunk, skipping the event payloads.
+ * <p>
+ * Chunks that are truncated, malformed or use fixed-size integers are rejected with an {@link IOException},
+ * callers then let the JDK parser read the chunk instead.
+ */
+final class ChunkScanner {
+
+    static final long METADATA_TYPE_ID = 0;
+    static final long CONSTANT_POOL_TYPE_ID = 1;
+    private static final String EVENT_SUPER_TYPE = "jdk.jfr.Event";
+
+    private final ByteBuffer chunk;
+    private final ChunkHeader header;
+
+    /**
+     * @param chunk  Buffer containing the whole chunk, starting with its header at position 0
+     * @param header The header of the chunk
+     */
+    ChunkScanner(ByteBuffer chunk, ChunkHeader header) {
+        this.chunk = chunk.slice().order(ByteOrder.BIG_ENDIAN);
+        this.header = header;
+    }
+
+    /**
+     * Names of all event types that have at least one event in the chunk.
+     *
+     * @throws IOException if the chunk is malformed
+     */
+    Set<String> eventTypeNames() throws IOException {
+        Map<Long, String> eventTypes = readEventTypes();
+        Set<String> names = new HashSet<>();
+        Set<Long> seenIds = new HashSet<>();
+        int position = ChunkHeader.HEADER_SIZE;
+        int end = (int) header.size();
+        while (position < end) {
+            position(position);
+            long size = readVarLong();
+            long typeId = readVarLong();
+            if (size <= 0 || position + size > end) {
+                throw new IOException("Invalid event size " + size + " at chunk offset " + position);
+            }
+            if (typeId != METADATA_TYPE_ID && typeId != CONSTANT_POOL_TYPE_ID && seenIds.add(typeId)) {
+                String name = eventTypes.get(typeId);
+                if (name == null) {
+                    throw new IOException("Unknown event type id " + typeId + " at chunk offset " + position);
+                }
+                names.add(name);
+            }
+            position += (int) size;
+        }
+        return names;
+    }
+
+    /**
+     * Id of the metadata of the chunk.
+     * <p>
+     * The JDK parser reuses the metadata of the previous chunk if both chunks have the same metadata id.
+     */
+    long metadataId() throws IOException {
+        chunk.position(metadataIdPosition());
+        return readVarLong();
+    }
+
+    /**
+     * Position of the metadata id in the chunk, it is the fifth value of the metadata event.
+     */
+    int metadataIdPosition() throws IOException {
+        if (!header.hasCompressedIntegers()) {
+            throw new IOException("Chunk at position " + header.offset() + " does not use compressed integers");
+        }
+        if (header.size() > chunk.limit()) {
+            throw new IOException("Chunk at position " + header.offset() + " is truncated");
+        }
+        if (header.metadataOffset() < ChunkHeader.HEADER_SIZE || header.metadataOffset() >= header.size()) {
+            throw new IOException("Invalid metadata offset " + header.metadataOffset() + " of chunk at position "
+                    + header.offset());
+        }
+        chunk.position((int) header.metadataOffset());
+        readVarLong(); // size
+        if (readVarLong() != METADATA_TYPE_ID) {
+            throw new IOException("Expected metadata event at chunk offset " + header.metadataOffset());
+        }
+        readVarLong(); // start time
+        readVarLong(); // duration
+        return chunk.position();
+    }
+
+    /**
+     * Read the ids and names of all event types declared in the metadata of the chunk.
+     */
+    Map<Long, String> readEventTypes() throws IOException {
+        chunk.position(metadataIdPosition());
+        readVarLong(); // metadata id
+        String[] strings = new String[readLength()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString();
+        }
+        Map<Long, String> eventTypes = new HashMap<>();
+        readElement(strings, eventTypes, 0);
+        return eventTypes;
+    }
+
+    /**
+     * Read an element of the metadata tree, collecting the event type classes on the way.
+     * The tree has the form root > metadata > class > (field | annotation | setting).
+     */
+    private void readElement(String[] strings, Map<Long, String> eventTypes, int depth) throws IOException {
+        String elementName = string(strings);
+        int attributeCount = readLength();
+        String name = null;
+        String id = null;
+        String superType = null;
+        for (int i = 0; i < attributeCount; i++) {
+            String key = string(strings);
+            String value = string(strings);
+            switch (key) {
+                case "name" -> name = value;
+                case "id" -> id = value;
+                case "superType" -> superType = value;
+                default -> {
+                }
+            }
+        }
+        if (depth == 2 && "class".equals(elementName) && EVENT_SUPER_TYPE.equals(superType)) {
+            if (name == null || id == null) {
+                throw new IOException("Event type without name or id in chunk metadata");
+            }
+            try {
+                eventTypes.put(Long.parseLong(id), name);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid event type id " + id + " in chunk metadata");
+            }
+        }
+        int childCount = readLength();
+        for (int i = 0; i < childCount; i++) {
+            readElement(strings, eventTypes, depth + 1);
+        }
+    }
+
+    private String readString() throws IOException {
+        if (!chunk.hasRemaining()) {
+            throw truncated(chunk);
+        }
+        byte encoding = chunk.get();
+        return switch (encoding) {
+            case 0 -> null;
+            case 1 -> "";
+            case 3, 5 -> {
+                byte[] bytes = new byte[readLength()];
+                chunk.get(bytes);
+                yield new String(bytes, encoding == 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+            }
+            case 4 -> {
+                char[] chars = new char[readLength()];
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = (char) readVarLong();
+                }
+                yield new String(chars);
+            }
+            default -> throw new IOException("Unsupported string encoding " + encoding + " in chunk metadata");
+        };
+    }
+
+    /**
+     * Read a string of the metadata string table by its index
+     */
+    private String string(String[] strings) throws IOException {
+        long index = readVarLong();
+        if (index < 0 || index >= strings.length) {
+            throw new IOException("Invalid string index " + index + " in chunk metadata at offset " + chunk.position());
+        }
+        return strings[(int) index];
+    }
+
+    /**
+     * Read the length of an array or string, every element takes at least one byte of the chunk
+     */
+    private int readLength() throws IOException {
+        long length = readVarLong();
+        if (length < 0 || length > chunk.remaining()) {
+            throw new IOException("Invalid length " + length + " in chunk metadata at offset " + chunk.position());
+        }
+        return (int) length;
+    }
+
+    private void position(int position) throws IOException {
+        if (position > chunk.limit()) {
+            throw truncated(chunk);
+        }
+        chunk.position(position);
+    }
+
+    private long readVarLong() throws IOException {
+        return readVarLong(chunk);
+    }
+
+    /**
+     * Read a LEB128 encoded long at the position of the buffer, the ninth byte contributes all of its eight bits.
+     *
+     * @throws IOException if the buffer ends within the value
+     */
+    static long readVarLong(ByteBuffer buffer) throws IOException {
+        try {
+            long result = 0;
+            for (int shift = 0; shift < 56; shift += 7) {
+                byte b = buffer.get();
+                result |= (b & 0x7FL) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            return result | ((buffer.get() & 0xFFL) << 56);
+        } catch (BufferUnderflowException e) {
+            throw truncated(buffer);
+        }
+    }
+
+    private static IOException truncated(ByteBuffer buffer) {
+        return new IOException("Chunk ends within a value at offset " + buffer.position());
+    }
+}
@@ -0,0 +1,135 @@
+package me.bechberger.jfr;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Transparent decompression of recordings that are compressed with gzip or stored in a zip file.
+ * <p>
+ * The format is detected by the magic bytes at the start of the input, not by the file name.
+ * A zip input contributes its first entry whose name ends with {@code .jfr} or {@code .jfr.gz},
+ * other entries can be read through a path of a zip file system. Compressed entries and
+ * gzip members in gzip files are decompressed recursively.
+ * <p>
+ * The JDK parser needs a file with random access, so {@link JFRProcessor#process(java.io.OutputStream)}
+ * decompresses such inputs into a temporary file, while the chunk-wise modes read them as a stream.
+ */
+final class CompressedInput {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAGIC_SIZE = 4;
+
+    private CompressedInput() {
+    }
+
+    /**
+     * Check if the JDK parser cannot read the file directly: it is compressed or not on the default file system.
+     */
+    static boolean needsDecompression(Path path) throws IOException {
+        if (path.getFileSystem() != FileSystems.getDefault()) {
+            return true;
+        }
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] magic = in.readNBytes(MAGIC_SIZE);
+            return isGzip(magic) || isZip(magic);
+        }
+    }
+
+    /**
+     * Open the decompressed content of a file.
+     */
+    static InputStream open(Path path) throws IOException {
+        InputStream in = Files.newInputStream(path);
+        try {
+            return decompress(in);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decompress a file into a temporary file that the JDK parser can read.
+     *
+     * @return The temporary file, the caller deletes it
+     */
+    static Path decompressToTemporaryFile(Path path) throws IOException {
+        Path decompressed = Files.createTempFile("jfr-input", ".jfr");
+        try (InputStream in = open(path)) {
+            Files.copy(in, decompressed, StandardCopyOption.REPLACE_EXISTING);
+            return decompressed;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(decompressed);
+            throw e;
+        }
+    }
+
+    /**
+     * Wrap a stream so that its content is decompressed if it starts with the magic bytes of gzip or zip.
+     * The format is only detected on the first read, so wrapping does not block.
+     */
+    static InputStream decompressing(InputStream in) {
+        return new InputStream() {
+            private InputStream source;
+
+            private InputStream source() throws IOException {
+                if (source == null) {
+                    source = decompress(in);
+                }
+                return source;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return source().read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return source().read(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    private static InputStream decompress(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        buffered.mark(MAGIC_SIZE);
+        byte[] magic = buffered.readNBytes(MAGIC_SIZE);
+        buffered.reset();
+        if (isGzip(magic)) {
+            return decompress(new GZIPInputStream(buffered, BUFFER_SIZE));
+        }
+        if (isZip(magic)) {
+            ZipInputStream zip = new ZipInputStream(buffered);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (!entry.isDirectory() && (entry.getName().endsWith(".jfr") || entry.getName().endsWith(".jfr.gz"))) {
+                    return decompress(zip);
+                }
+            }
+            throw new IOException("Zip input contains no .jfr entry");
+        }
+        return buffered;
+    }
+
+    private static boolean isGzip(byte[] magic) {
+        return magic.length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b;
+    }
+
+    private static boolean isZip(byte[] magic) {
+        return magic.length == MAGIC_SIZE && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+    }
+}
@@ -0,0 +1,43 @@
+package me.bechberger.jfr;
+
+import java.util.Set;
+
+/**
+ * Decides whether the values of a complex type are stored in the constant pool of the output.
+ * <p>
+ * Pooled values are written once per chunk and referenced by their id, which pays off for values
+ * that repeat often, like threads, classes or stack traces. Other values are written inline with every event.
+ * The decision is made once per type name when the type is registered.
+ * <p>
+ * Keep the decision of the input for types that the JDK parser maps to special classes,
+ * like {@code java.lang.Thread} or {@code jdk.types.StackFrame}, the parser relies on how they are stored.
+ */
+@FunctionalInterface
+public interface ConstantPoolPolicy {
+
+    /**
+     * Policy that keeps the decision of the input recording
+     */
+    ConstantPoolPolicy INPUT = (typeName, pooledInInput) -> pooledInInput;
+
+    /**
+     * Check if values of the given type should be stored in the constant pool.
+     *
+     * @param typeName      The name of the type, e.g. {@code jdk.types.StackTrace}
+     * @param pooledInInput Whether the input stores values of the type in the constant pool,
+     *                      determined by a heuristic if the JDK does not expose this information
+     * @return true if values should be stored in the constant pool of the output, false otherwise
+     */
+    boolean useConstantPool(String typeName, boolean pooledInInput);
+
+    /**
+     * Create a policy that pools the values of the given types and keeps the decision of the input for all others.
+     *
+     * @param typeNames The names of the types to pool
+     * @return The policy
+     */
+    static ConstantPoolPolicy pooling(String... typeNames) {
+        Set<String> pooledTypes = Set.of(typeNames);
+        return (typeName, pooledInInput) -> pooledInInput || pooledTypes.contains(typeName);
+    }
+}
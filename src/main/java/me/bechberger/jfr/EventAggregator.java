@@ -0,0 +1,376 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.EventType;
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replaces the events of high-frequency event types, like {@code jdk.ExecutionSample}, with summary events
+ * per time bucket, configured per event type name.
+ * <p>
+ * The events of an aggregated type are not written. Instead, every bucket gets summary events of the type
+ * {@code <event type>Summary}, see {@link #summaryTypeName(String)}, with the fields
+ * <ul>
+ *     <li>{@code startTime} and {@code duration}: from the start of the first to the start of the last event
+ *     of the bucket</li>
+ *     <li>{@code stackTrace}: one of the most frequent stack traces of the bucket,
+ *     null for the events with the other stack traces (only for types with stack traces)</li>
+ *     <li>{@code count}: the number of events with this stack trace</li>
+ *     <li>{@code <field>Sum}: the sum of the numeric field over these events, for every summed field</li>
+ * </ul>
+ * The totals of a bucket are therefore the sums over its summary events. Buckets are based on the start time
+ * of the events. Events removed by the modifier are not counted.
+ * <p>
+ * Example:
+ * <pre>
+ * processor.withAggregation(new EventAggregator(Duration.ofMinutes(1))
+ *         .aggregate("jdk.ObjectAllocationSample", "weight")
+ *         .aggregate("jdk.ExecutionSample")
+ *         .withTopStacks(20));
+ * </pre>
+ */
+public class EventAggregator {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final long bucketNanos;
+    /**
+     * Summed field names by aggregated event type name
+     */
+    private final Map<String, List<String>> summedFields = new HashMap<>();
+    private int topStacks = 10;
+
+    /**
+     * @param bucket The length of the time buckets
+     */
+    public EventAggregator(Duration bucket) {
+        if (bucket.isNegative() || bucket.isZero()) {
+            throw new IllegalArgumentException("Bucket length must be positive, got " + bucket);
+        }
+        this.bucketNanos = bucket.toNanos();
+    }
+
+    /**
+     * Aggregate the events of the given type.
+     *
+     * @param eventType    The name of the event type, e.g. {@code jdk.ObjectAllocationSample}
+     * @param summedFields The names of numeric fields of the type to sum up, e.g. {@code weight}
+     * @return this aggregator
+     */
+    public EventAggregator aggregate(String eventType, String... summedFields) {
+        this.summedFields.put(eventType, List.of(summedFields));
+        return this;
+    }
+
+    /**
+     * Set the number of the most frequent stack traces per bucket that get their own summary event,
+     * 0 to not group by stack trace. Default is 10.
+     *
+     * @param topStacks the number of stack traces
+     * @return this aggregator
+     */
+    public EventAggregator withTopStacks(int topStacks) {
+        if (topStacks < 0) {
+            throw new IllegalArgumentException("Number of stack traces must not be negative, got " + topStacks);
+        }
+        this.topStacks = topStacks;
+        return this;
+    }
+
+    /**
+     * Get the name of the summary event type for an aggregated event type.
+     *
+     * @param eventType The name of the aggregated event type
+     * @return the name of the summary event type
+     */
+    public static String summaryTypeName(String eventType) {
+        return eventType + "Summary";
+    }
+
+    /**
+     * Check if events of the given type are aggregated
+     */
+    boolean aggregates(String eventType) {
+        return summedFields.containsKey(eventType);
+    }
+
+    /**
+     * Start aggregating a single input, the returned session holds the open buckets of this input.
+     */
+    Session newSession() {
+        return new Session();
+    }
+
+    /**
+     * A summary event, the count and sums of the events of one stack trace in one bucket.
+     *
+     * @param eventType       The aggregated event type
+     * @param summedFields    The summed fields of the aggregated event type
+     * @param startTicks      The start of the first event of the bucket in ticks of the input
+     * @param durationTicks   The ticks from the start of the first to the start of the last event of the bucket
+     * @param stackTraceEvent An event with the stack trace of the summary,
+     *                        null for the remaining events or if stack traces are not grouped
+     * @param count           The number of events
+     * @param longSums        The sums of the integral summed fields
+     * @param doubleSums      The sums of the floating point summed fields
+     */
+    record Summary(EventType eventType, List<ValueDescriptor> summedFields, long startTicks, long durationTicks,
+                   RecordedEvent stackTraceEvent, long count, long[] longSums, double[] doubleSums) {
+    }
+
+    /**
+     * Check if the sums of the field are floating point numbers
+     */
+    static boolean isFloatingPoint(ValueDescriptor field) {
+        return field.getTypeName().equals("float") || field.getTypeName().equals("double");
+    }
+
+    /**
+     * Aggregation state of a single processing run, not thread-safe
+     */
+    final class Session {
+        /**
+         * Aggregators by event type name, null for types that are not aggregated
+         */
+        private final Map<String, TypeAggregator> aggregators = new HashMap<>();
+        private final Deque<Summary> closed = new ArrayDeque<>();
+
+        private Session() {
+        }
+
+        /**
+         * Add an event to its bucket if its type is aggregated.
+         *
+         * @return true if the event is aggregated and should not be written
+         * @throws IllegalArgumentException if a summed field does not exist or is not numeric
+         */
+        boolean add(RecordedEvent event) {
+            String name = event.getEventType().getName();
+            TypeAggregator aggregator = aggregators.get(name);
+            if (aggregator == null && !aggregators.containsKey(name)) {
+                List<String> fields = summedFields.get(name);
+                aggregator = fields == null ? null : new TypeAggregator(event.getEventType(), fields);
+                aggregators.put(name, aggregator);
+            }
+            if (aggregator == null) {
+                return false;
+            }
+            aggregator.add(event, closed);
+            return true;
+        }
+
+        /**
+         * @return the next summary of a closed bucket that should be written now, or null
+         */
+        Summary pollClosed() {
+            return closed.poll();
+        }
+
+        /**
+         * Close all open buckets at the end of the input, their summaries are then returned by {@link #pollClosed()}
+         */
+        void finish() {
+            for (TypeAggregator aggregator : aggregators.values()) {
+                if (aggregator != null) {
+                    aggregator.finish(closed);
+                }
+            }
+        }
+    }
+
+    private static long epochNanos(Instant instant) {
+        return instant.getEpochSecond() * NANOS_PER_SECOND + instant.getNano();
+    }
+
+    /**
+     * Count and sums of a group of events
+     */
+    private static final class Row {
+        private final long[] longSums;
+        private final double[] doubleSums;
+        /**
+         * The first event of the group, null if the group has no stack trace
+         */
+        private final RecordedEvent first;
+        private final RecordedStackTrace stackTrace;
+        private long count = 0;
+
+        Row(int fields, RecordedEvent first, RecordedStackTrace stackTrace) {
+            this.longSums = new long[fields];
+            this.doubleSums = new double[fields];
+            this.first = stackTrace == null ? null : first;
+            this.stackTrace = stackTrace;
+        }
+
+        void addAll(Row other) {
+            count += other.count;
+            for (int i = 0; i < longSums.length; i++) {
+                longSums[i] += other.longSums[i];
+                doubleSums[i] += other.doubleSums[i];
+            }
+        }
+    }
+
+    /**
+     * Events of one bucket, grouped by the identity of their stack traces. The JDK parser resolves the stack traces
+     * of a chunk only once, equal stack traces of different chunks are merged when the bucket is closed.
+     * <p>
+     * The start ticks are kept as they are in the input, like the start times of the written events,
+     * as the tick frequency of the input is not known here.
+     */
+    private static final class Bucket {
+        private final Map<RecordedStackTrace, Row> rows = new IdentityHashMap<>();
+        private long firstTicks = Long.MAX_VALUE;
+        private long lastTicks = Long.MIN_VALUE;
+    }
+
+    /**
+     * Aggregation state of one event type. A bucket is closed once an event of a bucket at least two buckets
+     * later arrives, events that arrive even later count towards the oldest bucket still open.
+     */
+    private final class TypeAggregator {
+        private final EventType eventType;
+        private final List<ValueDescriptor> fields = new ArrayList<>();
+        private final boolean[] floatingPoint;
+        private final boolean groupsStackTraces;
+        private final TreeMap<Long, Bucket> open = new TreeMap<>();
+        private long newestBucket = Long.MIN_VALUE;
+        /**
+         * Buckets before this one have been closed
+         */
+        private long closedBefore = Long.MIN_VALUE;
+
+        TypeAggregator(EventType eventType, List<String> fieldNames) {
+            this.eventType = eventType;
+            for (String fieldName : fieldNames) {
+                ValueDescriptor field = eventType.getField(fieldName);
+                if (field == null || !isNumeric(field)) {
+                    throw new IllegalArgumentException("Event type " + eventType.getName()
+                            + " has no numeric field " + fieldName);
+                }
+                fields.add(field);
+            }
+            this.floatingPoint = new boolean[fields.size()];
+            for (int i = 0; i < fields.size(); i++) {
+                floatingPoint[i] = isFloatingPoint(fields.get(i));
+            }
+            this.groupsStackTraces = topStacks > 0 && eventType.getField("stackTrace") != null;
+        }
+
+        private static boolean isNumeric(ValueDescriptor field) {
+            return !field.isArray() && switch (field.getTypeName()) {
+                case "byte", "short", "int", "long", "float", "double" -> true;
+                default -> false;
+            };
+        }
+
+        void add(RecordedEvent event, Deque<Summary> closed) {
+            long startNanos = epochNanos(event.getStartTime());
+            long bucketIndex = Math.max(Math.floorDiv(startNanos, bucketNanos), closedBefore);
+            Bucket bucket = open.computeIfAbsent(bucketIndex, b -> new Bucket());
+            long startTicks = event.getLong("startTime");
+            bucket.firstTicks = Math.min(bucket.firstTicks, startTicks);
+            bucket.lastTicks = Math.max(bucket.lastTicks, startTicks);
+            RecordedStackTrace stackTrace = groupsStackTraces ? event.getStackTrace() : null;
+            Row row = bucket.rows.get(stackTrace);
+            if (row == null) {
+                row = new Row(fields.size(), event, stackTrace);
+                bucket.rows.put(stackTrace, row);
+            }
+            row.count++;
+            for (int i = 0; i < floatingPoint.length; i++) {
+                String name = fields.get(i).getName();
+                if (floatingPoint[i]) {
+                    row.doubleSums[i] += event.getDouble(name);
+                } else {
+                    row.longSums[i] += event.getLong(name);
+                }
+            }
+            if (bucketIndex > newestBucket) {
+                newestBucket = bucketIndex;
+                while (!open.isEmpty() && open.firstKey() < newestBucket - 1) {
+                    Map.Entry<Long, Bucket> oldest = open.pollFirstEntry();
+                    close(oldest.getValue(), closed);
+                    closedBefore = oldest.getKey() + 1;
+                }
+            }
+        }
+
+        void finish(Deque<Summary> closed) {
+            for (Bucket bucket : open.values()) {
+                close(bucket, closed);
+            }
+            open.clear();
+        }
+
+        /**
+         * Create the summaries of a bucket: one per top stack trace, ordered by count, and one for the other events
+         */
+        private void close(Bucket bucket, Deque<Summary> closed) {
+            Map<String, Row> byStackTrace = new LinkedHashMap<>();
+            Row other = new Row(fields.size(), null, null);
+            for (Row row : bucket.rows.values()) {
+                if (row.stackTrace == null) {
+                    other.addAll(row);
+                    continue;
+                }
+                Row merged = byStackTrace.putIfAbsent(stackTraceKey(row.stackTrace), row);
+                if (merged != null) {
+                    merged.addAll(row);
+                }
+            }
+            List<Row> rows = new ArrayList<>(byStackTrace.values());
+            rows.sort(Comparator.comparingLong((Row row) -> row.count).reversed());
+            for (Row row : rows.subList(Math.min(topStacks, rows.size()), rows.size())) {
+                other.addAll(row);
+            }
+            for (Row row : rows.subList(0, Math.min(topStacks, rows.size()))) {
+                closed.add(summary(bucket, row));
+            }
+            if (other.count > 0) {
+                closed.add(summary(bucket, other));
+            }
+        }
+
+        private Summary summary(Bucket bucket, Row row) {
+            return new Summary(eventType, fields, bucket.firstTicks, bucket.lastTicks - bucket.firstTicks,
+                    row.first, row.count, row.longSums, row.doubleSums);
+        }
+    }
+
+    /**
+     * Key for stack traces with the same frames, independent of the chunk they are resolved from
+     */
+    private static String stackTraceKey(RecordedStackTrace stackTrace) {
+        StringBuilder key = new StringBuilder();
+        key.append(stackTrace.isTruncated());
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            RecordedMethod method = frame.getMethod();
+            key.append('|');
+            if (method != null) {
+                key.append(method.getType() == null ? null : method.getType().getName())
+                        .append('.').append(method.getName()).append(method.getDescriptor());
+            }
+            key.append(':').append(frame.getLineNumber())
+                    .append(':').append(frame.getBytecodeIndex())
+                    .append(':').append(frame.getType());
+        }
+        return key.toString();
+    }
+}
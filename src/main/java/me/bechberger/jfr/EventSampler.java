@@ -0,0 +1,341 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.consumer.RecordedEvent;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+
+/**
+ * Downsamples the events of high-frequency event types, configured per event type name.
+ * <p>
+ * Three kinds of sampling are supported:
+ * <ul>
+ *     <li>{@link #keepOneIn(String, int)}: keep every n-th event</li>
+ *     <li>{@link #keepAtMostPerSecond(String, int)}: keep the first events of every second</li>
+ *     <li>{@link #keepRandom(String, int, Duration)}: keep a uniform random sample of the events of every time bucket
+ *     (reservoir sampling)</li>
+ * </ul>
+ * Seconds and buckets are based on the start time of the events. Events of other types are not sampled.
+ * The sampler is applied before {@link JFREventModifier#shouldRemoveEvent(RecordedEvent)}, so the modifier
+ * only sees the sampled events.
+ * <p>
+ * Example:
+ * <pre>
+ * processor.withSampling(new EventSampler()
+ *         .keepOneIn("jdk.ObjectAllocationSample", 10)
+ *         .keepAtMostPerSecond("jdk.ExecutionSample", 100)
+ *         .keepRandom("jdk.JavaMonitorWait", 50, Duration.ofSeconds(10)));
+ * </pre>
+ */
+public class EventSampler {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    /**
+     * Sampling of one event type, creates the state for a single processing run
+     */
+    private sealed interface Rule {
+        TypeSampler newSampler(SplittableRandom random);
+    }
+
+    private record OneIn(int n) implements Rule {
+        @Override
+        public TypeSampler newSampler(SplittableRandom random) {
+            return new OneInSampler(n);
+        }
+    }
+
+    private record MaxPerSecond(int max) implements Rule {
+        @Override
+        public TypeSampler newSampler(SplittableRandom random) {
+            return new MaxPerSecondSampler(max);
+        }
+    }
+
+    private record Reservoir(int size, long bucketNanos) implements Rule {
+        @Override
+        public TypeSampler newSampler(SplittableRandom random) {
+            return new ReservoirSampler(size, bucketNanos, random.split());
+        }
+    }
+
+    private final Map<String, Rule> rules = new HashMap<>();
+    private long seed = 0;
+
+    /**
+     * Keep the first and then every n-th event of the given type.
+     *
+     * @param eventType The name of the event type, e.g. {@code jdk.ObjectAllocationSample}
+     * @param n         Keep one of every {@code n} events
+     * @return this sampler
+     */
+    public EventSampler keepOneIn(String eventType, int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be at least 1, got " + n);
+        }
+        rules.put(eventType, new OneIn(n));
+        return this;
+    }
+
+    /**
+     * Keep at most the given number of events of the type per second, the first events of every second are kept.
+     *
+     * @param eventType The name of the event type
+     * @param max       The maximum number of events per second
+     * @return this sampler
+     */
+    public EventSampler keepAtMostPerSecond(String eventType, int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Maximum must not be negative, got " + max);
+        }
+        rules.put(eventType, new MaxPerSecond(max));
+        return this;
+    }
+
+    /**
+     * Keep a uniform random sample of the given size of the events of the type in every time bucket.
+     * <p>
+     * The events of a bucket are held back until the input has moved one bucket past it, then the sampled events
+     * are written in input order. Events that arrive even later count towards the oldest bucket still open.
+     *
+     * @param eventType The name of the event type
+     * @param size      The number of events to keep per bucket
+     * @param bucket    The length of the time buckets
+     * @return this sampler
+     */
+    public EventSampler keepRandom(String eventType, int size, Duration bucket) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Sample size must not be negative, got " + size);
+        }
+        if (bucket.isNegative() || bucket.isZero()) {
+            throw new IllegalArgumentException("Bucket length must be positive, got " + bucket);
+        }
+        rules.put(eventType, new Reservoir(size, bucket.toNanos()));
+        return this;
+    }
+
+    /**
+     * Set the seed for the random sampling, the same seed and input give the same output. Default is 0.
+     *
+     * @param seed the seed
+     * @return this sampler
+     */
+    public EventSampler withSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Check if events of the given type are sampled
+     */
+    boolean samples(String eventType) {
+        return rules.containsKey(eventType);
+    }
+
+    /**
+     * Start sampling a single input, the returned session holds the counters and samples of this input.
+     */
+    Session newSession() {
+        return new Session();
+    }
+
+    /**
+     * Sampling state of a single processing run, not thread-safe
+     */
+    final class Session {
+        private final SplittableRandom random = new SplittableRandom(seed);
+        /**
+         * Samplers by event type name, null for types without a rule
+         */
+        private final Map<String, TypeSampler> samplers = new HashMap<>();
+        private final Deque<RecordedEvent> released = new ArrayDeque<>();
+
+        private Session() {
+        }
+
+        /**
+         * Offer an event to the sampler.
+         *
+         * @return true if the event should be written now, false if it is dropped or held back in a sample
+         */
+        boolean offer(RecordedEvent event) {
+            String name = event.getEventType().getName();
+            TypeSampler sampler = samplers.get(name);
+            if (sampler == null && !samplers.containsKey(name)) {
+                Rule rule = rules.get(name);
+                sampler = rule == null ? null : rule.newSampler(random);
+                samplers.put(name, sampler);
+            }
+            return sampler == null || sampler.offer(event, released);
+        }
+
+        /**
+         * @return the next held back event that should be written now, or null
+         */
+        RecordedEvent pollReleased() {
+            return released.poll();
+        }
+
+        /**
+         * Release all held back events at the end of the input, they are then returned by {@link #pollReleased()}
+         */
+        void finish() {
+            for (TypeSampler sampler : samplers.values()) {
+                if (sampler != null) {
+                    sampler.finish(released);
+                }
+            }
+        }
+    }
+
+    private static long epochNanos(RecordedEvent event) {
+        Instant start = event.getStartTime();
+        return start.getEpochSecond() * NANOS_PER_SECOND + start.getNano();
+    }
+
+    /**
+     * Sampling state of one event type
+     */
+    private interface TypeSampler {
+        /**
+         * @param released Receives held back events that should be written now
+         * @return true if the event should be written now
+         */
+        boolean offer(RecordedEvent event, Deque<RecordedEvent> released);
+
+        default void finish(Deque<RecordedEvent> released) {
+        }
+    }
+
+    private static final class OneInSampler implements TypeSampler {
+        private final int n;
+        private long count = 0;
+
+        OneInSampler(int n) {
+            this.n = n;
+        }
+
+        @Override
+        public boolean offer(RecordedEvent event, Deque<RecordedEvent> released) {
+            return count++ % n == 0;
+        }
+    }
+
+    private static final class MaxPerSecondSampler implements TypeSampler {
+        /**
+         * Seconds that are counted, events are not strictly ordered by time
+         */
+        private static final int TRACKED_SECONDS = 16;
+
+        private final int max;
+        private final Map<Long, int[]> counts = new LinkedHashMap<>(TRACKED_SECONDS * 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, int[]> eldest) {
+                return size() > TRACKED_SECONDS;
+            }
+        };
+
+        MaxPerSecondSampler(int max) {
+            this.max = max;
+        }
+
+        @Override
+        public boolean offer(RecordedEvent event, Deque<RecordedEvent> released) {
+            int[] count = counts.computeIfAbsent(Math.floorDiv(epochNanos(event), NANOS_PER_SECOND), second -> new int[1]);
+            return count[0]++ < max;
+        }
+    }
+
+    /**
+     * Reservoir sampling (algorithm R) per time bucket.
+     * A bucket is released once an event of a bucket at least two buckets later arrives.
+     */
+    private static final class ReservoirSampler implements TypeSampler {
+        private final int size;
+        private final long bucketNanos;
+        private final SplittableRandom random;
+        private final TreeMap<Long, Sample> open = new TreeMap<>();
+        private long newestBucket = Long.MIN_VALUE;
+        /**
+         * Buckets before this one have been released
+         */
+        private long releasedBefore = Long.MIN_VALUE;
+        private long arrivals = 0;
+
+        ReservoirSampler(int size, long bucketNanos, SplittableRandom random) {
+            this.size = size;
+            this.bucketNanos = bucketNanos;
+            this.random = random;
+        }
+
+        @Override
+        public boolean offer(RecordedEvent event, Deque<RecordedEvent> released) {
+            long bucket = Math.max(Math.floorDiv(epochNanos(event), bucketNanos), releasedBefore);
+            open.computeIfAbsent(bucket, b -> new Sample(size)).add(event, arrivals++, random);
+            if (bucket > newestBucket) {
+                newestBucket = bucket;
+                while (!open.isEmpty() && open.firstKey() < newestBucket - 1) {
+                    Map.Entry<Long, Sample> oldest = open.pollFirstEntry();
+                    oldest.getValue().release(released);
+                    releasedBefore = oldest.getKey() + 1;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void finish(Deque<RecordedEvent> released) {
+            for (Sample sample : open.values()) {
+                sample.release(released);
+            }
+            open.clear();
+        }
+    }
+
+    /**
+     * Uniform random sample of the events of one bucket
+     */
+    private static final class Sample {
+        private final RecordedEvent[] events;
+        private final long[] arrivals;
+        private long seen = 0;
+
+        Sample(int size) {
+            this.events = new RecordedEvent[size];
+            this.arrivals = new long[size];
+        }
+
+        void add(RecordedEvent event, long arrival, SplittableRandom random) {
+            long index = seen < events.length ? seen : random.nextLong(seen + 1);
+            seen++;
+            if (index < events.length) {
+                events[(int) index] = event;
+                arrivals[(int) index] = arrival;
+            }
+        }
+
+        /**
+         * Release the sampled events in the order in which they arrived
+         */
+        void release(Deque<RecordedEvent> released) {
+            int count = (int) Math.min(seen, events.length);
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> arrivals[i]));
+            for (int i : order) {
+                released.add(events[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.EventType;
+import jdk.jfr.Unsigned;
+import jdk.jfr.ValueDescriptor;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Map from event types to values, keyed by the type name and the field descriptors of the type.
+ * <p>
+ * The JDK parser creates new {@link EventType} instances for every chunk whose metadata differs from the previous
+ * chunk, and for every chunk if chunks are parsed one by one. An identity map would keep the types of all chunks
+ * and their values. This map keeps one entry per type name and remembers the last type instance of it:
+ * a lookup with this instance only costs the name lookup, a lookup with another instance compares the fields
+ * once and then continues with the new instance. Types with the same name but different fields replace the entry.
+ * <p>
+ * Not thread-safe.
+ */
+final class EventTypeMap<V> {
+
+    private static final class Entry<V> {
+        private EventType type;
+        private final V value;
+
+        Entry(EventType type, V value) {
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Entry<V>> entries = new HashMap<>();
+
+    /**
+     * @return the value of the type or of a type with the same name and fields, null if there is none
+     */
+    V get(EventType type) {
+        Entry<V> entry = entries.get(type.getName());
+        if (entry == null) {
+            return null;
+        }
+        if (entry.type != type) {
+            if (!sameFields(entry.type.getFields(), type.getFields(), new HashSet<>())) {
+                return null;
+            }
+            entry.type = type;
+        }
+        return entry.value;
+    }
+
+    void put(EventType type, V value) {
+        entries.put(type.getName(), new Entry<>(type, value));
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Compare the fields and the fields of their types, every nested type is only compared once,
+     * which also stops at recursive types
+     */
+    private static boolean sameFields(List<ValueDescriptor> fields, List<ValueDescriptor> otherFields,
+                                      Set<String> comparedTypes) {
+        if (fields.size() != otherFields.size()) {
+            return false;
+        }
+        for (int i = 0; i < fields.size(); i++) {
+            ValueDescriptor field = fields.get(i);
+            ValueDescriptor other = otherFields.get(i);
+            if (!field.getName().equals(other.getName()) || !field.getTypeName().equals(other.getTypeName())
+                    || field.isArray() != other.isArray()
+                    || (field.getAnnotation(Unsigned.class) == null) != (other.getAnnotation(Unsigned.class) == null)) {
+                return false;
+            }
+            if (comparedTypes.add(field.getTypeName())
+                    && !sameFields(field.getFields(), other.getFields(), comparedTypes)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,183 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.EventType;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Reads the events of a recording with the JDK parser, without the events that the processor drops anyway.
+ * <p>
+ * If events of whole types, whole chunks or single events can be skipped, the recording is read chunk by chunk:
+ * every chunk is filtered by {@link ChunkFilter} into the same temporary file, which the JDK parser then reads
+ * and which is overwritten by the next chunk. The input is therefore never copied as a whole, and chunks
+ * that are skipped are not copied at all. Chunks are self-contained, so the JDK parser creates the same events
+ * as for the whole file. Chunks that cannot be filtered are copied unchanged, the processor then drops
+ * their events after parsing.
+ * <p>
+ * Without anything to skip, the JDK parser reads the input in place. Readers that convert ticks themselves can
+ * separate the clocks: inputs whose chunks count ticks with different clocks, e.g. because they were recorded
+ * by different JVMs and concatenated, are then also read chunk by chunk, so that {@link #clock()} tells the clock
+ * of every event.
+ */
+final class FilteredRecordingFile implements Closeable {
+
+    private final Path file;
+    private final Logger logger;
+    private final List<EventType> eventTypes;
+    private final Set<String> removedTypes = new HashSet<>();
+    private final Function<MappedChunk, ChunkFilter.EventFilter> eventFilter;
+    /**
+     * The chunks to read, null if the whole input is read in place
+     */
+    private final List<ChunkHeader> chunks;
+    private final FileChannel in;
+    /**
+     * The header of the chunk that is read, null if the input has no chunks
+     */
+    private ChunkHeader clock;
+    private FileChannel chunkOut;
+    private Path chunkFile;
+    private int nextChunk = 0;
+    private RecordingFile current;
+    private long skippedEvents = 0;
+
+    /**
+     * Open a recording.
+     *
+     * @param file           The uncompressed JFR file
+     * @param removedType    Decides which event types are skipped completely
+     * @param keptChunks     Decides which chunks are read, null to read all chunks
+     * @param eventFilter    Creates the filter for the single events of a chunk, null to keep all events
+     * @param separateClocks Whether chunks with different clocks are read one by one, see {@link #clock()}
+     * @throws IOException if the file cannot be read
+     */
+    FilteredRecordingFile(Path file, Predicate<EventType> removedType, Predicate<ChunkHeader> keptChunks,
+                          Function<MappedChunk, ChunkFilter.EventFilter> eventFilter, boolean separateClocks,
+                          Logger logger) throws IOException {
+        this.file = file;
+        this.logger = logger;
+        this.eventFilter = eventFilter;
+        try (RecordingFile recording = new RecordingFile(file)) {
+            this.eventTypes = recording.readEventTypes();
+        }
+        for (EventType eventType : eventTypes) {
+            if (removedType.test(eventType)) {
+                removedTypes.add(eventType.getName());
+            }
+        }
+        this.in = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            List<ChunkHeader> all = ChunkHeader.readAll(in);
+            List<ChunkHeader> kept = keptChunks == null ? all : all.stream().filter(keptChunks).toList();
+            if (keptChunks != null) {
+                logger.info("Skipped {} of {} chunks outside of the time window", all.size() - kept.size(), all.size());
+            }
+            this.clock = kept.isEmpty() ? (all.isEmpty() ? null : all.getFirst()) : kept.getFirst();
+            if (removedTypes.isEmpty() && keptChunks == null && eventFilter == null
+                    && (!separateClocks || all.stream().allMatch(chunk -> chunk.hasSameClock(clock)))) {
+                this.chunks = null;
+                this.current = new RecordingFile(file);
+            } else {
+                this.chunks = kept;
+            }
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * A chunk header whose clock converts the ticks of the event that {@link #readEvent()} returns next,
+     * valid after {@link #hasMoreEvents()} returned true. It is the first chunk before that.
+     * An input that is read in place keeps the first chunk, which is only exact if the clocks were separated.
+     *
+     * @return the chunk header, null if the input has no chunks
+     */
+    ChunkHeader clock() {
+        return clock;
+    }
+
+    /**
+     * @return the event types of all chunks of the input, including the removed ones
+     */
+    List<EventType> readEventTypes() {
+        return eventTypes;
+    }
+
+    boolean hasMoreEvents() throws IOException {
+        while (current == null || !current.hasMoreEvents()) {
+            if (chunks == null || nextChunk == chunks.size()) {
+                return false;
+            }
+            readChunk(chunks.get(nextChunk++));
+        }
+        return true;
+    }
+
+    RecordedEvent readEvent() throws IOException {
+        return current.readEvent();
+    }
+
+    /**
+     * Filter a chunk into the chunk file and start parsing it
+     */
+    private void readChunk(ChunkHeader chunk) throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        clock = chunk;
+        if (chunkOut == null) {
+            chunkFile = Files.createTempFile("jfr-chunk", ".jfr");
+            chunkOut = FileChannel.open(chunkFile, StandardOpenOption.WRITE);
+        }
+        chunkOut.truncate(0).position(0);
+        boolean filtered = false;
+        if (chunk.size() <= Integer.MAX_VALUE) {
+            try {
+                ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, chunk.offset(), chunk.size());
+                ChunkFilter.EventFilter events = eventFilter == null ? null
+                        : eventFilter.apply(new MappedChunk(buffer, chunk));
+                skippedEvents += ChunkFilter.filter(buffer, chunk, removedTypes, events, chunkOut);
+                filtered = true;
+            } catch (IOException e) {
+                // The JDK parser reads the whole chunk, the events are still removed after parsing
+                logger.debug("Could not filter the events of the chunk at position {} of {}: {}",
+                        chunk.offset(), file, e.getMessage());
+                chunkOut.truncate(0).position(0);
+            }
+        }
+        if (!filtered) {
+            JFRProcessor.transferFully(in, chunk, chunkOut);
+        }
+        current = new RecordingFile(chunkFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (FileChannel input = in; FileChannel output = chunkOut; RecordingFile recording = current) {
+            if (chunks != null) {
+                logger.info("Skipped {} events of {} removed event types or outside of the time window",
+                        skippedEvents, removedTypes.size());
+            }
+        } finally {
+            if (chunkFile != null) {
+                Files.deleteIfExists(chunkFile);
+            }
+        }
+    }
+}
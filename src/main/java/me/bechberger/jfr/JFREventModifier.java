@@ -1,7 +1,11 @@
 package me.bechberger.jfr;
 
+import jdk.jfr.EventType;
+import jdk.jfr.ValueDescriptor;
 import jdk.jfr.consumer.RecordedEvent;
 
+import java.util.Set;
+
 /**
  * Interface for processing JFR events and their fields.
  * <p>
@@ -19,6 +23,93 @@ public interface JFREventModifier {
         return false;
     }
 
+    /**
+     * Check if all events of the given type should be removed from the output.
+     * <p>
+     * The result is queried once per event type and must not change during processing.
+     * Events of removed types are skipped when reading file inputs, before the JDK parser creates
+     * {@link RecordedEvent} objects for them, and {@link #shouldRemoveEvent(RecordedEvent)} is not called for them.
+     * This is much cheaper than removing them with {@link #shouldRemoveEvent(RecordedEvent)}.
+     *
+     * @param eventType The event type to check
+     * @return true if all events of this type should be removed, false otherwise
+     */
+    default boolean shouldRemoveEventType(EventType eventType) {
+        return false;
+    }
+
+    /**
+     * Check if {@link #shouldRemoveEvent(RecordedEvent)} might return true for events of the given type.
+     * <p>
+     * {@link #shouldRemoveEvent(RecordedEvent)} is not called for events of types for which this returns false.
+     * The result is queried once per event type and must not change during processing.
+     *
+     * @param eventType The event type to check
+     * @return true if events of this type might be removed, false otherwise
+     */
+    default boolean mayRemoveEventsOfType(EventType eventType) {
+        return true;
+    }
+
+    /**
+     * Check if the {@code process} methods should be called for the fields of events of the given type.
+     * <p>
+     * Events of types that are not processed are copied to the output as they are,
+     * without calling any of the {@code process} methods.
+     * {@link #shouldRemoveEvent(RecordedEvent)} is still called for them.
+     * The result is queried once per event type and must not change during processing.
+     * <p>
+     * The default implementation processes the types of {@link #interestedEventTypes()}.
+     *
+     * @param eventType The event type to check
+     * @return true if field values of events of this type might be modified, false otherwise
+     */
+    default boolean processesEventType(EventType eventType) {
+        Set<String> interestedEventTypes = interestedEventTypes();
+        return interestedEventTypes == null || interestedEventTypes.contains(eventType.getName());
+    }
+
+    /**
+     * Names of the event types whose field values might be modified, or null for all event types.
+     * <p>
+     * This is a shorthand for modifiers that know their types by name, it is only used by the default
+     * implementation of {@link #processesEventType(EventType)}. It must not change during processing.
+     *
+     * @return the names of the processed event types, null if all types are processed
+     */
+    default Set<String> interestedEventTypes() {
+        return null;
+    }
+
+    /**
+     * Check if the {@code process} methods should be called for a top-level field of events of the given type.
+     * <p>
+     * Values of fields that are not processed are copied to the output without calling the modifier,
+     * for complex fields like {@code eventThread} this includes all nested values.
+     * It is only queried for processed event types, once per event type and field,
+     * and must not change during processing.
+     *
+     * @param eventType The event type
+     * @param field     The field of the event type
+     * @return true if values of the field might be modified, false otherwise
+     */
+    default boolean processesField(EventType eventType, ValueDescriptor field) {
+        return true;
+    }
+
+    /**
+     * Check if the {@code process} methods are pure functions: their results only depend on the field name
+     * and the value, and they have no side effects that have to happen for every value.
+     * <p>
+     * Only the results of pure modifiers are cached, see {@link JFRProcessor#withStringCache(long)},
+     * {@link JFRProcessor#withPooledValueCaching(boolean)} and {@link JFRProcessor#withStackTraceInterning(boolean)}.
+     *
+     * @return true if the results of the {@code process} methods can be reused for equal values
+     */
+    default boolean isPure() {
+        return false;
+    }
+
     /**
      * Redact a string field value.
      *
@@ -1,25 +1,57 @@
 package me.bechberger.jfr;
 
 import jdk.jfr.AnnotationElement;
+import jdk.jfr.Description;
 import jdk.jfr.EventType;
+import jdk.jfr.Label;
 import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
 import jdk.jfr.ValueDescriptor;
 import jdk.jfr.consumer.RecordedEvent;
-import jdk.jfr.consumer.RecordedObject;
 import jdk.jfr.consumer.RecordingFile;
 import org.openjdk.jmc.flightrecorder.writer.RecordingImpl;
 import org.openjdk.jmc.flightrecorder.writer.api.*;
 import org.slf4j.Logger;
 import org.slf4j.helpers.NOPLogger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.lang.reflect.InaccessibleObjectException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Standalone processor for JFR recordings that applies transformations (e.g., redaction) to events.
@@ -49,82 +81,1670 @@ public class JFRProcessor {
 
     private final JFREventModifier modifier;
     private final Path inputPath;
+    private final ReadableByteChannel inputChannel;
     private RecordingImpl output;
     private final Logger logger;
+    /**
+     * Cache of {@link JFREventModifier#processesEventType(EventType)} by event type name
+     */
+    private final Map<String, Boolean> processedEventTypes = new HashMap<>();
+    /**
+     * Cache of {@link JFREventModifier#shouldRemoveEventType(EventType)} by event type name
+     */
+    private final Map<String, Boolean> removedEventTypes = new HashMap<>();
+    /**
+     * Cache of {@link JFREventModifier#mayRemoveEventsOfType(EventType)} by event type name
+     */
+    private final Map<String, Boolean> removableEventTypes = new HashMap<>();
+    /**
+     * Compiled write plans by event type, shared by the types of all input chunks
+     */
+    private final EventTypeMap<WritePlan> writePlans = new EventTypeMap<>();
+    /**
+     * Cache of the constant pool decision by type name
+     */
+    private final Map<String, Boolean> constantPoolTypes = new HashMap<>();
+    private ConstantPoolPolicy constantPoolPolicy = ConstantPoolPolicy.INPUT;
+    private boolean copyUnchangedChunks = false;
+    private boolean useVirtualThreads = false;
+    /**
+     * Transformed values of the input constant pools, null if pooled values are transformed for every event
+     */
+    private PooledValueCache pooledValues;
+    /**
+     * Results of the modifier for string values, null if the modifier is called for every value
+     */
+    private StringCache strings;
+    /**
+     * The events to keep, null to keep events of all times
+     */
+    private TimeWindow timeWindow;
+    /**
+     * Downsampling of high-frequency event types, null to keep all events
+     */
+    private EventSampler sampler;
+    /**
+     * Sampling state of the current output, null without a sampler
+     */
+    private EventSampler.Session sampling;
+    /**
+     * Aggregation of event types into summary events, null to write all events
+     */
+    private EventAggregator aggregator;
+    /**
+     * Aggregation state of the current output, null without an aggregator
+     */
+    private EventAggregator.Session aggregation;
+    /**
+     * Maximum number of frames of the written stack traces, 0 for no limit
+     */
+    private int maxStackDepth = 0;
+    private boolean internStackTraces = false;
+    /**
+     * Stack traces of the current output, null if they are written like other values
+     */
+    private StackTraceTable stackTraces;
+    /**
+     * Registered summary event types by name
+     */
+    private final Map<String, SummaryType> summaryTypes = new HashMap<>();
+    /**
+     * Maximum number of events per output chunk, 0 for no limit
+     */
+    private long maxChunkEvents = 0;
+    /**
+     * Approximate maximum size of an output chunk in bytes, 0 for no limit
+     */
+    private long maxChunkSize = 0;
+    /**
+     * Splits the current output into chunks, null if the output is a single chunk
+     */
+    private RollingOutput rolling;
+    /**
+     * Write plans for the current output chunk by event type, used instead of {@link #writePlans} when the output
+     * is split into chunks. Only the thread that writes the output uses them, the reader of the pipelined mode
+     * keeps transforming events with the plans in {@link #writePlans}
+     */
+    private final EventTypeMap<WritePlan> chunkWritePlans = new EventTypeMap<>();
+    /**
+     * Registrations of the event and summary types of the output by type name in the order of registration,
+     * when the output is split into chunks. Every chunk repeats them in this order: the JDK parser keeps the
+     * constant lookups of a type id across chunks, so every type needs the same id in all chunks
+     */
+    private final Map<String, Runnable> typeRegistrations = new LinkedHashMap<>();
+    /**
+     * Files of the current routed output, null if the output is a single stream
+     */
+    private OutputRouter.Session routing;
+    /**
+     * The writer of the current output of {@link #processNative(OutputStream)}, null for the JMC writer
+     */
+    private NativeRecordingWriter nativeOutput;
+    /**
+     * Compiled plans for the native writer by event type
+     */
+    private final EventTypeMap<NativeWritePlan> nativePlans = new EventTypeMap<>();
 
     /**
      * Create a JFR processor with a file-based input.
+     * <p>
+     * Recordings compressed with gzip or stored in a zip file are decompressed transparently,
+     * the path can also point into a zip file system.
+     *
+     * @param modifier The modifier to use for transforming events and fields
+     * @param inputPath Path to the input JFR file
+     */
+    public JFRProcessor(JFREventModifier modifier, Path inputPath, Logger logger) {
+        this(modifier, inputPath, null, logger);
+    }
+
+    public JFRProcessor(JFREventModifier modifier, Path inputPath) {
+        this(modifier, inputPath, NOPLogger.NOP_LOGGER);
+    }
+
+    /**
+     * Create a JFR processor that reads the recording from a channel, e.g. a pipe or a network connection.
+     * <p>
+     * The JDK parser only reads files, so the recording is written to disk before it is parsed.
+     * {@link #processParallel(OutputStream, int)} processes the recording chunk by chunk and only keeps the chunks
+     * currently being processed in temporary files, never the whole recording. The other processing methods first
+     * copy the whole recording into a temporary file. The channel can only be processed once.
+     *
+     * @param modifier The modifier to use for transforming events and fields
+     * @param input Channel to read the recording from, it is read to its end but not closed
+     */
+    public JFRProcessor(JFREventModifier modifier, ReadableByteChannel input, Logger logger) {
+        this(modifier, null, input, logger);
+    }
+
+    public JFRProcessor(JFREventModifier modifier, ReadableByteChannel input) {
+        this(modifier, input, NOPLogger.NOP_LOGGER);
+    }
+
+    /**
+     * Create a JFR processor that reads the recording from an input stream.
+     * Streams compressed with gzip or zip are decompressed transparently.
+     *
+     * @param modifier The modifier to use for transforming events and fields
+     * @param input Stream to read the recording from, it is read to its end but not closed
+     * @see #JFRProcessor(JFREventModifier, ReadableByteChannel, Logger)
+     */
+    public JFRProcessor(JFREventModifier modifier, InputStream input, Logger logger) {
+        this(modifier, Channels.newChannel(CompressedInput.decompressing(input)), logger);
+    }
+
+    public JFRProcessor(JFREventModifier modifier, InputStream input) {
+        this(modifier, input, NOPLogger.NOP_LOGGER);
+    }
+
+    private JFRProcessor(JFREventModifier modifier, Path inputPath, ReadableByteChannel inputChannel, Logger logger) {
+        this.modifier = modifier;
+        this.inputPath = inputPath;
+        this.inputChannel = inputChannel;
+        this.logger = logger;
+    }
+
+    private void initRecording(OutputStream outputStream) {
+        this.rolling = maxChunkEvents > 0 || maxChunkSize > 0
+                ? new RollingOutput(outputStream, newExecutor(RollingOutput.MAX_CLOSING_CHUNKS, "jfr-chunk-closer"),
+                        maxChunkEvents, maxChunkSize)
+                : null;
+        this.output = newRecording(rolling != null ? rolling.nextChunk() : outputStream);
+        this.chunkWritePlans.clear();
+        this.typeRegistrations.clear();
+        this.sampling = sampler != null ? sampler.newSession() : null;
+        this.aggregation = aggregator != null ? aggregator.newSession() : null;
+        this.stackTraces = maxStackDepth > 0 || internStackTraces
+                ? new StackTraceTable(maxStackDepth, internStackTraces) : null;
+    }
+
+    private static RecordingImpl newRecording(OutputStream outputStream) {
+        // Initialize JDK types for content type annotations (Timestamp, etc.) to work properly
+        return (RecordingImpl)
+                Recordings.newRecording(
+                        outputStream,
+                        r -> {
+                        });
+    }
+
+    /**
+     * Close the current output chunk and continue in a new chunk with empty constant pools,
+     * if the current chunk is full
+     */
+    private void rollOutputIfFull() {
+        if (rolling != null && rolling.isChunkFull()) {
+            rollOutput();
+        }
+    }
+
+    /**
+     * Synchronized with the compilation of write plans, which register their types in the current output
+     */
+    private synchronized void rollOutput() {
+        try {
+            rolling.finishChunk(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        output = newRecording(rolling.nextChunk());
+        // Types, plans and output values belong to the closed chunk
+        chunkWritePlans.clear();
+        summaryTypes.clear();
+        if (pooledValues != null) {
+            pooledValues.clearOutputValues();
+        }
+        for (Runnable registration : List.copyOf(typeRegistrations.values())) {
+            registration.run();
+        }
+        logger.debug("Started output chunk {}", rolling.chunks);
+    }
+
+    /**
+     * Process the input JFR file and write the transformed output.
+     *
+     * @param outputStream The output stream to write the processed recording to
+     * @return The recording implementation
+     * @throws IOException if processing fails
+     */
+    public RecordingImpl process(OutputStream outputStream) throws IOException {
+        initRecording(outputStream);
+
+        logger.info("Starting JFR event processing");
+
+        int totalEvents = 0;
+        int removedEvents = 0;
+        int written = 0;
+
+        List<Path> temporaryFiles = new ArrayList<>();
+        try (FilteredRecordingFile input = openInput(temporaryFiles, false)) {
+            registerEventTypes(input.readEventTypes());
+            while (input.hasMoreEvents()) {
+                var event = input.readEvent();
+                totalEvents++;
+
+                // Write event immediately (no need to store in memory)
+                if (!processEvent(event)) {
+                    removedEvents++;
+                    logger.debug("Removed event #{}: {}", removedEvents, event.getEventType().getName());
+                    continue; // Skip this event
+                }
+                written++;
+
+                if (written % 10000 == 0) {
+                    logger.info("Written {} events ({} removed)", written, removedEvents);
+                }
+            }
+            finishSampling();
+            finishAggregation();
+        } finally {
+            deleteTemporaryFiles(temporaryFiles);
+        }
+
+        logger.info("JFR processing complete: {} total events, {} processed, {} removed",
+                totalEvents, written, removedEvents);
+
+        return output;
+    }
+
+    /**
+     * Process the input JFR file and write the transformed events to multiple files, see {@link OutputRouter}.
+     * <p>
+     * The input is read only once. Removing, sampling and aggregating events works like for a single output,
+     * then every event is written to the current file of its key.
+     *
+     * @param router Decides which file every event is written to
+     * @return The written files, in the order in which they were finished
+     * @throws IOException if processing or writing a file fails
+     */
+    public List<Path> process(OutputRouter router) throws IOException {
+        ExecutorService closer = newExecutor(OutputRouter.MAX_CLOSING_FILES, "jfr-file-closer");
+        this.routing = router.newSession(this::createSinkProcessor, closer, logger);
+        this.sampling = sampler != null ? sampler.newSession() : null;
+        this.aggregation = aggregator != null ? aggregator.newSession() : null;
+        logger.info("Starting routed JFR event processing");
+
+        int totalEvents = 0;
+        int written = 0;
+        List<Path> files;
+        List<Path> temporaryFiles = new ArrayList<>();
+        try (FilteredRecordingFile input = openInput(temporaryFiles, false)) {
+            while (input.hasMoreEvents()) {
+                totalEvents++;
+                if (processEvent(input.readEvent())) {
+                    written++;
+                }
+            }
+            finishSampling();
+            finishAggregation();
+            files = routing.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            closer.shutdown();
+            deleteTemporaryFiles(temporaryFiles);
+        }
+
+        logger.info("Routed JFR processing complete: {} total events, {} processed, {} removed, {} files",
+                totalEvents, written, totalEvents - written, files.size());
+        return files;
+    }
+
+    /**
+     * Process the input JFR file and write the transformed output with a writer that encodes the events directly,
+     * without the JMC writer.
+     * <p>
+     * The JMC writer of {@link #process(OutputStream)} creates a value with a map of field values for every event
+     * and every nested value, and a new buffer for every written event. The native writer encodes the field values
+     * into a reusable buffer while they are read and writes threads, classes, stack traces and other pooled values
+     * once per chunk, so writing an event does not allocate apart from new pooled values. For large recordings,
+     * this takes a lot of load off the garbage collector.
+     * <p>
+     * The options of {@link #process(OutputStream)} apply. With a pure modifier, see {@link JFREventModifier#isPure()},
+     * pooled values are transformed once per output chunk and identical stack traces of the input are written once
+     * per chunk, like with {@link #withPooledValueCaching(boolean)}. Otherwise, the pooled values that the modifier
+     * processes are transformed and written for every event that references them, the others are still written
+     * once per chunk. The native writer does not aggregate events, with an aggregator the output is written
+     * by {@link #process(OutputStream)}.
+     * <p>
+     * The output keeps the ticks of the input and the chunk headers use the clock of the input. Input chunks whose
+     * ticks count with another clock, like the chunks of recordings of different JVMs that were concatenated,
+     * start a new output chunk with their clock. The events that the sampler holds back are written before.
+     *
+     * @param outputStream The output stream to write the processed recording to, it is flushed but not closed
+     * @throws IOException if processing fails
+     */
+    public void processNative(OutputStream outputStream) throws IOException {
+        if (aggregator != null) {
+            logger.info("The native writer does not support aggregation, writing the output with the JMC writer");
+            process(new FilterOutputStream(outputStream) {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    out.write(bytes, offset, length);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            }).close();
+            return;
+        }
+        logger.info("Starting native JFR event processing");
+
+        int totalEvents = 0;
+        int written = 0;
+        List<Path> temporaryFiles = new ArrayList<>();
+        try (FilteredRecordingFile recording = openInput(temporaryFiles, true)) {
+            if (recording.clock() == null) {
+                throw new IOException("The input recording is empty");
+            }
+            this.nativeOutput = new NativeRecordingWriter(outputStream, recording.clock(), maxChunkEvents, maxChunkSize,
+                    modifier.isPure());
+            this.nativePlans.clear();
+            this.sampling = sampler != null ? sampler.newSession() : null;
+            this.aggregation = null;
+            this.stackTraces = maxStackDepth > 0 ? new StackTraceTable(maxStackDepth, false) : null;
+            for (EventType eventType : recording.readEventTypes()) {
+                if (!removesEventType(eventType)) {
+                    nativeOutput.eventType(eventType, this::useConstantPool);
+                }
+            }
+            while (recording.hasMoreEvents()) {
+                if (!nativeOutput.hasSameClock(recording.clock())) {
+                    useNativeClock(recording.clock());
+                }
+                totalEvents++;
+                if (processEvent(recording.readEvent())) {
+                    written++;
+                }
+            }
+            finishSampling();
+            nativeOutput.finish();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            this.nativeOutput = null;
+            deleteTemporaryFiles(temporaryFiles);
+        }
+
+        logger.info("Native JFR processing complete: {} total events, {} processed, {} removed",
+                totalEvents, written, totalEvents - written);
+    }
+
+    /**
+     * Switch the native output to the clock of another input chunk. The sampler holds back events whose ticks
+     * count with the previous clock, so they are written first and sampling starts anew.
+     */
+    private void useNativeClock(ChunkHeader clock) throws IOException {
+        finishSampling();
+        this.sampling = sampler != null ? sampler.newSession() : null;
+        nativeOutput.useClock(clock);
+    }
+
+    /**
+     * Start writing events from another source, like an event stream, to the given output.
+     * Events are then written with {@link #processEvent(RecordedEvent)}.
+     *
+     * @param outputStream The output stream, written and closed when the returned recording is closed
+     * @return The recording implementation
+     */
+    RecordingImpl startOutput(OutputStream outputStream) {
+        initRecording(outputStream);
+        return output;
+    }
+
+    /**
+     * Start writing events from another source, like an event stream, to the files of the given router.
+     * Events are then written with {@link #processEvent(RecordedEvent)}.
+     *
+     * @param closer Closes finished files in the background, see {@link OutputRouter#newSession}
+     * @return The session that finishes the files
+     */
+    OutputRouter.Session startOutput(OutputRouter router, ExecutorService closer) {
+        routing = router.newSession(this::createSinkProcessor, closer, logger);
+        return routing;
+    }
+
+    /**
+     * Apply the modifier to an event and write it to the output, unless the modifier removes it.
+     *
+     * @return true if the event was written, false if it was removed
+     */
+    boolean processEvent(RecordedEvent event) {
+        if (removesEventType(event.getEventType()) || !isInTimeWindow(event)) {
+            return false;
+        }
+        if (sampling == null) {
+            return writeUnlessRemoved(event);
+        }
+        boolean written = sampling.offer(event) && writeUnlessRemoved(event);
+        writeReleasedEvents();
+        return written;
+    }
+
+    private boolean writeUnlessRemoved(RecordedEvent event) {
+        if (mayRemoveEventsOfType(event.getEventType()) && modifier.shouldRemoveEvent(event)) {
+            return false;
+        }
+        if (aggregation != null && aggregation.add(event)) {
+            writeSummaries();
+            return false;
+        }
+        writeEvent(event);
+        return true;
+    }
+
+    /**
+     * Write the sampled events that the sampler held back
+     */
+    private void writeReleasedEvents() {
+        for (RecordedEvent released = sampling.pollReleased(); released != null; released = sampling.pollReleased()) {
+            writeUnlessRemoved(released);
+        }
+    }
+
+    /**
+     * Write the sampled events that the sampler still holds back at the end of the input
+     */
+    private void finishSampling() {
+        if (sampling != null) {
+            sampling.finish();
+            writeReleasedEvents();
+        }
+    }
+
+    /**
+     * Write the summaries of the buckets that the aggregator closed
+     */
+    private void writeSummaries() {
+        for (EventAggregator.Summary summary = aggregation.pollClosed(); summary != null; summary = aggregation.pollClosed()) {
+            writeSummary(summary);
+        }
+    }
+
+    /**
+     * Write the summaries of all buckets that are still open at the end of the input
+     */
+    private void finishAggregation() {
+        if (aggregation != null) {
+            aggregation.finish();
+            writeSummaries();
+        }
+    }
+
+    /**
+     * Process the input JFR file chunk by chunk on a pool of worker threads and write the
+     * transformed chunks to the output stream in input order.
+     * <p>
+     * Every JFR chunk is self-contained, so each input chunk is decoded, modified and written
+     * into its own output chunk. Concatenating these chunks yields a valid JFR file.
+     * Recordings with a single chunk gain nothing from this mode.
+     * <p>
+     * Inputs from a stream are read one chunk at a time, at most {@code 2 * parallelism} chunks
+     * are buffered at once. Each of them is spooled to a temporary file for the JDK parser.
+     * <p>
+     * The JDK parser only reads files and always reads all chunks of a file, so every chunk of a recording
+     * with multiple chunks is copied to a temporary file before it is parsed. The chunk is usually still in the
+     * page cache, but this mode writes the input once more. Recordings with a single chunk are parsed in place.
+     * <p>
+     * The output chunks are written independently, see {@link ChunkWriter} for how they are combined.
+     * <p>
+     * The modifier is called concurrently from multiple threads and therefore has to be thread-safe.
+     *
+     * @param outputStream The output stream to write the processed recording to, it is not closed
+     * @param parallelism The number of worker threads
+     * @throws IOException if processing fails
+     */
+    public void processParallel(OutputStream outputStream, int parallelism) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, got " + parallelism);
+        }
+        ExecutorService executor = newExecutor(parallelism, "jfr-chunk-processor");
+        try {
+            if (inputPath == null) {
+                processStreamChunks(outputStream, parallelism, executor, inputChannel);
+            } else if (CompressedInput.needsDecompression(inputPath)) {
+                try (ReadableByteChannel input = Channels.newChannel(CompressedInput.open(inputPath))) {
+                    processStreamChunks(outputStream, parallelism, executor, input);
+                }
+            } else {
+                processFileChunks(outputStream, parallelism, executor);
+            }
+            outputStream.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean isInTimeWindow(RecordedEvent event) {
+        return timeWindow == null || timeWindow.contains(event.getStartTime());
+    }
+
+    /**
+     * Open the input for the JDK parser, without the events of the removed event types and the events
+     * outside of the time window, see {@link FilteredRecordingFile}.
+     *
+     * @param temporaryFiles Collects the created temporary files, the caller deletes them after reading
+     * @param separateClocks Whether chunks with different clocks are read one by one, only the native writer
+     *                       converts ticks itself and needs this
+     */
+    private FilteredRecordingFile openInput(List<Path> temporaryFiles, boolean separateClocks) throws IOException {
+        Path input = inputPath;
+        if (input == null) {
+            input = spoolInput();
+            temporaryFiles.add(input);
+        } else if (CompressedInput.needsDecompression(input)) {
+            input = CompressedInput.decompressToTemporaryFile(input);
+            temporaryFiles.add(input);
+        }
+        return new FilteredRecordingFile(input, this::removesEventType,
+                timeWindow == null ? null : timeWindow::overlaps,
+                timeWindow == null ? null : timeWindow::outsideEvents, separateClocks, logger);
+    }
+
+    /**
+     * Copy the whole input channel into a temporary file, for the processing modes that need random access
+     */
+    private Path spoolInput() throws IOException {
+        Path spooled = Files.createTempFile("jfr-input", ".jfr");
+        try (FileChannel out = FileChannel.open(spooled, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (inputChannel.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+            return spooled;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spooled);
+            throw e;
+        }
+    }
+
+    private static void deleteTemporaryFiles(List<Path> temporaryFiles) throws IOException {
+        for (Path file : temporaryFiles) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Number of events that are transformed together in the pipelined mode
+     */
+    private static final int PIPELINE_BATCH_SIZE = 256;
+
+    /**
+     * Process the input JFR file in a pipeline: the calling thread reads the events, a pool of
+     * transformer threads applies the modifier and a single writer thread writes the output.
+     * <p>
+     * The stages exchange batches of events. At most {@code 2 * transformers} batches are in flight,
+     * the reader waits if the writer falls behind. The writer writes the batches in input order,
+     * so the output contains the events in the same order as {@link #process(OutputStream)}.
+     * This mode pays off for modifiers that do expensive work, like regular expressions on strings,
+     * and also works for recordings with a single chunk.
+     * <p>
+     * The modifier is called concurrently from multiple threads and therefore has to be thread-safe.
+     *
+     * @param outputStream The output stream to write the processed recording to
+     * @param transformers The number of transformer threads
+     * @return The recording implementation, close it to write the output
+     * @throws IOException if processing fails
+     */
+    public RecordingImpl processPipelined(OutputStream outputStream, int transformers) throws IOException {
+        if (transformers < 1) {
+            throw new IllegalArgumentException("Number of transformers must be at least 1, got " + transformers);
+        }
+        initRecording(outputStream);
+        logger.info("Starting pipelined JFR processing with {} transformers", transformers);
+
+        ExecutorService transformerExecutor = newExecutor(transformers, "jfr-event-transformer");
+        ExecutorService writerExecutor = newExecutor(1, "jfr-event-writer");
+        BlockingQueue<Future<EventBatch>> queue = new ArrayBlockingQueue<>(transformers * 2);
+        List<Path> temporaryFiles = new ArrayList<>();
+        try (FilteredRecordingFile input = openInput(temporaryFiles, false)) {
+            registerEventTypes(input.readEventTypes());
+            Future<Integer> writer = writerExecutor.submit(() -> writeBatches(queue));
+            int totalEvents = 0;
+            EventBatch batch = new EventBatch();
+            while (input.hasMoreEvents()) {
+                RecordedEvent event = input.readEvent();
+                totalEvents++;
+                if (removesEventType(event.getEventType()) || !isInTimeWindow(event)) {
+                    continue;
+                }
+                if (sampling == null || sampling.offer(event)) {
+                    batch = addToBatch(batch, event, queue, transformerExecutor, writer);
+                }
+                batch = addReleasedEvents(batch, queue, transformerExecutor, writer);
+            }
+            if (sampling != null) {
+                sampling.finish();
+                batch = addReleasedEvents(batch, queue, transformerExecutor, writer);
+            }
+            if (aggregation != null) {
+                aggregation.finish();
+                batch = addClosedSummaries(batch, queue, transformerExecutor, writer);
+            }
+            if (batch.size > 0) {
+                EventBatch last = batch;
+                enqueue(queue, transformerExecutor.submit(() -> last.transform(modifier)), writer);
+            }
+            enqueue(queue, END_OF_BATCHES, writer);
+            int written = awaitResult(writer);
+            logger.info("Pipelined JFR processing complete: {} total events, {} processed, {} removed",
+                    totalEvents, written, totalEvents - written);
+        } finally {
+            transformerExecutor.shutdownNow();
+            writerExecutor.shutdownNow();
+            deleteTemporaryFiles(temporaryFiles);
+        }
+        return output;
+    }
+
+    /**
+     * Add an event to the batch, full batches are submitted to the transformers.
+     *
+     * @return The batch to add the next event to
+     */
+    private EventBatch addToBatch(EventBatch batch, RecordedEvent event, BlockingQueue<Future<EventBatch>> queue,
+                                  ExecutorService transformerExecutor, Future<?> writer) throws IOException {
+        EventType eventType = event.getEventType();
+        if (aggregation != null && aggregator.aggregates(eventType.getName())) {
+            if (mayRemoveEventsOfType(eventType) && modifier.shouldRemoveEvent(event)) {
+                return batch;
+            }
+            aggregation.add(event);
+            return addClosedSummaries(batch, queue, transformerExecutor, writer);
+        }
+        batch.add(event, writePlan(eventType), mayRemoveEventsOfType(eventType));
+        return submitIfFull(batch, queue, transformerExecutor, writer);
+    }
+
+    /**
+     * Add the summaries of the buckets that the aggregator closed to the batch, so that the writer writes them
+     * at the same position as {@link #process(OutputStream)}
+     *
+     * @return The batch to add the next event to
+     */
+    private EventBatch addClosedSummaries(EventBatch batch, BlockingQueue<Future<EventBatch>> queue,
+                                          ExecutorService transformerExecutor, Future<?> writer) throws IOException {
+        for (EventAggregator.Summary summary = aggregation.pollClosed(); summary != null; summary = aggregation.pollClosed()) {
+            batch.addSummary(summary);
+            batch = submitIfFull(batch, queue, transformerExecutor, writer);
+        }
+        return batch;
+    }
+
+    /**
+     * Submit the batch to the transformers if it is full
+     *
+     * @return The batch to add the next event to
+     */
+    private EventBatch submitIfFull(EventBatch batch, BlockingQueue<Future<EventBatch>> queue,
+                                    ExecutorService transformerExecutor, Future<?> writer) throws IOException {
+        if (batch.size < PIPELINE_BATCH_SIZE) {
+            return batch;
+        }
+        enqueue(queue, transformerExecutor.submit(() -> batch.transform(modifier)), writer);
+        return new EventBatch();
+    }
+
+    /**
+     * Add the sampled events that the sampler held back to the batch
+     *
+     * @return The batch to add the next event to
+     */
+    private EventBatch addReleasedEvents(EventBatch batch, BlockingQueue<Future<EventBatch>> queue,
+                                         ExecutorService transformerExecutor, Future<?> writer) throws IOException {
+        if (sampling == null) {
+            return batch;
+        }
+        for (RecordedEvent released = sampling.pollReleased(); released != null; released = sampling.pollReleased()) {
+            batch = addToBatch(batch, released, queue, transformerExecutor, writer);
+        }
+        return batch;
+    }
+
+    /**
+     * Marks the end of the batches for the writer stage
+     */
+    private static final Future<EventBatch> END_OF_BATCHES = CompletableFuture.completedFuture(null);
+
+    /**
+     * Events read by the reader stage, the transformer stage fills in the transformed values.
+     * Summaries of the aggregator are passed through to the writer in the same sequence
+     */
+    private static class EventBatch {
+        private final RecordedEvent[] events = new RecordedEvent[PIPELINE_BATCH_SIZE];
+        private final EventType[] types = new EventType[PIPELINE_BATCH_SIZE];
+        private final WritePlan[] plans = new WritePlan[PIPELINE_BATCH_SIZE];
+        private final boolean[] removable = new boolean[PIPELINE_BATCH_SIZE];
+        /**
+         * The summaries, null for events
+         */
+        private final EventAggregator.Summary[] summaries = new EventAggregator.Summary[PIPELINE_BATCH_SIZE];
+        /**
+         * The transformed values, null for removed events and summaries
+         */
+        private final Object[][] values = new Object[PIPELINE_BATCH_SIZE][];
+        private int size = 0;
+
+        void add(RecordedEvent event, WritePlan plan, boolean mayBeRemoved) {
+            events[size] = event;
+            types[size] = event.getEventType();
+            plans[size] = plan;
+            removable[size] = mayBeRemoved;
+            size++;
+        }
+
+        void addSummary(EventAggregator.Summary summary) {
+            summaries[size] = summary;
+            size++;
+        }
+
+        EventBatch transform(JFREventModifier modifier) {
+            for (int i = 0; i < size; i++) {
+                if (summaries[i] == null && (!removable[i] || !modifier.shouldRemoveEvent(events[i]))) {
+                    values[i] = plans[i].transform(events[i]);
+                }
+                events[i] = null;
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Writer stage: write the transformed batches in order until the end marker
+     *
+     * @return The number of written events
+     */
+    private int writeBatches(BlockingQueue<Future<EventBatch>> queue) throws IOException, InterruptedException {
+        int written = 0;
+        while (true) {
+            Future<EventBatch> next = queue.take();
+            if (next == END_OF_BATCHES) {
+                return written;
+            }
+            EventBatch batch = awaitResult(next);
+            for (int i = 0; i < batch.size; i++) {
+                if (batch.summaries[i] != null) {
+                    // Registers the summary type on first use, like the reader registers the types of its plans
+                    synchronized (this) {
+                        writeSummary(batch.summaries[i]);
+                    }
+                } else if (batch.values[i] != null) {
+                    rollOutputIfFull();
+                    // Plans of the reader are compiled against the first chunk, the values have the same layout
+                    WritePlan plan = rolling == null ? batch.plans[i] : outputPlan(batch.types[i]);
+                    output.writeEvent(plan.writeTransformed(batch.values[i]));
+                    countWrittenEvent();
+                    written++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand a batch to the writer stage, waiting while the queue is full.
+     * Fails with the error of the writer if it stopped.
+     */
+    private static void enqueue(BlockingQueue<Future<EventBatch>> queue, Future<EventBatch> batch, Future<?> writer) throws IOException {
+        try {
+            while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                if (writer.isDone()) {
+                    awaitResult(writer);
+                    throw new IllegalStateException("Writer stage stopped early");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing events");
+        }
+    }
+
+    private ExecutorService newExecutor(int threads, String name) {
+        ThreadFactory factory = useVirtualThreads
+                ? Thread.ofVirtual().name(name).factory()
+                : Thread.ofPlatform().name(name).daemon().factory();
+        return Executors.newFixedThreadPool(threads, factory);
+    }
+
+    private void processFileChunks(OutputStream outputStream, int parallelism, ExecutorService executor) throws IOException {
+        List<ChunkHeader> chunks;
+        try (FileChannel channel = FileChannel.open(inputPath, StandardOpenOption.READ)) {
+            chunks = ChunkHeader.readAll(channel);
+        }
+        if (timeWindow != null) {
+            int inputChunks = chunks.size();
+            chunks = chunks.stream().filter(timeWindow::overlaps).toList();
+            logger.info("Skipped {} of {} chunks outside of the time window", inputChunks - chunks.size(), inputChunks);
+        }
+        Set<String> untouchedEventTypes = copiesUnchangedChunks() ? findUntouchedEventTypes(inputPath) : Set.of();
+        logger.info("Starting parallel JFR processing of {} chunks with {} threads", chunks.size(), parallelism);
+
+        try (FileChannel input = FileChannel.open(inputPath, StandardOpenOption.READ)) {
+            ChunkQueue queue = new ChunkQueue(new ChunkWriter(outputStream, input), parallelism);
+            for (ChunkHeader chunk : chunks) {
+                queue.add(executor.submit(() -> processChunk(chunk, untouchedEventTypes)), null);
+            }
+            queue.finish();
+            logger.info("Parallel JFR processing complete: {} chunks, {} copied unchanged",
+                    chunks.size(), queue.writer.copiedChunks);
+        }
+    }
+
+    private void processStreamChunks(OutputStream outputStream, int parallelism, ExecutorService executor,
+                                     ReadableByteChannel input) throws IOException {
+        logger.info("Starting parallel JFR processing of stream with {} threads", parallelism);
+        ChunkQueue queue = new ChunkQueue(new ChunkWriter(outputStream, null), parallelism);
+        ByteBuffer headerBuffer = ByteBuffer.allocate(ChunkHeader.HEADER_SIZE);
+        int chunks = 0;
+        long position = 0;
+        try {
+            while (true) {
+                ChunkHeader chunk = ChunkHeader.read(input, headerBuffer, position);
+                if (chunk == null) {
+                    break;
+                }
+                position = chunk.end();
+                if (timeWindow != null && !timeWindow.overlaps(chunk)) {
+                    skipChunk(input, chunk);
+                    continue;
+                }
+                Path chunkFile = Files.createTempFile("jfr-chunk", ".jfr");
+                try {
+                    spoolChunk(input, headerBuffer, chunk, chunkFile);
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(chunkFile);
+                    throw e;
+                }
+                chunks++;
+                Set<String> untouchedEventTypes = copiesUnchangedChunks() ? findUntouchedEventTypes(chunkFile) : Set.of();
+                queue.add(executor.submit(() -> processSpooledChunk(chunk, chunkFile, untouchedEventTypes)), chunkFile);
+            }
+            queue.finish();
+        } finally {
+            queue.deleteSpooledFiles();
+        }
+        logger.info("Parallel JFR processing complete: {} chunks, {} copied unchanged",
+                chunks, queue.writer.copiedChunks);
+    }
+
+    /**
+     * Read the rest of the chunk of the input stream whose header has just been read into the given file.
+     */
+    private void spoolChunk(ReadableByteChannel input, ByteBuffer headerBuffer, ChunkHeader chunk, Path chunkFile) throws IOException {
+        try (FileChannel out = FileChannel.open(chunkFile, StandardOpenOption.WRITE)) {
+            headerBuffer.rewind();
+            while (headerBuffer.hasRemaining()) {
+                out.write(headerBuffer);
+            }
+            long written = ChunkHeader.HEADER_SIZE;
+            while (written < chunk.size()) {
+                long transferred = out.transferFrom(input, written, chunk.size() - written);
+                if (transferred <= 0) {
+                    throw new IOException("Incomplete chunk at position " + chunk.offset());
+                }
+                written += transferred;
+            }
+        }
+    }
+
+    /**
+     * Read and drop the rest of the chunk of the input stream whose header has just been read.
+     */
+    private void skipChunk(ReadableByteChannel input, ChunkHeader chunk) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long remaining = chunk.size() - ChunkHeader.HEADER_SIZE;
+        while (remaining > 0) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+            int read = input.read(buffer);
+            if (read < 0) {
+                throw new IOException("Incomplete chunk at position " + chunk.offset());
+            }
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Chunks in processing, written to the output in order as they complete.
+     * The number of chunks waiting to be written is bounded to twice the parallelism.
+     */
+    private static class ChunkQueue {
+        private final ChunkWriter writer;
+        private final int parallelism;
+        private final Deque<Future<ProcessedChunk>> pending = new ArrayDeque<>();
+        private final Deque<Path> spooledFiles = new ArrayDeque<>();
+
+        ChunkQueue(ChunkWriter writer, int parallelism) {
+            this.writer = writer;
+            this.parallelism = parallelism;
+        }
+
+        /**
+         * @param chunk       The chunk in processing
+         * @param spooledFile The file the chunk was spooled to, deleted by the processing, or null
+         */
+        void add(Future<ProcessedChunk> chunk, Path spooledFile) throws IOException {
+            pending.add(chunk);
+            if (spooledFile != null) {
+                spooledFiles.add(spooledFile);
+            }
+            if (pending.size() >= parallelism * 2) {
+                writeNext();
+            }
+        }
+
+        void finish() throws IOException {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+        }
+
+        private void writeNext() throws IOException {
+            writer.write(awaitResult(pending.poll()));
+            spooledFiles.poll();
+        }
+
+        /**
+         * Delete the spooled files of chunks that were not processed, e.g. after a failure
+         */
+        void deleteSpooledFiles() {
+            for (Path file : spooledFiles) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // Best effort, the file might still be in use by a worker
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy chunks that contain only events of untouched types to the output without decoding them,
+     * when processing in parallel.
+     * <p>
+     * An event type is untouched if the modifier neither processes nor removes its events, see
+     * {@link JFREventModifier#processesEventType(EventType)} and {@link JFREventModifier#mayRemoveEventsOfType(EventType)}.
+     * Copied chunks are transferred to the output with {@link FileChannel#transferTo}, which avoids copying
+     * the data through the Java heap if the output is a {@link FileOutputStream}.
+     *
+     * @param copyUnchangedChunks whether to copy unchanged chunks
+     * @return this processor
+     */
+    public JFRProcessor withChunkCopying(boolean copyUnchangedChunks) {
+        this.copyUnchangedChunks = copyUnchangedChunks;
+        return this;
+    }
+
+    /**
+     * Set the policy that decides which complex types are stored in the constant pool of the output.
+     * <p>
+     * By default, the decision of the input recording is kept.
+     *
+     * @param constantPoolPolicy the policy to use
+     * @return this processor
+     */
+    public JFRProcessor withConstantPoolPolicy(ConstantPoolPolicy constantPoolPolicy) {
+        this.constantPoolPolicy = constantPoolPolicy;
+        return this;
+    }
+
+    /**
+     * Transform every constant pool entry of the input only once, instead of once per event that references it.
+     * <p>
+     * Threads, classes, methods, stack traces and other pooled values are shared by many events.
+     * With this option, the modifier is called once for the fields of each such value and the result
+     * is reused for all events that reference it, so the cost of the modifier depends on the number
+     * of distinct values instead of the number of events. This requires a pure modifier, see
+     * {@link JFREventModifier#isPure()}.
+     * <p>
+     * The output value of each pooled value is also created only once, the writer then does not have to
+     * rebuild and hash the value for every event to find it in the constant pool of the output.
+     * This also applies to the events of types that the modifier does not process.
+     *
+     * @param cachePooledValues whether to transform pooled values only once
+     * @return this processor
+     * @throws IllegalArgumentException if pooled values are cached and the modifier is not pure
+     */
+    public JFRProcessor withPooledValueCaching(boolean cachePooledValues) {
+        if (cachePooledValues && !modifier.isPure()) {
+            throw new IllegalArgumentException("Pooled value caching requires a pure modifier, see JFREventModifier.isPure()");
+        }
+        this.pooledValues = cachePooledValues ? new PooledValueCache(this::isConstantPoolInInput) : null;
+        return this;
+    }
+
+    /**
+     * Reuse the results of {@link JFREventModifier#process(String, String)} for repeated values of a field.
+     * <p>
+     * Many string fields have only a few distinct values, like host names or paths, and the cache
+     * avoids calling expensive modifiers, e.g. regex-based redaction, again for each of them.
+     * The cache is keyed by field name and value and evicts the least recently used entries,
+     * so that its estimated memory usage never exceeds the given limit, even for fields with many
+     * distinct values. It is shared by all threads of the processor.
+     * <p>
+     * Only the results of modifiers that declare themselves as {@link JFREventModifier#isPure() pure} can be reused.
+     *
+     * @param maxBytes the maximum estimated memory of the cache in bytes, 0 disables the cache
+     * @return this processor
+     * @throws IllegalArgumentException if the modifier is not pure or the limit is negative
+     * @see #stringCacheStatistics()
+     */
+    public JFRProcessor withStringCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Maximum cache size must not be negative, got " + maxBytes);
+        }
+        return withStringCache(maxBytes == 0 ? null : new StringCache(maxBytes));
+    }
+
+    /**
+     * Use the given cache, which can be shared with other processors of the same modifier
+     */
+    JFRProcessor withStringCache(StringCache strings) {
+        if (strings != null && !modifier.isPure()) {
+            throw new IllegalArgumentException("The string cache requires a pure modifier, see JFREventModifier.isPure()");
+        }
+        this.strings = strings;
+        return this;
+    }
+
+    /**
+     * Get the hit and miss statistics of the string cache.
+     *
+     * @return the statistics, or null if the string cache is disabled
+     * @see #withStringCache(long)
+     */
+    public StringCacheStatistics stringCacheStatistics() {
+        return strings == null ? null : strings.statistics();
+    }
+
+    /**
+     * Only keep the events that start in the given time window, e.g. the minutes around an incident.
+     * <p>
+     * Chunks of the input that do not overlap the window are skipped without decoding them,
+     * so extracting a small window from a large recording takes time proportional to the window.
+     * The events of the remaining chunks are filtered by their start time.
+     * Like the event streams of the JDK, chunks that start after the end of the window are skipped,
+     * events that start in the window but end in such a chunk are therefore dropped.
+     * <p>
+     * Unchanged chunks are not copied with a time window, see {@link #withChunkCopying(boolean)}.
+     *
+     * @param start the start of the window, inclusive
+     * @param end   the end of the window, exclusive
+     * @return this processor
+     */
+    public JFRProcessor withTimeWindow(Instant start, Instant end) {
+        if (end.isBefore(start)) {
+            throw new IllegalArgumentException("Time window ends before it starts: " + start + " - " + end);
+        }
+        this.timeWindow = new TimeWindow(start, end);
+        return this;
+    }
+
+    /**
+     * Downsample the events of high-frequency event types, see {@link EventSampler}.
+     * <p>
+     * With {@link #processParallel(OutputStream, int)}, every chunk is sampled on its own,
+     * e.g. counting for {@link EventSampler#keepOneIn(String, int)} starts anew in every chunk.
+     *
+     * @param sampler the sampler, null to keep all events
+     * @return this processor
+     */
+    public JFRProcessor withSampling(EventSampler sampler) {
+        this.sampler = sampler;
+        return this;
+    }
+
+    /**
+     * Truncate the written stack traces to their top frames, their {@code truncated} flag is then set.
+     * This reduces the size of recordings with deep stacks, like those of frameworks with many layers.
+     *
+     * @param maxDepth the maximum number of frames, 0 for no limit
+     * @return this processor
+     */
+    public JFRProcessor withMaxStackDepth(int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Maximum stack depth must not be negative, got " + maxDepth);
+        }
+        this.maxStackDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Write every stack trace of the input only once: all events that reference the same stack trace of the
+     * input share one output value, instead of creating and deduplicating the output value for every event.
+     * The modifier is then only applied once per stack trace, which requires a pure modifier,
+     * see {@link JFREventModifier#isPure()}.
+     * <p>
+     * Stack traces are shared by the identity of the objects the JDK parser creates for the entries
+     * of the input constant pools. {@link #withPooledValueCaching(boolean)} does the same for all pooled values.
+     *
+     * @param internStackTraces whether to write every stack trace only once
+     * @return this processor
+     * @throws IllegalArgumentException if stack traces are interned and the modifier is not pure
+     */
+    public JFRProcessor withStackTraceInterning(boolean internStackTraces) {
+        if (internStackTraces && !modifier.isPure()) {
+            throw new IllegalArgumentException("Stack trace interning requires a pure modifier, see JFREventModifier.isPure()");
+        }
+        this.internStackTraces = internStackTraces;
+        return this;
+    }
+
+    /**
+     * Replace the events of high-frequency event types with summary events per time bucket,
+     * see {@link EventAggregator}. Aggregation is applied after sampling and after the modifier removed events.
+     * <p>
+     * With {@link #processParallel(OutputStream, int)}, every chunk is aggregated on its own,
+     * buckets that span chunks therefore get summary events in every chunk.
+     *
+     * @param aggregator the aggregator, null to write all events
+     * @return this processor
+     */
+    public JFRProcessor withAggregation(EventAggregator aggregator) {
+        this.aggregator = aggregator;
+        return this;
+    }
+
+    /**
+     * Split the output into chunks of at most the given number of events.
+     * <p>
+     * The JMC writer keeps the whole output in memory until it is closed. With a limit, the current chunk
+     * is closed and written to the output stream when it is full, and the output continues in a new chunk
+     * with empty constant pools. The memory usage is then bounded by the chunk size, independent of the size
+     * of the recording, and readers of the output stream can read every finished chunk while the rest of the
+     * recording is processed. Types and pooled values that are used in multiple chunks are written in each of them.
+     * <p>
+     * This applies to {@link #process(OutputStream)}, {@link #processPipelined(OutputStream, int)} and every file
+     * of {@link #process(OutputRouter)}, {@link #processParallel(OutputStream, int)} already writes one output chunk
+     * per input chunk.
+     *
+     * @param maxEvents the maximum number of events per chunk, 0 for no limit
+     * @return this processor
+     * @see #withMaxChunkSize(long)
+     */
+    public JFRProcessor withMaxChunkEvents(long maxEvents) {
+        if (maxEvents < 0) {
+            throw new IllegalArgumentException("Maximum number of events must not be negative, got " + maxEvents);
+        }
+        this.maxChunkEvents = maxEvents;
+        return this;
+    }
+
+    /**
+     * Split the output into chunks of approximately the given size, see {@link #withMaxChunkEvents(long)}.
+     * <p>
+     * The size of a chunk is estimated from its number of events and the average event size of the previous
+     * chunks, as the writer does not expose the size before the chunk is finished.
+     *
+     * @param maxBytes the approximate maximum size of a chunk in bytes, 0 for no limit
+     * @return this processor
+     */
+    public JFRProcessor withMaxChunkSize(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Maximum chunk size must not be negative, got " + maxBytes);
+        }
+        this.maxChunkSize = maxBytes;
+        return this;
+    }
+
+    /**
+     * Time window of the events to keep
+     *
+     * @param start Start of the window, inclusive
+     * @param end   End of the window, exclusive
+     */
+    private record TimeWindow(Instant start, Instant end) {
+
+        boolean contains(Instant time) {
+            return !time.isBefore(start) && time.isBefore(end);
+        }
+
+        /**
+         * Check if the chunk can contain events that start in the window.
+         * Events end in the chunk they are written to, so chunks that end before the window contain no such events.
+         */
+        boolean overlaps(ChunkHeader chunk) {
+            Instant chunkStart = Instant.ofEpochSecond(0, chunk.startNanos());
+            return chunkStart.isBefore(end) && !chunkStart.plusNanos(chunk.durationNanos()).isBefore(start);
+        }
+
+        /**
+         * Create a filter that removes the events of the chunk that start outside of the window.
+         * The JDK parser converts ticks slightly differently depending on the chunks it has read before,
+         * so only events that start more than a millisecond outside are removed, {@link #contains(Instant)}
+         * decides about the others after parsing.
+         */
+        ChunkFilter.EventFilter outsideEvents(MappedChunk chunk) {
+            long from = epochNanos(start, -FILTER_MARGIN_NANOS);
+            long to = epochNanos(end, FILTER_MARGIN_NANOS);
+            return (typeId, position) -> {
+                long startTime = chunk.startTimeNanos(position);
+                return startTime != MappedChunk.NO_START_TIME && (startTime < from || startTime >= to);
+            };
+        }
+
+        private static final long FILTER_MARGIN_NANOS = 1_000_000;
+
+        /**
+         * @return the time plus the offset in nanoseconds since epoch, saturated to the range of long
+         */
+        private static long epochNanos(Instant time, long offsetNanos) {
+            try {
+                return Math.addExact(Math.addExact(Math.multiplyExact(time.getEpochSecond(), 1_000_000_000L), time.getNano()),
+                        offsetNanos);
+            } catch (ArithmeticException e) {
+                return time.getEpochSecond() < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Run the worker threads of {@link #processParallel(OutputStream, int)} and
+     * {@link #processPipelined(OutputStream, int)} on virtual threads instead of platform threads.
+     *
+     * @param useVirtualThreads whether to use virtual threads
+     * @return this processor
+     */
+    public JFRProcessor withVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+        return this;
+    }
+
+    /**
+     * Chunks are never copied with a time window, as they can contain events that started before the window
+     */
+    private boolean copiesUnchangedChunks() {
+        return copyUnchangedChunks && timeWindow == null;
+    }
+
+    /**
+     * Find the names of the event types in the recording whose events the modifier neither processes nor removes
+     * and that are neither sampled nor aggregated.
+     */
+    private Set<String> findUntouchedEventTypes(Path recording) throws IOException {
+        Set<String> untouched = new HashSet<>();
+        try (RecordingFile input = new RecordingFile(recording)) {
+            for (EventType eventType : input.readEventTypes()) {
+                if (!processesEventType(eventType) && !mayRemoveEventsOfType(eventType) && !removesEventType(eventType)
+                        && (sampler == null || !sampler.samples(eventType.getName()))
+                        && (aggregator == null || !aggregator.aggregates(eventType.getName()))) {
+                    untouched.add(eventType.getName());
+                }
+            }
+        }
+        return untouched;
+    }
+
+    /**
+     * A processed chunk of the input, either the bytes of the new output chunk or a chunk to copy unchanged.
      *
-     * @param modifier The modifier to use for transforming events and fields
-     * @param inputPath Path to the input JFR file
+     * @param input The input chunk
+     * @param data  The processed chunk or the bytes of the copied chunk, null if the chunk should be copied from the input file
+     * @param copy  Whether the input chunk is copied unchanged
      */
-    public JFRProcessor(JFREventModifier modifier, Path inputPath, Logger logger) {
-        this.modifier = modifier;
-        this.inputPath = inputPath;
-        this.logger = logger;
+    private record ProcessedChunk(ChunkHeader input, byte[] data, boolean copy) {
     }
 
-    public JFRProcessor(JFREventModifier modifier, Path inputPath) {
-        this(modifier, inputPath, NOPLogger.NOP_LOGGER);
+    /**
+     * Process a single chunk of the input file into a complete output chunk.
+     * The chunk is copied to a temporary file for the JDK parser, unless it is the whole input.
+     */
+    private ProcessedChunk processChunk(ChunkHeader chunk, Set<String> untouchedEventTypes) throws IOException {
+        try (FileChannel in = FileChannel.open(inputPath, StandardOpenOption.READ)) {
+            if (!untouchedEventTypes.isEmpty() && isUnchanged(in, chunk.offset(), chunk, untouchedEventTypes)) {
+                return new ProcessedChunk(chunk, null, true);
+            }
+            if (chunk.offset() == 0 && chunk.end() == in.size()) {
+                return new ProcessedChunk(chunk, processChunkFile(inputPath, chunk), false);
+            }
+            Path chunkFile = Files.createTempFile("jfr-chunk", ".jfr");
+            try {
+                try (FileChannel out = FileChannel.open(chunkFile, StandardOpenOption.WRITE)) {
+                    transferFully(in, chunk, out);
+                }
+                return new ProcessedChunk(chunk, processChunkFile(chunkFile, chunk), false);
+            } finally {
+                Files.deleteIfExists(chunkFile);
+            }
+        }
     }
 
-    private void initRecording(OutputStream outputStream) {
-        // Initialize JDK types for content type annotations (Timestamp, etc.) to work properly
-        this.output =
-                (RecordingImpl)
-                        Recordings.newRecording(
-                                outputStream,
-                                r -> {
-                                });
+    /**
+     * Process a chunk of the input stream that has been spooled to a file, the file is deleted afterwards.
+     */
+    private ProcessedChunk processSpooledChunk(ChunkHeader chunk, Path chunkFile, Set<String> untouchedEventTypes) throws IOException {
+        try {
+            if (!untouchedEventTypes.isEmpty()) {
+                try (FileChannel in = FileChannel.open(chunkFile, StandardOpenOption.READ)) {
+                    if (isUnchanged(in, 0, chunk, untouchedEventTypes)) {
+                        return new ProcessedChunk(chunk, Files.readAllBytes(chunkFile), true);
+                    }
+                }
+            }
+            return new ProcessedChunk(chunk, processChunkFile(chunkFile, chunk), false);
+        } finally {
+            Files.deleteIfExists(chunkFile);
+        }
+    }
 
+    private byte[] processChunkFile(Path chunkFile, ChunkHeader chunk) throws IOException {
+        ByteArrayOutputStream chunkOutput = new ByteArrayOutputStream((int) Math.min(chunk.size(), Integer.MAX_VALUE - 8));
+        createChunkProcessor(chunkFile).process(chunkOutput).close();
+        return chunkOutput.toByteArray();
     }
 
     /**
-     * Process the input JFR file and write the transformed output.
+     * Check whether the chunk contains only events of untouched types and can therefore be copied.
      *
-     * @param outputStream The output stream to write the processed recording to
-     * @return The recording implementation
-     * @throws IOException if processing fails
+     * @param position Position of the chunk in the given channel
      */
-    public RecordingImpl process(OutputStream outputStream) throws IOException {
-        initRecording(outputStream);
+    private boolean isUnchanged(FileChannel in, long position, ChunkHeader chunk, Set<String> untouchedEventTypes) {
+        if (chunk.size() > Integer.MAX_VALUE) {
+            return false;
+        }
+        try {
+            ByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, position, chunk.size());
+            return untouchedEventTypes.containsAll(new ChunkScanner(buffer, chunk).eventTypeNames());
+        } catch (IOException e) {
+            // Let the JDK parser decide what to make of the chunk
+            logger.debug("Could not scan chunk at position {}: {}", chunk.offset(), e.getMessage());
+            return false;
+        }
+    }
 
-        logger.info("Starting JFR event processing");
+    static void transferFully(FileChannel in, ChunkHeader chunk, WritableByteChannel out) throws IOException {
+        long position = chunk.offset();
+        while (position < chunk.end()) {
+            position += in.transferTo(position, chunk.end() - position, out);
+        }
+    }
 
-        int totalEvents = 0;
-        int removedEvents = 0;
-        int written = 0;
+    /**
+     * Create a processor for a single chunk that shares the configuration of this processor.
+     */
+    private JFRProcessor createChunkProcessor(Path chunkFile) {
+        JFRProcessor processor = new JFRProcessor(modifier, chunkFile, logger)
+                .withConstantPoolPolicy(constantPoolPolicy)
+                .withPooledValueCaching(pooledValues != null)
+                .withStringCache(strings);
+        processor.timeWindow = timeWindow;
+        processor.sampler = sampler;
+        processor.aggregator = aggregator;
+        processor.maxStackDepth = maxStackDepth;
+        processor.internStackTraces = internStackTraces;
+        return processor;
+    }
 
-        try (RecordingFile input = new RecordingFile(inputPath)) {
-            while (input.hasMoreEvents()) {
-                var event = input.readEvent();
-                totalEvents++;
+    /**
+     * Create a processor that writes a single file of a routed output. It only writes the events
+     * and summaries that this processor passes to it, without removing, sampling or aggregating them again.
+     */
+    private JFRProcessor createSinkProcessor() {
+        JFRProcessor processor = new JFRProcessor(modifier, (Path) null, logger)
+                .withConstantPoolPolicy(constantPoolPolicy)
+                .withPooledValueCaching(pooledValues != null)
+                .withStringCache(strings);
+        processor.maxStackDepth = maxStackDepth;
+        processor.internStackTraces = internStackTraces;
+        processor.maxChunkEvents = maxChunkEvents;
+        processor.maxChunkSize = maxChunkSize;
+        return processor;
+    }
 
-                if (modifier.shouldRemoveEvent(event)) {
-                    removedEvents++;
-                    logger.debug("Removed event #{}: {}", removedEvents, event.getEventType().getName());
-                    continue; // Skip this event
+    /**
+     * Writes processed and copied chunks to the output in order.
+     * <p>
+     * This works around two optimizations of the JDK parser ({@code jdk.jfr.internal.consumer.ChunkParser}),
+     * which assume that all chunks of a file come from the same recording:
+     * <ul>
+     *     <li>It reuses resolved constants of the previous chunk if the same constant pool key reappears
+     *     for a type. Independently written chunks all number their constants from 1, so an empty chunk
+     *     without constants is placed before every chunk that follows another chunk and was not copied
+     *     together with it from the input.</li>
+     *     <li>It reuses the metadata, and with it the event types, of the previous chunk if both have the same
+     *     metadata id, and all chunks written by JMC use the id 0. The writer therefore gives every written chunk,
+     *     including the empty ones, a metadata id that differs from the ids of its neighbours.</li>
+     * </ul>
+     * The metadata id is patched in the written bytes, at the position {@link ChunkScanner#metadataIdPosition()}
+     * finds in the metadata event. JMC writes the id as a single byte varint, other encodings are rejected.
+     * {@code JFRProcessorTest.jdkParserReusesConstantsAndMetadataOfThePreviousChunk} fails if the parser stops
+     * reusing constants or metadata, the workarounds can then be removed.
+     */
+    private static class ChunkWriter {
+        private final OutputStream outputStream;
+        /**
+         * The input file to copy unchanged chunks from, null for stream inputs
+         */
+        private final FileChannel input;
+        private WritableByteChannel outputChannel;
+        private ChunkHeader lastCopiedChunk;
+        private long lastMetadataId = -1;
+        private boolean first = true;
+        private int copiedChunks = 0;
+
+        ChunkWriter(OutputStream outputStream, FileChannel input) {
+            this.outputStream = outputStream;
+            this.input = input;
+        }
+
+        void write(ProcessedChunk chunk) throws IOException {
+            boolean copy = chunk.copy();
+            boolean continuesCopy = copy && lastCopiedChunk != null && lastCopiedChunk.end() == chunk.input().offset();
+            long copiedMetadataId = copy ? copiedMetadataId(chunk) : -1;
+            if (!first && !continuesCopy) {
+                byte[] separator = emptyChunk().clone();
+                writeWrittenChunk(separator, distinctMetadataId(lastMetadataId, copiedMetadataId));
+            }
+            first = false;
+            if (copy) {
+                if (chunk.data() != null) {
+                    outputStream.write(chunk.data());
+                } else {
+                    outputStream.flush();
+                    transferFully(input, chunk.input(), outputChannel());
                 }
+                lastCopiedChunk = chunk.input();
+                lastMetadataId = copiedMetadataId;
+                copiedChunks++;
+            } else {
+                writeWrittenChunk(chunk.data(), distinctMetadataId(lastMetadataId, -1));
+                lastCopiedChunk = null;
+            }
+        }
+
+        private void writeWrittenChunk(byte[] data, long metadataId) throws IOException {
+            setMetadataId(data, metadataId);
+            outputStream.write(data);
+            lastMetadataId = metadataId;
+        }
 
-                // Register event type (will be idempotent if already registered)
-                registerEventType(event);
+        private long copiedMetadataId(ProcessedChunk chunk) throws IOException {
+            ByteBuffer buffer = chunk.data() != null
+                    ? ByteBuffer.wrap(chunk.data())
+                    : input.map(FileChannel.MapMode.READ_ONLY, chunk.input().offset(), chunk.input().size());
+            return new ChunkScanner(buffer, chunk.input()).metadataId();
+        }
 
-                // Write event immediately (no need to store in memory)
-                writeEvent(event);
-                written++;
+        private static long distinctMetadataId(long previous, long next) {
+            long id = 1;
+            while (id == previous || id == next) {
+                id++;
+            }
+            return id;
+        }
 
-                if (written % 10000 == 0) {
-                    logger.info("Written {} events ({} removed)", written, removedEvents);
+        /**
+         * Replace the metadata id of a chunk written by JMC, which is the 0 encoded as a single byte varint.
+         * Ids up to 127 keep the size of the chunk and therefore all offsets in its header.
+         */
+        private static void setMetadataId(byte[] data, long metadataId) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            int position = new ChunkScanner(buffer, ChunkHeader.read(buffer, 0)).metadataIdPosition();
+            if (data[position] < 0) {
+                throw new IOException("Unexpected metadata id encoding in written chunk");
+            }
+            data[position] = (byte) metadataId;
+        }
+
+        private WritableByteChannel outputChannel() {
+            if (outputChannel == null) {
+                outputChannel = outputStream instanceof FileOutputStream fileOutput
+                        ? fileOutput.getChannel()
+                        : Channels.newChannel(outputStream);
+            }
+            return outputChannel;
+        }
+    }
+
+    /**
+     * Splits an output into chunks that are each written by their own JMC recording.
+     * <p>
+     * Every recording writes into a buffer, the buffers are passed to a {@link ChunkWriter} in order.
+     * Closing a JMC recording waits up to half a second for its merging thread, so the recordings of full chunks
+     * are closed in the background while the next chunk is written. Closing the recording of the last chunk
+     * writes all remaining chunks and closes the output stream, like closing a single recording.
+     */
+    private static class RollingOutput {
+        /**
+         * Average event size assumed for the first chunk, before the size of a finished chunk is known
+         */
+        private static final long INITIAL_BYTES_PER_EVENT = 100;
+        /**
+         * Maximum number of chunks that are closed in the background at once
+         */
+        static final int MAX_CLOSING_CHUNKS = 4;
+
+        private final OutputStream outputStream;
+        private final ChunkWriter writer;
+        private final ExecutorService closer;
+        private final long maxEvents;
+        private final long maxSize;
+        private final Deque<Future<ChunkBuffer>> closing = new ArrayDeque<>();
+        private ChunkBuffer buffer;
+        private long chunkEvents = 0;
+        private long writtenEvents = 0;
+        private long writtenBytes = 0;
+        private int chunks = 0;
+
+        RollingOutput(OutputStream outputStream, ExecutorService closer, long maxEvents, long maxSize) {
+            this.outputStream = outputStream;
+            this.writer = new ChunkWriter(outputStream, null);
+            this.closer = closer;
+            this.maxEvents = maxEvents;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Start a new chunk
+         *
+         * @return The stream for the recording of the chunk
+         */
+        OutputStream nextChunk() {
+            buffer = new ChunkBuffer();
+            chunkEvents = 0;
+            chunks++;
+            return buffer;
+        }
+
+        /**
+         * Check if the current chunk is full, chunks always contain at least one event
+         */
+        boolean isChunkFull() {
+            if (chunkEvents == 0) {
+                return false;
+            }
+            long bytesPerEvent = writtenEvents == 0 ? INITIAL_BYTES_PER_EVENT : Math.max(1, writtenBytes / writtenEvents);
+            return (maxEvents > 0 && chunkEvents >= maxEvents) || (maxSize > 0 && chunkEvents * bytesPerEvent >= maxSize);
+        }
+
+        /**
+         * Close the recording of the current chunk in the background, without closing the output stream.
+         * Chunks that have been closed are written.
+         */
+        void finishChunk(RecordingImpl recording) throws IOException {
+            ChunkBuffer chunk = buffer;
+            chunk.last = false;
+            chunk.events = chunkEvents;
+            closing.add(closer.submit(() -> {
+                recording.close();
+                return chunk;
+            }));
+            while (!closing.isEmpty() && (closing.size() > MAX_CLOSING_CHUNKS || closing.peek().isDone())) {
+                writeChunk(awaitResult(closing.poll()));
+            }
+        }
+
+        private void writeChunk(ChunkBuffer chunk) throws IOException {
+            writer.write(new ProcessedChunk(null, chunk.toByteArray(), false));
+            writtenBytes += chunk.size();
+            writtenEvents += chunk.events;
+            // Readers of the output can process the chunk while the next one is written
+            outputStream.flush();
+        }
+
+        private final class ChunkBuffer extends ByteArrayOutputStream {
+            private boolean last = true;
+            private boolean closed = false;
+            private long events;
+
+            /**
+             * Called when the recording of the chunk is closed, chunks are only written in order
+             */
+            @Override
+            public void close() throws IOException {
+                if (!last || closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    while (!closing.isEmpty()) {
+                        writeChunk(awaitResult(closing.poll()));
+                    }
+                    events = chunkEvents;
+                    writeChunk(this);
+                } finally {
+                    closer.shutdown();
                 }
+                outputStream.close();
             }
         }
+    }
 
-        logger.info("JFR processing complete: {} total events, {} processed, {} removed",
-                totalEvents, written, removedEvents);
+    private static byte[] emptyChunk;
 
-        return output;
+    private static synchronized byte[] emptyChunk() throws IOException {
+        if (emptyChunk == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Recordings.newRecording(bytes, r -> {
+            }).close();
+            emptyChunk = bytes.toByteArray();
+        }
+        return emptyChunk;
     }
 
+    private static <T> T awaitResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while processing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException("Processing failed", cause);
+        }
+    }
 
     /**
      * Processes multiple recording files and concatenates them into a single output without any processing.
@@ -136,6 +1756,10 @@ public class JFRProcessor {
         int totalEvents = 0;
         int fileIndex = 0;
 
+        for (RecordingFile input : inputs) {
+            registerEventTypes(input.readEventTypes());
+        }
+
         for (RecordingFile input : inputs) {
             fileIndex++;
             logger.info("Processing input recording file {}/{}", fileIndex, inputs.size());
@@ -147,9 +1771,6 @@ public class JFRProcessor {
                 totalEvents++;
                 fileEvents++;
 
-                // Register event type (will be idempotent if already registered)
-                registerEventType(event);
-
                 writeEvent(event);
 
                 // Log progress every 100,000 events
@@ -168,20 +1789,45 @@ public class JFRProcessor {
         return output;
     }
 
+    /**
+     * Register the types of all events in the input, including their nested types,
+     * before any event is written.
+     * <p>
+     * The types are read from the metadata of all chunks, writing an event then only has to find
+     * the already registered type.
+     */
+    private void registerEventTypes(List<EventType> eventTypes) {
+        for (EventType eventType : eventTypes) {
+            if (!removesEventType(eventType) && (aggregator == null || !aggregator.aggregates(eventType.getName()))) {
+                registerType(eventType);
+            }
+        }
+        logger.debug("Registered {} event types", eventTypes.size());
+    }
+
     /**
      * Register an event type without writing the event.
-     * This is part of phase 1 of the two-pass processing.
+     * <p>
+     * Types are usually registered up front from the metadata of the input, this is only needed
+     * for events from other sources.
      */
     public void registerEventType(RecordedEvent event) {
-        EventType eventType = event.getEventType();
+        writePlan(event.getEventType());
+    }
+
+    private Type registerType(EventType eventType) {
         String eventTypeName = eventType.getName();
 
-        // Slow path: check if already registered in output
-        if (output.getTypes().getType(eventTypeName, false) != null) {
-            return;
+        // Check if already registered in output, e.g. by an earlier chunk or input file
+        Type existingType = output.getTypes().getType(eventTypeName, false);
+        if (existingType != null) {
+            return existingType;
+        }
+        if (rolling != null) {
+            typeRegistrations.putIfAbsent(eventTypeName, () -> registerType(eventType));
         }
 
-        output.registerType(eventTypeName, "jdk.jfr.Event", builder -> {
+        return output.registerType(eventTypeName, "jdk.jfr.Event", builder -> {
             ImplicitFieldTracker implicitFields = new ImplicitFieldTracker();
 
             // Register all fields from the event
@@ -203,8 +1849,198 @@ public class JFRProcessor {
      * This is part of phase 3 of the two-pass processing.
      */
     public void writeEvent(RecordedEvent event) {
-        Type type = output.getType(event.getEventType().getName());
-        output.writeEvent(type.asValue(b -> createEventTypedValue(b, event)));
+        if (nativeOutput != null) {
+            writeNativeEvent(event);
+            return;
+        }
+        if (routing != null) {
+            routedSink(event.getEventType(), event).writeEvent(event);
+            return;
+        }
+        rollOutputIfFull();
+        output.writeEvent(outputPlan(event.getEventType()).write(event));
+        countWrittenEvent();
+    }
+
+    private void writeNativeEvent(RecordedEvent event) {
+        NativeWritePlan plan = nativePlans.get(event.getEventType());
+        if (plan == null) {
+            EventType eventType = event.getEventType();
+            NativeRecordingWriter.Type type = nativeOutput.eventType(eventType, this::useConstantPool);
+            plan = processesEventType(eventType)
+                    ? NativeWritePlan.compile(type, eventType, modifier, field -> modifier.processesField(eventType, field),
+                            strings, stackTraces)
+                    : NativeWritePlan.compile(type, eventType, null, field -> false, null, stackTraces);
+            nativePlans.put(eventType, plan);
+        }
+        try {
+            plan.writeEvent(nativeOutput, event);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private JFRProcessor routedSink(EventType eventType, RecordedEvent event) {
+        try {
+            return routing.sink(eventType, event);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void countWrittenEvent() {
+        if (rolling != null) {
+            rolling.chunkEvents++;
+        }
+    }
+
+    /**
+     * Output type of the summaries of one aggregated event type
+     *
+     * @param type           The summary event type
+     * @param stackTraceType The stack trace type, null if the aggregated type has no stack traces
+     * @param stackTracePlan Writes the stack trace field of an aggregated event, null if the type has no stack traces
+     */
+    private record SummaryType(Type type, Type stackTraceType, WritePlan stackTracePlan) {
+    }
+
+    /**
+     * Write a summary event of the aggregator
+     */
+    private void writeSummary(EventAggregator.Summary summary) {
+        if (routing != null) {
+            routedSink(summary.eventType(), null).writeSummary(summary);
+            return;
+        }
+        rollOutputIfFull();
+        SummaryType summaryType = summaryTypes.computeIfAbsent(
+                EventAggregator.summaryTypeName(summary.eventType().getName()),
+                name -> registerSummaryType(name, summary.eventType(), summary.summedFields()));
+        List<ValueDescriptor> summedFields = summary.summedFields();
+        output.writeEvent(summaryType.type().asValue(builder -> {
+            builder.putField("startTime", summary.startTicks());
+            builder.putField("duration", summary.durationTicks());
+            if (summaryType.stackTraceType() != null) {
+                if (summary.stackTraceEvent() == null) {
+                    builder.putField("stackTrace", summaryType.stackTraceType().nullValue());
+                } else {
+                    summaryType.stackTracePlan().writeFields(builder, summary.stackTraceEvent());
+                }
+            }
+            builder.putField("count", summary.count());
+            for (int i = 0; i < summedFields.size(); i++) {
+                String name = summedFields.get(i).getName() + "Sum";
+                if (EventAggregator.isFloatingPoint(summedFields.get(i))) {
+                    builder.putField(name, summary.doubleSums()[i]);
+                } else {
+                    builder.putField(name, summary.longSums()[i]);
+                }
+            }
+        }));
+        countWrittenEvent();
+    }
+
+    /**
+     * Register the summary event type for an aggregated event type, the stack traces are transformed
+     * like the stack traces of the aggregated events.
+     */
+    private SummaryType registerSummaryType(String name, EventType eventType, List<ValueDescriptor> summedFields) {
+        if (rolling != null) {
+            typeRegistrations.putIfAbsent(name,
+                    () -> summaryTypes.put(name, registerSummaryType(name, eventType, summedFields)));
+        }
+        ValueDescriptor stackTraceField = eventType.getField("stackTrace");
+        Type stackTraceType = stackTraceField == null ? null : handleComplexType(new ArrayList<>(), stackTraceField);
+        Type type = output.registerType(name, "jdk.jfr.Event", builder -> {
+            builder.addField("startTime", Types.Builtin.LONG,
+                    field -> processFieldAnnotations(field, eventType.getField("startTime").getAnnotationElements()));
+            builder.addField("duration", Types.Builtin.LONG, field -> processFieldAnnotations(field, List.of(
+                    new AnnotationElement(Label.class, "Duration"),
+                    new AnnotationElement(Timespan.class, Timespan.TICKS))));
+            if (stackTraceType != null) {
+                builder.addField("stackTrace", stackTraceType,
+                        field -> processFieldAnnotations(field, stackTraceField.getAnnotationElements()));
+            }
+            builder.addField("count", Types.Builtin.LONG,
+                    field -> processFieldAnnotations(field, List.of(new AnnotationElement(Label.class, "Event Count"))));
+            for (ValueDescriptor summedField : summedFields) {
+                builder.addField(summedField.getName() + "Sum",
+                        EventAggregator.isFloatingPoint(summedField) ? Types.Builtin.DOUBLE : Types.Builtin.LONG,
+                        field -> processFieldAnnotations(field, summedField.getAnnotationElements()));
+            }
+            String label = eventType.getLabel() != null ? eventType.getLabel() : eventType.getName();
+            addAnnotationsToTypeBuilder(builder, List.of(
+                    new AnnotationElement(Label.class, label + " Summary"),
+                    new AnnotationElement(Description.class, "Number of " + eventType.getName()
+                            + " events per time bucket and stack trace")));
+        });
+        WritePlan stackTracePlan = stackTraceType == null ? null
+                : processesEventType(eventType)
+                ? WritePlan.compile(type, List.of(stackTraceField), modifier,
+                        field -> modifier.processesField(eventType, field), pooledValues, strings, stackTraces)
+                : WritePlan.compile(type, List.of(stackTraceField), null, field -> false, pooledValues, null, stackTraces);
+        return new SummaryType(type, stackTraceType, stackTracePlan);
+    }
+
+    /**
+     * Get the write plan for events of the given type, compiling it on first use.
+     * Event types that have not been registered up front are registered here.
+     */
+    private WritePlan writePlan(EventType eventType) {
+        WritePlan plan = writePlans.get(eventType);
+        if (plan == null) {
+            plan = compileWritePlan(eventType);
+            writePlans.put(eventType, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Get the write plan for events of the given type in the current output chunk
+     */
+    private WritePlan outputPlan(EventType eventType) {
+        if (rolling == null) {
+            return writePlan(eventType);
+        }
+        WritePlan plan = chunkWritePlans.get(eventType);
+        if (plan == null) {
+            plan = compileWritePlan(eventType);
+            chunkWritePlans.put(eventType, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Compile a write plan against the current output. Synchronized with rolling over to a new chunk,
+     * as the reader of the pipelined mode compiles plans while the writer writes the output.
+     */
+    private synchronized WritePlan compileWritePlan(EventType eventType) {
+        // Copy events of types and fields the modifier does not process without calling it
+        return processesEventType(eventType)
+                ? WritePlan.compile(registerType(eventType), eventType.getFields(), modifier,
+                        field -> modifier.processesField(eventType, field), pooledValues, strings, stackTraces)
+                : WritePlan.compile(registerType(eventType), eventType.getFields(), null, field -> false, pooledValues,
+                        null, stackTraces);
+    }
+
+    private boolean processesEventType(EventType eventType) {
+        return processedEventTypes.computeIfAbsent(eventType.getName(),
+                name -> modifier.processesEventType(eventType));
+    }
+
+    /**
+     * Called for every event, so the cache is only filled with a capturing lambda on a miss
+     */
+    private boolean removesEventType(EventType eventType) {
+        Boolean removed = removedEventTypes.get(eventType.getName());
+        return removed != null ? removed
+                : removedEventTypes.computeIfAbsent(eventType.getName(), name -> modifier.shouldRemoveEventType(eventType));
+    }
+
+    private boolean mayRemoveEventsOfType(EventType eventType) {
+        Boolean removable = removableEventTypes.get(eventType.getName());
+        return removable != null ? removable
+                : removableEventTypes.computeIfAbsent(eventType.getName(), name -> modifier.mayRemoveEventsOfType(eventType));
     }
 
     /**
@@ -241,41 +2077,41 @@ public class JFRProcessor {
         });
     }
 
-    private Method isConstantPoolMethod = null;
-    private boolean isConstantPoolMethodAccessible = true;
+    /**
+     * Handle for the package-private {@code ValueDescriptor.isConstantPool()}, resolved once,
+     * null if the method does not exist or the {@code jdk.jfr} package is not opened to this module
+     */
+    private static final MethodHandle IS_CONSTANT_POOL = findIsConstantPool();
+
+    private static MethodHandle findIsConstantPool() {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(ValueDescriptor.class, MethodHandles.lookup());
+            return lookup.findVirtual(ValueDescriptor.class, "isConstantPool", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException | SecurityException e) {
+            return null;
+        }
+    }
 
+    /**
+     * Check if values of the type of the descriptor are stored in the constant pool of the output,
+     * the decision is cached per type name
+     */
     boolean useConstantPool(ValueDescriptor descriptor) {
-        if (!isConstantPoolMethodAccessible) {
-            // Previous attempt to access method failed, use fallback
-            return useFallbackConstantPoolHeuristic(descriptor);
-        }
-        if (isConstantPoolMethod != null) {
-            // Method already accessed successfully before
+        return constantPoolTypes.computeIfAbsent(descriptor.getTypeName(),
+                typeName -> constantPoolPolicy.useConstantPool(typeName, isConstantPoolInInput(descriptor)));
+    }
+
+    private boolean isConstantPoolInInput(ValueDescriptor descriptor) {
+        if (IS_CONSTANT_POOL != null) {
             try {
-                return (boolean) isConstantPoolMethod.invoke(descriptor);
-            } catch (InvocationTargetException | IllegalAccessException | InaccessibleObjectException e) {
-                // Cannot access the method due to module restrictions or other access issues
-                logger.debug("Cannot access isConstantPool() method: {}, using fallback heuristic", e.getMessage());
-                isConstantPoolMethodAccessible = false;
-                return useFallbackConstantPoolHeuristic(descriptor);
+                return (boolean) IS_CONSTANT_POOL.invokeExact(descriptor);
+            } catch (Throwable e) {
+                logger.debug("Calling isConstantPool() failed: {}, using fallback heuristic", e.getMessage());
             }
+        } else {
+            logger.debug("isConstantPool() is not accessible, using fallback heuristic for {}", descriptor.getTypeName());
         }
-        try {
-            // Try to access the package private method descriptor.isConstantPool()
-            isConstantPoolMethod = ValueDescriptor.class.getDeclaredMethod("isConstantPool");
-            isConstantPoolMethod.setAccessible(true);
-            return (boolean) isConstantPoolMethod.invoke(descriptor);
-        } catch (NoSuchMethodException e) {
-            // Method doesn't exist in this JDK version
-            logger.debug("Method isConstantPool() not found, using fallback heuristic");
-            isConstantPoolMethodAccessible = false;
-            return useFallbackConstantPoolHeuristic(descriptor);
-        } catch (InvocationTargetException | IllegalAccessException | InaccessibleObjectException e) {
-            // Cannot access the method due to module restrictions or other access issues
-            logger.debug("Cannot access isConstantPool() method: {}, using fallback heuristic", e.getMessage());
-            isConstantPoolMethodAccessible = false;
-            return useFallbackConstantPoolHeuristic(descriptor);
-        }
+        return useFallbackConstantPoolHeuristic(descriptor);
     }
 
     /**
@@ -293,15 +2129,9 @@ public class JFRProcessor {
      * Check if existing type has matching fields with the descriptor.
      */
     private boolean checkFieldsMatch(Type existingType, ValueDescriptor descriptor) {
-        // Get field names from descriptor
-        List<String> sourceFields = descriptor.getFields().stream()
-                .map(ValueDescriptor::getName)
-                .toList();
-
-        // Get field names from existing type - this is a heuristic check
-        // If existing type has all the fields we need, we can use it
-        for (String fieldName : sourceFields) {
-            if (existingType.getField(fieldName) == null) {
+        // This is a heuristic check: if the existing type has all the fields we need, we can use it
+        for (ValueDescriptor field : descriptor.getFields()) {
+            if (existingType.getField(field.getName()) == null) {
                 return false;
             }
         }
@@ -493,15 +2323,14 @@ public class JFRProcessor {
 
     /**
      * Helper method to handle array values with modifier applied.
-     * Handles primitive arrays, String arrays, and optionally Object arrays.
+     * Handles primitive arrays and String arrays.
      *
      * @param builder The value builder to put the field into
      * @param fieldName The name of the field
      * @param value The array value
-     * @param field The field descriptor (optional, only needed for Object[] handling)
      * @return true if the array was handled, false if it needs special processing
      */
-    private boolean handleArrayWithRedaction(TypedValueBuilder builder, String fieldName, Object value, ValueDescriptor field) {
+    private boolean handleArrayWithRedaction(TypedValueBuilder builder, String fieldName, Object value) {
         switch (value) {
             case byte[] arr -> builder.putField(fieldName, modifier.process(fieldName, arr));
             case short[] arr -> builder.putField(fieldName, modifier.process(fieldName, arr));
@@ -512,15 +2341,6 @@ public class JFRProcessor {
             case boolean[] arr -> builder.putField(fieldName, modifier.process(fieldName, arr));
             case char[] arr -> builder.putField(fieldName, modifier.process(fieldName, arr));
             case String[] arr -> builder.putField(fieldName, modifier.process(fieldName, arr));
-            case Object[] arr -> {
-                // For annotations, convert to string; for fields, handle as complex objects
-                if (field != null) {
-                    builder.putField(fieldName, createComplexArrayValue(field, fieldName, arr));
-                } else {
-                    logger.warn("Unsupported array type in annotation: {}", value.getClass().getName());
-                    builder.putField(fieldName, modifier.process(fieldName, value.toString()));
-                }
-            }
             default -> {
                 return false; // Not handled
             }
@@ -533,7 +2353,7 @@ public class JFRProcessor {
      * Simpler version that doesn't handle Object[] as complex types.
      */
     private void handleArrayValueForAnnotation(TypedValueBuilder builder, String fieldName, Object value) {
-        if (!handleArrayWithRedaction(builder, fieldName, value, null)) {
+        if (!handleArrayWithRedaction(builder, fieldName, value)) {
             // Not handled - log warning and convert to string
             logger.warn("Unsupported array type in annotation: {}", value.getClass().getName());
             builder.putField(fieldName, modifier.process(fieldName, value.toString()));
@@ -728,122 +2548,4 @@ public class JFRProcessor {
             });
         }
     }
-
-    private void addFieldValue(TypedValueBuilder valueBuilder, ValueDescriptor descriptor, Object value) {
-        String fieldName = descriptor.getName();
-
-        // Handle null values - skip them or set as null string
-        if (value == null) {
-            valueBuilder.putField(fieldName, valueBuilder.getType().getField(fieldName).getType().nullValue());
-            return;
-        }
-
-        // Handle arrays
-        if (descriptor.isArray()) {
-            handleArrayValue(valueBuilder, descriptor, value);
-            return;
-        }
-
-        // Handle different value types with processing applied
-        if (value instanceof RecordedObject) {
-            // Complex type
-            handleComplexValue(valueBuilder, descriptor, (RecordedObject) value);
-            return;
-        }
-        handlePrimitiveOrWrapperValue(valueBuilder, fieldName, value);
-    }
-
-    private void handleArrayValue(TypedValueBuilder valueBuilder, ValueDescriptor field, Object value) {
-        String fieldName = field.getName();
-        // Arrays in JFR can be primitive arrays or object arrays
-        if (value.getClass().isArray()) {
-            // Use shared array handling method
-            handleArrayWithRedaction(valueBuilder, fieldName, value, field);
-        } else if (value instanceof List) {
-            // Unsupported list type - throw exception
-            throw new UnsupportedOperationException(
-                    "Unsupported List type for field '" + fieldName + "': " + value.getClass().getName()
-            );
-        } else {
-            // Unsupported value type - throw exception
-            throw new UnsupportedOperationException(
-                    "Unsupported value type for field '" + fieldName + "': " + value.getClass().getName()
-            );
-        }
-    }
-
-    private TypedValue[] createComplexArrayValue(ValueDescriptor field, String fieldName, Object[] recordedArray) {
-        List<TypedValue> typedValues = new ArrayList<>();
-        Type type = output.getType(field.getTypeName().replace("[]", ""));
-
-        for (Object element : recordedArray) {
-            if (element instanceof RecordedObject recordedObject) {
-                // Build the complex object value
-                typedValues.add(type.asValue(b -> handleComplexValueInArray(b, field, recordedObject)));
-            } else {
-                throw new UnsupportedOperationException("Object array contains non-RecordedObject element for field '" + fieldName + "'");
-            }
-        }
-
-        return typedValues.toArray(new TypedValue[0]);
-    }
-
-    private void handleComplexValue(TypedValueBuilder valueBuilder,
-                                    ValueDescriptor descriptor, RecordedObject recordedObject) {
-        String fieldName = descriptor.getName();
-
-        try {
-            // Recursively build the complex value
-            // IMPORTANT: Use descriptor.getFields() to ensure we write all registered fields,
-            // not just the fields available in recordedObject.getFields()
-            valueBuilder.putField(fieldName, complexValueBuilder -> {
-                for (ValueDescriptor field : descriptor.getFields()) {
-                    try {
-                        Object fieldValue = recordedObject.getValue(field.getName());
-                        addFieldValue(complexValueBuilder, field, fieldValue);
-                    } catch (IllegalArgumentException e) {
-                        // Field might not be present in this particular recordedObject
-                        // Set it to null value
-                        complexValueBuilder.putField(field.getName(),
-                                complexValueBuilder.getType().getField(field.getName()).getType().nullValue());
-                    }
-                }
-            });
-        } catch (IllegalStateException ex) {
-            System.err.println("Warning: Could not process complex field '" + fieldName + "'");
-            throw ex;
-        }
-    }
-
-    private void handleComplexValueInArray(TypedValueBuilder valueBuilder,
-                                    ValueDescriptor descriptor, RecordedObject recordedObject) {
-        try {
-            for (ValueDescriptor field : descriptor.getFields()) {
-                try {
-                    Object fieldValue = recordedObject.getValue(field.getName());
-                    addFieldValue(valueBuilder, field, fieldValue);
-                } catch (IllegalArgumentException e) {
-                    // Field might not be present in this particular recordedObject
-                    // Set it to null value
-                    valueBuilder.putField(field.getName(),
-                            valueBuilder.getType().getField(field.getName()).getType().nullValue());
-                }
-            }
-        } catch (IllegalStateException ex) {
-            System.err.println("Warning: Could not process complex field '" + descriptor.getName() + "'");
-            throw ex;
-        }
-    }
-
-
-    private void createEventTypedValue(TypedValueBuilder builder, RecordedEvent event) {
-        // Process fields of the event, skipping complex JDK types
-        for (ValueDescriptor field : event.getEventType().getFields()) {
-            String fieldName = field.getName();
-
-            Object fieldValue = event.getValue(fieldName);
-
-            addFieldValue(builder, field, fieldValue);
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,347 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.consumer.EventStream;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Continuous processor for running JVMs that applies the modifier to the events of an {@link EventStream}
+ * as they arrive and writes them to a sequence of finished JFR files.
+ * <p>
+ * The stream is usually the disk repository of another JVM, see {@link #forRepository(JFREventModifier, Path, Path)},
+ * or a {@link RecordingStream} in this JVM. A new output file is started when the current file reaches its
+ * maximum duration or its approximate maximum size. Files are written under a temporary name and renamed
+ * to {@code <prefix>-<index>.jfr} once they are finished, so other tools only ever see complete recordings.
+ * <p>
+ * The JMC writer keeps the current file in memory until it is finished, the maximum size therefore also bounds
+ * the memory usage. The files are written by an {@link OutputRouter}: the size of a file is estimated from
+ * the number of events and the average event size of the previous files, and finished files are closed
+ * in the background, so that rolling to a new file does not stall the stream.
+ * <p>
+ * Example:
+ * <pre>
+ * try (var processor = JFRStreamProcessor.forRepository(modifier, repository, outputDirectory)
+ *         .withMaxDuration(Duration.ofSeconds(10))
+ *         .withMaxSize(16 * 1024 * 1024)) {
+ *     processor.start(); // blocks until the stream is closed
+ * }
+ * </pre>
+ */
+public class JFRStreamProcessor implements AutoCloseable {
+
+    private final JFREventModifier modifier;
+    private final EventStream stream;
+    private final Path outputDirectory;
+    private final Logger logger;
+    private ConstantPoolPolicy constantPoolPolicy = ConstantPoolPolicy.INPUT;
+    private boolean cachePooledValues = false;
+    private StringCache strings;
+    private Duration maxDuration = Duration.ofSeconds(10);
+    private long maxSize = 16 * 1024 * 1024;
+    private String filePrefix = "recording";
+    private Consumer<Path> fileListener = file -> {
+    };
+
+    private boolean subscribed = false;
+    private boolean closed = false;
+    private Throwable failure;
+    private long writtenEvents = 0;
+
+    private JFRProcessor processor;
+    private OutputRouter.Session files;
+    private ExecutorService closer;
+    /**
+     * Time of the first event of the current file, only valid if {@link #fileEvents} is positive
+     */
+    private long fileStartNanos;
+    private long fileEvents;
+
+    /**
+     * Create a stream processor.
+     *
+     * @param modifier        The modifier to use for transforming events and fields
+     * @param stream          The stream to process, it is closed when this processor is closed
+     * @param outputDirectory Directory for the output files, it has to exist
+     */
+    public JFRStreamProcessor(JFREventModifier modifier, EventStream stream, Path outputDirectory, Logger logger) {
+        this.modifier = modifier;
+        this.stream = stream;
+        this.outputDirectory = outputDirectory;
+        this.logger = logger;
+    }
+
+    public JFRStreamProcessor(JFREventModifier modifier, EventStream stream, Path outputDirectory) {
+        this(modifier, stream, outputDirectory, NOPLogger.NOP_LOGGER);
+    }
+
+    /**
+     * Create a stream processor that follows the disk repository of a running JVM,
+     * starting with the events that are recorded from now on.
+     *
+     * @param modifier        The modifier to use for transforming events and fields
+     * @param repository      The repository directory, e.g. the {@code jdk.jfr.repository} of the JVM
+     * @param outputDirectory Directory for the output files, it has to exist
+     * @throws IOException if the repository cannot be opened
+     */
+    public static JFRStreamProcessor forRepository(JFREventModifier modifier, Path repository, Path outputDirectory) throws IOException {
+        return new JFRStreamProcessor(modifier, EventStream.openRepository(repository), outputDirectory);
+    }
+
+    /**
+     * Set the time after which the current output file is finished, even if no events arrive.
+     * This is the maximum latency until an event is visible in a finished file.
+     * Default is 10 seconds.
+     *
+     * @param maxDuration the maximum duration of a file
+     * @return this processor
+     */
+    public JFRStreamProcessor withMaxDuration(Duration maxDuration) {
+        if (maxDuration.isNegative() || maxDuration.isZero()) {
+            throw new IllegalArgumentException("Maximum duration must be positive, got " + maxDuration);
+        }
+        this.maxDuration = maxDuration;
+        return this;
+    }
+
+    /**
+     * Set the approximate size after which the current output file is finished.
+     * Default is 16 MB.
+     *
+     * @param maxSize the maximum size of a file in bytes
+     * @return this processor
+     */
+    public JFRStreamProcessor withMaxSize(long maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be positive, got " + maxSize);
+        }
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Set the prefix of the output file names, default is {@code recording}.
+     *
+     * @param filePrefix the prefix
+     * @return this processor
+     */
+    public JFRStreamProcessor withFilePrefix(String filePrefix) {
+        this.filePrefix = filePrefix;
+        return this;
+    }
+
+    /**
+     * Set the listener that is called with the path of every finished output file,
+     * on the thread that processes the stream or closes this processor.
+     *
+     * @param fileListener the listener
+     * @return this processor
+     */
+    public JFRStreamProcessor withFileListener(Consumer<Path> fileListener) {
+        this.fileListener = fileListener;
+        return this;
+    }
+
+    /**
+     * Set the policy that decides which complex types are stored in the constant pool of the output files.
+     *
+     * @param constantPoolPolicy the policy to use
+     * @return this processor
+     * @see JFRProcessor#withConstantPoolPolicy(ConstantPoolPolicy)
+     */
+    public JFRStreamProcessor withConstantPoolPolicy(ConstantPoolPolicy constantPoolPolicy) {
+        this.constantPoolPolicy = constantPoolPolicy;
+        return this;
+    }
+
+    /**
+     * Transform every constant pool entry of the stream only once per output file.
+     *
+     * @param cachePooledValues whether to transform pooled values only once
+     * @return this processor
+     * @throws IllegalArgumentException if pooled values are cached and the modifier is not pure
+     * @see JFRProcessor#withPooledValueCaching(boolean)
+     */
+    public JFRStreamProcessor withPooledValueCaching(boolean cachePooledValues) {
+        if (cachePooledValues && !modifier.isPure()) {
+            throw new IllegalArgumentException("Pooled value caching requires a pure modifier, see JFREventModifier.isPure()");
+        }
+        this.cachePooledValues = cachePooledValues;
+        return this;
+    }
+
+    /**
+     * Reuse the results of the modifier for repeated string values, across all output files.
+     *
+     * @param maxBytes the maximum estimated memory of the cache in bytes, 0 disables the cache
+     * @return this processor
+     * @throws IllegalArgumentException if the modifier is not pure or the limit is negative
+     * @see JFRProcessor#withStringCache(long)
+     */
+    public JFRStreamProcessor withStringCache(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Maximum cache size must not be negative, got " + maxBytes);
+        }
+        if (maxBytes > 0 && !modifier.isPure()) {
+            throw new IllegalArgumentException("The string cache requires a pure modifier, see JFREventModifier.isPure()");
+        }
+        this.strings = maxBytes == 0 ? null : new StringCache(maxBytes);
+        return this;
+    }
+
+    /**
+     * Get the hit and miss statistics of the string cache.
+     *
+     * @return the statistics, or null if the string cache is disabled
+     */
+    public StringCacheStatistics stringCacheStatistics() {
+        return strings == null ? null : strings.statistics();
+    }
+
+    /**
+     * Process the stream in the current thread until the stream ends or is closed,
+     * then finish the current output file.
+     *
+     * @throws IOException if writing an output file fails
+     */
+    public void start() throws IOException {
+        subscribe();
+        stream.start();
+        close();
+    }
+
+    /**
+     * Process the stream in a background thread, {@link #close()} stops the processing.
+     */
+    public void startAsync() {
+        subscribe();
+        stream.startAsync();
+    }
+
+    /**
+     * Close the stream and finish the current output file.
+     *
+     * @throws IOException if writing an output file failed
+     */
+    @Override
+    public void close() throws IOException {
+        stream.close();
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                List<Path> written = List.of();
+                try {
+                    if (files != null) {
+                        written = files.finish();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                } finally {
+                    if (closer != null) {
+                        closer.shutdown();
+                    }
+                }
+                logger.info("JFR stream processing complete: {} events written to {} files", writtenEvents, written.size());
+            }
+            if (failure instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (failure != null) {
+                throw new IOException("Failed to process event stream", failure);
+            }
+        }
+    }
+
+    private void subscribe() {
+        if (subscribed) {
+            throw new IllegalStateException("Stream processor has already been started");
+        }
+        subscribed = true;
+        stream.onEvent(this::onEvent);
+        stream.onFlush(this::onFlush);
+    }
+
+    private synchronized void onEvent(RecordedEvent event) {
+        if (closed || failure != null) {
+            return;
+        }
+        try {
+            if (processor == null) {
+                startOutput();
+            }
+            if (processor.processEvent(event)) {
+                if (fileEvents++ == 0) {
+                    fileStartNanos = System.nanoTime();
+                }
+                writtenEvents++;
+            }
+            finishFileIfTooOld();
+        } catch (IOException | RuntimeException e) {
+            failAndClose(e);
+        }
+    }
+
+    /**
+     * Called after each flush of the stream, about once per second for live streams,
+     * finishes the current file if it is too old even if no events arrive
+     */
+    private synchronized void onFlush() {
+        if (closed || failure != null || processor == null) {
+            return;
+        }
+        try {
+            finishFileIfTooOld();
+            files.reportClosedFiles();
+        } catch (IOException | RuntimeException e) {
+            failAndClose(e);
+        }
+    }
+
+    private void startOutput() {
+        closer = Executors.newFixedThreadPool(OutputRouter.MAX_CLOSING_FILES,
+                Thread.ofPlatform().name("jfr-file-closer").daemon().factory());
+        processor = new JFRProcessor(modifier, (Path) null, logger)
+                .withConstantPoolPolicy(constantPoolPolicy)
+                .withPooledValueCaching(cachePooledValues)
+                .withStringCache(strings);
+        files = processor.startOutput(new OutputRouter(outputDirectory)
+                .withMaxSize(maxSize)
+                .withFilePrefix(filePrefix)
+                .withFileListener(fileListener), closer);
+    }
+
+    /**
+     * Finish the current file in the background if its first event is older than the maximum duration,
+     * files are only started for written events, so there are no empty files
+     */
+    private void finishFileIfTooOld() throws IOException {
+        if (fileEvents > 0 && System.nanoTime() - fileStartNanos >= maxDuration.toNanos()) {
+            files.finishFiles();
+            fileEvents = 0;
+        }
+    }
+
+    private void failAndClose(Exception e) {
+        fail(e);
+        logger.error("Stopping JFR stream processing", e);
+        stream.close();
+    }
+
+    private void fail(Exception e) {
+        if (failure == null) {
+            failure = e instanceof UncheckedIOException unchecked ? unchecked.getCause() : e;
+        } else {
+            failure.addSuppressed(e);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package me.bechberger.jfr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single JFR chunk in a buffer, usually a memory-mapped part of the file, decoded without the JDK parser.
+ * <p>
+ * Opening the chunk decodes the metadata. Events are addressed by their position in the chunk and only their
+ * start time is decoded, skipping the fields before it, which does not allocate. {@link JFRProcessor} uses it
+ * to remove the events outside of the time window before the JDK parser reads the input.
+ * <p>
+ * The chunk keeps the read position and is therefore not thread-safe.
+ */
+final class MappedChunk {
+
+    static final long NO_START_TIME = Long.MIN_VALUE;
+
+    static final int STRUCT = 0;
+    static final int BOOLEAN = 1;
+    static final int BYTE = 2;
+    static final int CHAR = 3;
+    static final int SHORT = 4;
+    static final int INT = 5;
+    static final int LONG = 6;
+    static final int FLOAT = 7;
+    static final int DOUBLE = 8;
+    static final int STRING = 9;
+
+    private static final String TIMESTAMP_ANNOTATION = "jdk.jfr.Timestamp";
+    private static final String EPOCH_NANOS = "NANOSECONDS_SINCE_EPOCH";
+
+    /**
+     * A class of the chunk metadata, the type of events, constants and fields
+     */
+    private static final class Type {
+        final long id;
+        final String name;
+        final int kind;
+        Field[] fields;
+        /**
+         * Index of the {@code startTime} field, -1 if the type has none
+         */
+        int startTimeField = -1;
+        private final Map<String, Integer> fieldIndexes = new HashMap<>();
+
+        private Type(long id, String name) {
+            this.id = id;
+            this.name = name;
+            this.kind = kindOf(name);
+        }
+
+        int fieldIndex(String name) {
+            Integer index = fieldIndexes.get(name);
+            return index == null ? -1 : index;
+        }
+    }
+
+    /**
+     * A field of a type
+     *
+     * @see Type#fields
+     */
+    private static final class Field {
+        final String name;
+        final long typeId;
+        final boolean constantPool;
+        final int dimension;
+        Type type;
+        /**
+         * Whether the field is a timestamp in nanoseconds since epoch instead of ticks
+         */
+        boolean epochNanos;
+
+        private Field(String name, long typeId, boolean constantPool, int dimension) {
+            this.name = name;
+            this.typeId = typeId;
+            this.constantPool = constantPool;
+            this.dimension = dimension;
+        }
+    }
+
+    private record Element(String name, Map<String, String> attributes, List<Element> children) {
+    }
+
+    private final ByteBuffer buffer;
+    private final ChunkHeader header;
+    private final LongIntMap typeIndexes = new LongIntMap();
+    private final List<Type> types = new ArrayList<>();
+    private int position;
+
+    /**
+     * Decode the metadata of the chunk.
+     *
+     * @param buffer Buffer containing the whole chunk, starting with its header at position 0
+     * @param header The header of the chunk
+     * @throws IOException if the chunk is malformed
+     */
+    MappedChunk(ByteBuffer buffer, ChunkHeader header) throws IOException {
+        this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        this.header = header;
+        try {
+            readMetadata();
+        } catch (IndexOutOfBoundsException | IllegalStateException e) {
+            throw new IOException("Malformed chunk at position " + header.offset() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the type with the given id, null if the metadata does not declare it
+     */
+    private Type type(long id) {
+        int index = typeIndexes.get(id);
+        return index == LongIntMap.MISSING ? null : types.get(index);
+    }
+
+    // ---- events ----
+
+    /**
+     * Get the start time of an event.
+     *
+     * @return the start time in nanoseconds since epoch, {@link #NO_START_TIME} if the type has no start time
+     */
+    long startTimeNanos(int eventPosition) {
+        position = eventPosition;
+        readVarLong(); // size
+        Type type = type(readVarLong());
+        if (type == null || type.startTimeField < 0) {
+            return NO_START_TIME;
+        }
+        for (int i = 0; i < type.startTimeField; i++) {
+            skipValue(type.fields[i]);
+        }
+        Field field = type.fields[type.startTimeField];
+        long startTime = readVarLong();
+        return field.epochNanos ? startTime : header.toEpochNanos(startTime);
+    }
+
+    // ---- values ----
+
+    /**
+     * Read an inline string, like the strings of the metadata
+     */
+    private String readString(int valuePosition) {
+        position = valuePosition;
+        byte encoding = buffer.get(position++);
+        return switch (encoding) {
+            case 0 -> null;
+            case 1 -> "";
+            case 3, 5 -> {
+                int length = (int) readVarLong();
+                byte[] bytes = new byte[length];
+                buffer.get(position, bytes);
+                position += length;
+                yield new String(bytes, encoding == 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+            }
+            case 4 -> {
+                char[] chars = new char[(int) readVarLong()];
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = (char) readVarLong();
+                }
+                yield new String(chars);
+            }
+            default -> throw new IllegalStateException("Unsupported string encoding " + encoding + " at chunk offset " + (position - 1));
+        };
+    }
+
+    private void skipValue(Field field) {
+        if (field.dimension > 0) {
+            long length = readVarLong();
+            for (long i = 0; i < length; i++) {
+                skipElement(field);
+            }
+        } else {
+            skipElement(field);
+        }
+    }
+
+    private void skipElement(Field field) {
+        if (field.constantPool) {
+            readVarLong();
+        } else {
+            skipType(field.type);
+        }
+    }
+
+    private void skipType(Type type) {
+        switch (type.kind) {
+            case BOOLEAN, BYTE -> position++;
+            case FLOAT -> position += 4;
+            case DOUBLE -> position += 8;
+            case CHAR, SHORT, INT, LONG -> readVarLong();
+            case STRING -> skipString();
+            default -> {
+                for (Field field : type.fields) {
+                    skipValue(field);
+                }
+            }
+        }
+    }
+
+    private void skipString() {
+        byte encoding = buffer.get(position++);
+        switch (encoding) {
+            case 0, 1 -> {
+            }
+            case 2 -> readVarLong();
+            case 3, 5 -> {
+                int length = (int) readVarLong();
+                position += length;
+            }
+            case 4 -> {
+                long length = readVarLong();
+                for (long i = 0; i < length; i++) {
+                    readVarLong();
+                }
+            }
+            default -> throw new IllegalStateException("Unsupported string encoding " + encoding + " at chunk offset " + (position - 1));
+        }
+    }
+
+    /**
+     * Read a LEB128 encoded long, like {@link ChunkScanner#readVarLong(ByteBuffer)} but with absolute reads
+     */
+    private long readVarLong() {
+        long result = 0;
+        for (int shift = 0; shift < 56; shift += 7) {
+            byte b = buffer.get(position++);
+            result |= (b & 0x7FL) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        return result | ((buffer.get(position++) & 0xFFL) << 56);
+    }
+
+    // ---- metadata and constant pools ----
+
+    private void readMetadata() throws IOException {
+        ByteBuffer reader = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        reader.position(new ChunkScanner(buffer, header).metadataIdPosition());
+        ChunkScanner.readVarLong(reader); // metadata id
+        position = reader.position();
+        String[] strings = new String[(int) readVarLong()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(position);
+        }
+        Element root = readElement(strings);
+        List<Element> classes = new ArrayList<>();
+        for (Element metadata : root.children()) {
+            if (metadata.name().equals("metadata")) {
+                for (Element element : metadata.children()) {
+                    if (element.name().equals("class")) {
+                        classes.add(element);
+                    }
+                }
+            }
+        }
+        for (Element element : classes) {
+            Type type = new Type(parseId(element), element.attributes().get("name"));
+            typeIndexes.put(type.id, types.size());
+            types.add(type);
+        }
+        for (int i = 0; i < classes.size(); i++) {
+            Type type = types.get(i);
+            List<Field> fields = new ArrayList<>();
+            for (Element element : classes.get(i).children()) {
+                if (element.name().equals("field")) {
+                    fields.add(readField(element, type));
+                }
+            }
+            type.fields = fields.toArray(new Field[0]);
+            for (int j = 0; j < type.fields.length; j++) {
+                type.fieldIndexes.put(type.fields[j].name, j);
+            }
+            int startTime = type.fieldIndex("startTime");
+            if (startTime >= 0 && type.fields[startTime].type.kind == LONG) {
+                type.startTimeField = startTime;
+            }
+        }
+    }
+
+    private Field readField(Element element, Type owner) throws IOException {
+        Map<String, String> attributes = element.attributes();
+        String dimension = attributes.get("dimension");
+        Field field = new Field(attributes.get("name"), Long.parseLong(attributes.get("class")),
+                "true".equals(attributes.get("constantPool")), dimension == null ? 0 : Integer.parseInt(dimension));
+        field.type = type(field.typeId);
+        if (field.name == null || field.type == null) {
+            throw new IOException("Invalid field " + field.name + " of type " + owner.name + " in chunk metadata");
+        }
+        for (Element annotation : element.children()) {
+            Type annotationType = annotation.name().equals("annotation")
+                    ? type(Long.parseLong(annotation.attributes().get("class"))) : null;
+            if (annotationType != null && TIMESTAMP_ANNOTATION.equals(annotationType.name)) {
+                field.epochNanos = EPOCH_NANOS.equals(annotation.attributes().get("value"));
+            }
+        }
+        return field;
+    }
+
+    private static long parseId(Element element) throws IOException {
+        String id = element.attributes().get("id");
+        if (id == null || element.attributes().get("name") == null) {
+            throw new IOException("Class without name or id in chunk metadata");
+        }
+        return Long.parseLong(id);
+    }
+
+    private Element readElement(String[] strings) {
+        String name = strings[(int) readVarLong()];
+        int attributeCount = (int) readVarLong();
+        Map<String, String> attributes = new HashMap<>();
+        for (int i = 0; i < attributeCount; i++) {
+            String key = strings[(int) readVarLong()];
+            attributes.put(key, strings[(int) readVarLong()]);
+        }
+        int childCount = (int) readVarLong();
+        List<Element> children = new ArrayList<>(childCount);
+        for (int i = 0; i < childCount; i++) {
+            children.add(readElement(strings));
+        }
+        return new Element(name, attributes, children);
+    }
+
+    static int kindOf(String typeName) {
+        return switch (typeName) {
+            case "boolean" -> BOOLEAN;
+            case "byte" -> BYTE;
+            case "char" -> CHAR;
+            case "short" -> SHORT;
+            case "int" -> INT;
+            case "long" -> LONG;
+            case "float" -> FLOAT;
+            case "double" -> DOUBLE;
+            case "java.lang.String" -> STRING;
+            default -> STRUCT;
+        };
+    }
+}
@@ -0,0 +1,801 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.AnnotationElement;
+import jdk.jfr.EventType;
+import jdk.jfr.ValueDescriptor;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static me.bechberger.jfr.MappedChunk.BOOLEAN;
+import static me.bechberger.jfr.MappedChunk.BYTE;
+import static me.bechberger.jfr.MappedChunk.DOUBLE;
+import static me.bechberger.jfr.MappedChunk.FLOAT;
+import static me.bechberger.jfr.MappedChunk.STRING;
+import static me.bechberger.jfr.MappedChunk.STRUCT;
+
+/**
+ * Writes a JFR recording without the JMC writer, by encoding the events directly into a reusable direct buffer.
+ * <p>
+ * The JMC writer creates a value with a map of field values for every event and every nested value,
+ * and a new buffer for every written event. This writer is driven by a {@link NativeWritePlan}, which encodes
+ * the fields of an event into the buffer of the current chunk while they are read: integers as LEB128 varints,
+ * strings inline and values of pooled types as the id of their constant. Constants are written once per chunk
+ * into the constant pool of their type and keyed by the identity of the input objects, which the JDK parser
+ * creates once per constant of the input. Apart from new constants, writing an event does not allocate.
+ * Constants written with a modifier that is not pure are only reused within the event that writes them,
+ * as the modifier may transform the same input object differently for every event.
+ * <p>
+ * Chunks are kept in memory until they are full, then the header, the events, the constant pools and the metadata
+ * are written to the output stream. Types are registered once and keep their id in all chunks, constant ids are
+ * never reused: the JDK parser keeps the constants of a type id and reuses them if their id reappears in the next
+ * chunk. Timestamps are written in the ticks of the input, the chunk headers use the clock of the input chunk
+ * the events come from. Events of an input chunk with another clock therefore start a new chunk,
+ * see {@link #useClock(ChunkHeader)}.
+ * <p>
+ * The writer is not thread-safe.
+ */
+final class NativeRecordingWriter {
+
+    static final String EVENT_SUPER_TYPE = "jdk.jfr.Event";
+    private static final String ANNOTATION_SUPER_TYPE = "java.lang.annotation.Annotation";
+    private static final byte[] MAGIC = {'F', 'L', 'R', '\0'};
+    private static final short MAJOR_VERSION = 2;
+    private static final short MINOR_VERSION = 0;
+    private static final int COMPRESSED_INTEGERS = 1;
+    /**
+     * Ids 0 and 1 are the type ids of the metadata and constant pool events
+     */
+    private static final long FIRST_TYPE_ID = 2;
+    private static final int INITIAL_EVENT_BUFFER_SIZE = 1024 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+    /**
+     * Event sizes are written as varints padded to four bytes, like the JDK does, so that the event
+     * can be encoded before its size is known
+     */
+    private static final int EVENT_SIZE_BYTES = 4;
+    private static final int MAX_EVENT_SIZE = (1 << 7 * EVENT_SIZE_BYTES) - 1;
+    /**
+     * Five padded bytes can hold the size of every buffer
+     */
+    private static final int SIZE_BYTES = 5;
+    private static final byte STRING_NULL = 0;
+    private static final byte STRING_EMPTY = 1;
+    private static final byte STRING_CHARS = 4;
+    private static final byte STRING_LATIN1 = 5;
+
+    /**
+     * A type of the output
+     */
+    static final class Type {
+        final long id;
+        final String name;
+        final String superType;
+        /**
+         * The kind of the type, see {@link MappedChunk#kindOf(String)}
+         */
+        final int kind;
+        /**
+         * Whether values are stored in the constant pool
+         */
+        final boolean pooled;
+        final List<Field> fields = new ArrayList<>();
+        final List<AnnotationElement> annotations = new ArrayList<>();
+        /**
+         * Constant ids in the current chunk by input object, for the values written with and without the modifier
+         */
+        private final Map<Object, Long> processedConstants;
+        private final Map<Object, Long> copiedConstants;
+        private Buffer pool;
+        private int poolSize = 0;
+
+        private Type(long id, String name, String superType, boolean pooled) {
+            this.id = id;
+            this.name = name;
+            this.superType = superType;
+            this.kind = MappedChunk.kindOf(name);
+            this.pooled = pooled;
+            this.processedConstants = pooled ? new IdentityHashMap<>() : null;
+            this.copiedConstants = pooled ? new IdentityHashMap<>() : null;
+        }
+
+        private Map<Object, Long> constants(boolean processed) {
+            return processed ? processedConstants : copiedConstants;
+        }
+    }
+
+    /**
+     * A field of an output type
+     *
+     * @param array Whether the field is an array of values of its type
+     */
+    record Field(String name, Type type, boolean array, List<AnnotationElement> annotations) {
+    }
+
+    private final OutputStream outputStream;
+    private final WritableByteChannel out;
+    /**
+     * The input chunk whose clock converts the ticks of the events of the current chunk
+     */
+    private ChunkHeader clock;
+    private final long maxChunkEvents;
+    private final long maxChunkSize;
+    private final Map<String, Type> types = new LinkedHashMap<>();
+    /**
+     * Names of annotations that cannot be written, as their values are not primitives or strings
+     */
+    private final Set<String> unsupportedAnnotations = new HashSet<>();
+    private long nextTypeId = FIRST_TYPE_ID;
+    private long nextConstantId = 1;
+    /**
+     * Whether constants written with the modifier are reused in the whole chunk, or only in the current event
+     */
+    private final boolean reuseProcessedConstants;
+    /**
+     * Constant ids of the current event by input object, for the values written with the modifier,
+     * if they are not reused in the whole chunk
+     */
+    private final Map<Object, Long> eventConstants = new IdentityHashMap<>();
+    private final Buffer events = new Buffer(INITIAL_EVENT_BUFFER_SIZE);
+    /**
+     * Buffers for the constants that are currently written, by nesting depth
+     */
+    private final List<Buffer> constantBuffers = new ArrayList<>();
+    private int constantDepth = 0;
+    private Buffer current = events;
+    private final Buffer constantPool = new Buffer(INITIAL_BUFFER_SIZE);
+    private final Buffer metadata = new Buffer(INITIAL_BUFFER_SIZE);
+    private final ByteBuffer header = ByteBuffer.allocate(ChunkHeader.HEADER_SIZE);
+    private int eventStart;
+    private long eventStartTicks;
+    private long chunkEvents = 0;
+    private long lastTicks = Long.MIN_VALUE;
+    private int chunks = 0;
+
+    /**
+     * @param outputStream   The stream to write the recording to, it is flushed but not closed
+     * @param clock          A chunk header of the input, its clock converts the ticks of the first events
+     * @param maxChunkEvents The maximum number of events per chunk, 0 for no limit
+     * @param maxChunkSize   The approximate maximum size of a chunk in bytes, 0 for no limit
+     * @param reuseProcessedConstants Whether constants written with the modifier are reused in the whole chunk,
+     *                                which requires a pure modifier, see {@link JFREventModifier#isPure()}
+     */
+    NativeRecordingWriter(OutputStream outputStream, ChunkHeader clock, long maxChunkEvents, long maxChunkSize,
+                          boolean reuseProcessedConstants) {
+        this.outputStream = outputStream;
+        this.out = outputStream instanceof FileOutputStream fileOutput
+                ? fileOutput.getChannel()
+                : Channels.newChannel(outputStream);
+        this.clock = clock;
+        this.maxChunkEvents = maxChunkEvents;
+        this.maxChunkSize = maxChunkSize;
+        this.reuseProcessedConstants = reuseProcessedConstants;
+    }
+
+    /**
+     * Get the output type of an event type, registering it and the types of its fields on first use.
+     *
+     * @param pooled Decides whether the values of a complex type are stored in the constant pool
+     */
+    Type eventType(EventType eventType, Predicate<ValueDescriptor> pooled) {
+        Type type = types.get(eventType.getName());
+        if (type == null) {
+            type = addType(eventType.getName(), EVENT_SUPER_TYPE, false);
+            addFields(type, eventType.getFields(), pooled);
+            type.annotations.addAll(registerAnnotations(eventType.getAnnotationElements()));
+        }
+        return type;
+    }
+
+    /**
+     * Get the output type of the values of a field, registering it on first use.
+     * Recursive types are supported, as a type is registered before the types of its fields.
+     */
+    private Type valueType(ValueDescriptor descriptor, Predicate<ValueDescriptor> pooled) {
+        Type type = types.get(descriptor.getTypeName());
+        if (type == null) {
+            boolean complex = MappedChunk.kindOf(descriptor.getTypeName()) == STRUCT;
+            type = addType(descriptor.getTypeName(), null, complex && pooled.test(descriptor));
+            if (complex) {
+                addFields(type, descriptor.getFields(), pooled);
+            }
+        }
+        return type;
+    }
+
+    private Type addType(String name, String superType, boolean pooled) {
+        Type type = new Type(nextTypeId++, name, superType, pooled);
+        types.put(name, type);
+        return type;
+    }
+
+    private void addFields(Type type, List<ValueDescriptor> fields, Predicate<ValueDescriptor> pooled) {
+        for (ValueDescriptor field : fields) {
+            type.fields.add(new Field(field.getName(), valueType(field, pooled), field.isArray(),
+                    registerAnnotations(field.getAnnotationElements())));
+        }
+    }
+
+    /**
+     * Register the types of the annotations and their meta-annotations
+     *
+     * @return The annotations that can be written
+     */
+    private List<AnnotationElement> registerAnnotations(List<AnnotationElement> annotations) {
+        List<AnnotationElement> supported = new ArrayList<>(annotations.size());
+        for (AnnotationElement annotation : annotations) {
+            if (annotationType(annotation) != null) {
+                supported.add(annotation);
+            }
+        }
+        return supported;
+    }
+
+    /**
+     * @return The registered annotation type, null if the annotation has values that are not primitives or strings
+     */
+    private Type annotationType(AnnotationElement annotation) {
+        String name = annotation.getTypeName();
+        Type type = types.get(name);
+        if (type != null || unsupportedAnnotations.contains(name)) {
+            return type;
+        }
+        for (ValueDescriptor value : annotation.getValueDescriptors()) {
+            if (MappedChunk.kindOf(value.getTypeName()) == STRUCT) {
+                unsupportedAnnotations.add(name);
+                return null;
+            }
+        }
+        type = addType(name, ANNOTATION_SUPER_TYPE, false);
+        addFields(type, annotation.getValueDescriptors(), descriptor -> false);
+        type.annotations.addAll(registerAnnotations(annotation.getAnnotationElements()));
+        return type;
+    }
+
+    /**
+     * Start an event of the given type, finishing the current chunk first if it is full
+     */
+    void beginEvent(Type type) throws IOException {
+        if (chunkEvents > 0 && (maxChunkEvents > 0 && chunkEvents >= maxChunkEvents
+                || maxChunkSize > 0 && events.position() >= maxChunkSize)) {
+            finishChunk();
+        }
+        if (!eventConstants.isEmpty()) {
+            eventConstants.clear();
+        }
+        eventStart = events.position();
+        events.skip(EVENT_SIZE_BYTES);
+        events.putVarLong(type.id);
+    }
+
+    /**
+     * Finish the event started with {@link #beginEvent(Type)}
+     */
+    void endEvent() {
+        int size = events.position() - eventStart;
+        if (size > MAX_EVENT_SIZE) {
+            events.truncate(eventStart);
+            throw new IllegalStateException("Event of " + size + " bytes exceeds the maximum event size");
+        }
+        events.putPaddedVarInt(eventStart, size, EVENT_SIZE_BYTES);
+        chunkEvents++;
+    }
+
+    void putBoolean(boolean value) {
+        current.putByte(value ? 1 : 0);
+    }
+
+    void putByte(byte value) {
+        current.putByte(value);
+    }
+
+    void putShort(short value) {
+        current.putVarLong(value & 0xFFFF);
+    }
+
+    void putChar(char value) {
+        current.putVarLong(value);
+    }
+
+    void putInt(int value) {
+        current.putVarLong(value & 0xFFFFFFFFL);
+    }
+
+    void putLong(long value) {
+        current.putVarLong(value);
+    }
+
+    /**
+     * Write the start time of the current event in ticks, it determines the end of the chunk
+     */
+    void putStartTime(long ticks) {
+        current.putVarLong(ticks);
+        eventStartTicks = ticks;
+        lastTicks = Math.max(lastTicks, ticks);
+    }
+
+    /**
+     * Write the duration of the current event in ticks, after its start time
+     */
+    void putDuration(long ticks) {
+        current.putVarLong(ticks);
+        lastTicks = Math.max(lastTicks, eventStartTicks + ticks);
+    }
+
+    void putFloat(float value) {
+        current.putFloat(value);
+    }
+
+    void putDouble(double value) {
+        current.putDouble(value);
+    }
+
+    void putString(String value) {
+        current.putString(value);
+    }
+
+    void putArrayLength(int length) {
+        current.putVarLong(length);
+    }
+
+    /**
+     * Write the value of a field that is missing or null: zero, a null string, an empty array,
+     * the null constant or the null values of all fields of an inline value
+     */
+    void putNull(Field field) {
+        putNull(field.type(), field.array());
+    }
+
+    void putNull(Type type, boolean array) {
+        if (array) {
+            current.putVarLong(0);
+            return;
+        }
+        switch (type.kind) {
+            case BOOLEAN, BYTE -> current.putByte(0);
+            case FLOAT -> current.putFloat(0);
+            case DOUBLE -> current.putDouble(0);
+            case STRING -> current.putByte(STRING_NULL);
+            case STRUCT -> {
+                if (type.pooled) {
+                    current.putVarLong(0);
+                } else {
+                    for (Field field : type.fields) {
+                        putNull(field);
+                    }
+                }
+            }
+            default -> current.putVarLong(0);
+        }
+    }
+
+    /**
+     * Look up the constant of an input object in the current chunk.
+     *
+     * @param processed Whether the value is written with the modifier
+     * @return The id of the constant, 0 if the object has not been written to the chunk yet
+     */
+    long constant(Type type, boolean processed, Object key) {
+        Long id = constants(type, processed).get(key);
+        return id == null ? 0 : id;
+    }
+
+    /**
+     * Start writing the constant of an input object to the constant pool of its type: the values written until
+     * {@link #endConstant(Type, long)} are its fields. Constants can be written while writing other constants.
+     * The id is registered right away, so that recursive values reference the constant.
+     *
+     * @param processed Whether the value is written with the modifier
+     * @return The id of the new constant
+     */
+    long beginConstant(Type type, boolean processed, Object key) {
+        long id = nextConstantId++;
+        constants(type, processed).put(key, id);
+        if (constantDepth == constantBuffers.size()) {
+            constantBuffers.add(new Buffer(INITIAL_BUFFER_SIZE));
+        }
+        current = constantBuffers.get(constantDepth++);
+        return id;
+    }
+
+    private Map<Object, Long> constants(Type type, boolean processed) {
+        return processed && !reuseProcessedConstants ? eventConstants : type.constants(processed);
+    }
+
+    /**
+     * Finish the constant started with {@link #beginConstant(Type, boolean, Object)} and add it to the constant pool
+     */
+    void endConstant(Type type, long id) {
+        Buffer value = current;
+        constantDepth--;
+        current = constantDepth == 0 ? events : constantBuffers.get(constantDepth - 1);
+        if (type.pool == null) {
+            type.pool = new Buffer(INITIAL_BUFFER_SIZE);
+        }
+        type.pool.putVarLong(id);
+        type.pool.transferFrom(value);
+        type.poolSize++;
+    }
+
+    /**
+     * Check if the ticks of the events of the given input chunk can be written into the current chunk
+     */
+    boolean hasSameClock(ChunkHeader inputChunk) {
+        return clock.hasSameClock(inputChunk);
+    }
+
+    /**
+     * Write the next events with the clock of the given input chunk. If the current chunk uses another clock,
+     * it is finished first, as the ticks of the events are written as they are.
+     */
+    void useClock(ChunkHeader inputChunk) throws IOException {
+        if (hasSameClock(inputChunk)) {
+            return;
+        }
+        if (chunkEvents > 0) {
+            finishChunk();
+        }
+        clock = inputChunk;
+    }
+
+    /**
+     * Write the last chunk and flush the output stream
+     */
+    void finish() throws IOException {
+        if (chunkEvents > 0 || chunks == 0) {
+            finishChunk();
+        }
+        outputStream.flush();
+    }
+
+    private void finishChunk() throws IOException {
+        chunks++;
+        // Every chunk starts at the start of the clock, converting ticks relative to another start would round
+        // differently and shift the times of the events by a nanosecond
+        long startTicks = clock.startTicks();
+        long endTicks = Math.max(startTicks, lastTicks);
+        encodeConstantPool(startTicks);
+        encodeMetadata(startTicks, chunks);
+
+        long constantPoolOffset = ChunkHeader.HEADER_SIZE + (long) events.position();
+        long metadataOffset = constantPoolOffset + constantPool.position();
+        long startNanos = toNanos(startTicks);
+        header.clear();
+        header.put(MAGIC);
+        header.putShort(MAJOR_VERSION);
+        header.putShort(MINOR_VERSION);
+        header.putLong(metadataOffset + metadata.position());
+        header.putLong(constantPoolOffset);
+        header.putLong(metadataOffset);
+        header.putLong(startNanos);
+        header.putLong(toNanos(endTicks) - startNanos);
+        header.putLong(startTicks);
+        header.putLong(clock.ticksPerSecond());
+        header.putInt(COMPRESSED_INTEGERS);
+        writeFully(header.flip());
+        events.writeTo(out);
+        constantPool.writeTo(out);
+        metadata.writeTo(out);
+
+        for (Type type : types.values()) {
+            if (type.pooled) {
+                type.processedConstants.clear();
+                type.copiedConstants.clear();
+                type.poolSize = 0;
+            }
+        }
+        chunkEvents = 0;
+        lastTicks = Long.MIN_VALUE;
+    }
+
+    private long toNanos(long ticks) {
+        return clock.startNanos() + (long) ((ticks - clock.startTicks()) / (clock.ticksPerSecond() / 1_000_000_000.0));
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Encode the constant pool event with the pools of all types that have constants in the chunk
+     */
+    private void encodeConstantPool(long startTicks) {
+        constantPool.skip(SIZE_BYTES);
+        constantPool.putVarLong(ChunkScanner.CONSTANT_POOL_TYPE_ID);
+        constantPool.putVarLong(startTicks);
+        constantPool.putVarLong(0); // duration
+        constantPool.putVarLong(0); // delta to the next constant pool event, this is the only one
+        constantPool.putByte(0); // not a flush
+        int pools = 0;
+        for (Type type : types.values()) {
+            if (type.poolSize > 0) {
+                pools++;
+            }
+        }
+        constantPool.putVarLong(pools);
+        for (Type type : types.values()) {
+            if (type.poolSize > 0) {
+                constantPool.putVarLong(type.id);
+                constantPool.putVarLong(type.poolSize);
+                constantPool.transferFrom(type.pool);
+            }
+        }
+        constantPool.putPaddedVarInt(0, constantPool.position(), SIZE_BYTES);
+    }
+
+    /**
+     * Encode the metadata event with all registered types
+     *
+     * @param metadataId The id of the metadata, it differs between consecutive chunks, as the JDK parser
+     *                   reuses the metadata of the previous chunk if the id is the same
+     */
+    private void encodeMetadata(long startTicks, long metadataId) {
+        Element root = new Element("root");
+        Element metadataElement = root.child("metadata");
+        for (Type type : types.values()) {
+            Element typeElement = metadataElement.child("class")
+                    .attribute("name", type.name)
+                    .attribute("id", Long.toString(type.id));
+            if (type.superType != null) {
+                typeElement.attribute("superType", type.superType);
+            }
+            for (AnnotationElement annotation : type.annotations) {
+                addAnnotation(typeElement, annotation);
+            }
+            for (Field field : type.fields) {
+                Element fieldElement = typeElement.child("field")
+                        .attribute("name", field.name())
+                        .attribute("class", Long.toString(field.type().id));
+                if (field.type().pooled) {
+                    fieldElement.attribute("constantPool", "true");
+                }
+                if (field.array()) {
+                    fieldElement.attribute("dimension", "1");
+                }
+                for (AnnotationElement annotation : field.annotations()) {
+                    addAnnotation(fieldElement, annotation);
+                }
+            }
+        }
+        root.child("region").attribute("gmtOffset", "0").attribute("locale", "en_US");
+
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        root.collectStrings(strings);
+        metadata.skip(SIZE_BYTES);
+        metadata.putVarLong(ChunkScanner.METADATA_TYPE_ID);
+        metadata.putVarLong(startTicks);
+        metadata.putVarLong(0); // duration
+        metadata.putVarLong(metadataId);
+        metadata.putVarLong(strings.size());
+        for (String string : strings.keySet()) {
+            metadata.putString(string);
+        }
+        root.encode(metadata, strings);
+        metadata.putPaddedVarInt(0, metadata.position(), SIZE_BYTES);
+    }
+
+    /**
+     * Add an annotation element, array values are stored as attributes with the index appended to the name
+     */
+    private void addAnnotation(Element parent, AnnotationElement annotation) {
+        Type type = types.get(annotation.getTypeName());
+        Element element = parent.child("annotation").attribute("class", Long.toString(type.id));
+        for (ValueDescriptor descriptor : annotation.getValueDescriptors()) {
+            Object value = annotation.getValue(descriptor.getName());
+            if (value == null) {
+                continue;
+            }
+            if (value.getClass().isArray()) {
+                for (int i = 0; i < Array.getLength(value); i++) {
+                    element.attribute(descriptor.getName() + "-" + i, String.valueOf(Array.get(value, i)));
+                }
+            } else {
+                element.attribute(descriptor.getName(), String.valueOf(value));
+            }
+        }
+    }
+
+    /**
+     * Element of the metadata tree, the names and attributes are encoded as indexes into the string table
+     */
+    private static final class Element {
+        private final String name;
+        /**
+         * Attribute names and values, alternating
+         */
+        private final List<String> attributes = new ArrayList<>();
+        private final List<Element> children = new ArrayList<>();
+
+        Element(String name) {
+            this.name = name;
+        }
+
+        Element child(String childName) {
+            Element child = new Element(childName);
+            children.add(child);
+            return child;
+        }
+
+        Element attribute(String key, String value) {
+            attributes.add(key);
+            attributes.add(value);
+            return this;
+        }
+
+        void collectStrings(Map<String, Integer> strings) {
+            strings.putIfAbsent(name, strings.size());
+            for (String attribute : attributes) {
+                strings.putIfAbsent(attribute, strings.size());
+            }
+            for (Element child : children) {
+                child.collectStrings(strings);
+            }
+        }
+
+        void encode(Buffer buffer, Map<String, Integer> strings) {
+            buffer.putVarLong(strings.get(name));
+            buffer.putVarLong(attributes.size() / 2);
+            for (String attribute : attributes) {
+                buffer.putVarLong(strings.get(attribute));
+            }
+            buffer.putVarLong(children.size());
+            for (Element child : children) {
+                child.encode(buffer, strings);
+            }
+        }
+    }
+
+    /**
+     * Growable direct buffer with the encodings of the JFR format
+     */
+    private static final class Buffer {
+        private ByteBuffer data;
+
+        Buffer(int capacity) {
+            this.data = ByteBuffer.allocateDirect(capacity);
+        }
+
+        int position() {
+            return data.position();
+        }
+
+        void skip(int bytes) {
+            ensure(bytes);
+            data.position(data.position() + bytes);
+        }
+
+        void truncate(int position) {
+            data.position(position);
+        }
+
+        void putByte(int value) {
+            ensure(1);
+            data.put((byte) value);
+        }
+
+        void putFloat(float value) {
+            ensure(Float.BYTES);
+            data.putFloat(value);
+        }
+
+        void putDouble(double value) {
+            ensure(Double.BYTES);
+            data.putDouble(value);
+        }
+
+        /**
+         * Write a LEB128 varint, the ninth byte holds the remaining eight bits
+         */
+        void putVarLong(long value) {
+            ensure(9);
+            for (int i = 0; i < 8; i++) {
+                if ((value & ~0x7FL) == 0) {
+                    data.put((byte) value);
+                    return;
+                }
+                data.put((byte) (value | 0x80));
+                value >>>= 7;
+            }
+            data.put((byte) value);
+        }
+
+        /**
+         * Write a varint that is padded to the given number of bytes at an earlier position
+         */
+        void putPaddedVarInt(int position, int value, int bytes) {
+            for (int i = 0; i < bytes - 1; i++) {
+                data.put(position + i, (byte) (value | 0x80));
+                value >>>= 7;
+            }
+            data.put(position + bytes - 1, (byte) value);
+        }
+
+        /**
+         * Write a string inline, as Latin-1 bytes if possible, otherwise as varint chars
+         */
+        void putString(String value) {
+            if (value == null) {
+                putByte(STRING_NULL);
+                return;
+            }
+            int length = value.length();
+            if (length == 0) {
+                putByte(STRING_EMPTY);
+                return;
+            }
+            if (isLatin1(value)) {
+                putByte(STRING_LATIN1);
+                putVarLong(length);
+                ensure(length);
+                for (int i = 0; i < length; i++) {
+                    data.put((byte) value.charAt(i));
+                }
+            } else {
+                putByte(STRING_CHARS);
+                putVarLong(length);
+                for (int i = 0; i < length; i++) {
+                    putVarLong(value.charAt(i));
+                }
+            }
+        }
+
+        private static boolean isLatin1(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                if (value.charAt(i) > 0xFF) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Append the content of the other buffer and clear it
+         */
+        void transferFrom(Buffer other) {
+            ByteBuffer source = other.data.flip();
+            ensure(source.remaining());
+            data.put(source);
+            other.data.clear();
+        }
+
+        /**
+         * Write the content to the channel and clear the buffer
+         */
+        void writeTo(WritableByteChannel channel) throws IOException {
+            data.flip();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            data.clear();
+        }
+
+        private void ensure(int bytes) {
+            if (data.remaining() >= bytes) {
+                return;
+            }
+            long required = (long) data.position() + bytes;
+            if (required > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Chunk exceeds 2 GB, limit the chunk size");
+            }
+            ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE - 8,
+                    Math.max(required, 2L * data.capacity())));
+            grown.put(data.flip());
+            data = grown;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.EventType;
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedObject;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.List;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Compiled plan for writing recorded objects of one JFR type with the {@link NativeRecordingWriter}.
+ * <p>
+ * Like a {@link WritePlan}, the plan is built once per type and every field gets an encoder that is bound to
+ * the field name, the output type and the modifier method for the field's type. The encoders write the values
+ * directly into the buffer of the writer instead of creating output values. The modifier is applied to the fields
+ * it processes and to all of their nested values, with a {@link StringCache}, the results for string values are
+ * reused. Values of pooled types are only encoded, and therefore only transformed, when they are first written
+ * to a chunk, later references write the id of the constant. With a {@link StackTraceTable}, stack traces are
+ * truncated while their frames are written.
+ * <p>
+ * Fields of the output type that the recorded objects do not have are written as null values.
+ */
+final class NativeWritePlan {
+
+    private static final String STACK_TRACE_TYPE = "jdk.types.StackTrace";
+
+    /**
+     * Reads a field of a recorded object and encodes it
+     */
+    @FunctionalInterface
+    private interface FieldEncoder {
+        void encode(NativeRecordingWriter out, RecordedObject object);
+    }
+
+    /**
+     * Applies the modifier to a non-null value and encodes it
+     */
+    @FunctionalInterface
+    private interface ValueEncoder {
+        void encode(NativeRecordingWriter out, Object value);
+    }
+
+    private final NativeRecordingWriter.Type type;
+    private final FieldEncoder[] encoders;
+
+    /**
+     * @param event           Whether the objects are events, their start time and duration determine the time span of the chunk
+     * @param modifier        The modifier, null to copy all values unchanged
+     * @param processedFields The fields whose values the modifier is applied to, including their nested values
+     * @param strings         The cache for transformed string values, or null
+     * @param stackTraces     Truncates the stack traces, or null to write them like other values
+     */
+    private NativeWritePlan(NativeRecordingWriter.Type type, List<ValueDescriptor> fields, boolean event,
+                            JFREventModifier modifier, Predicate<ValueDescriptor> processedFields, StringCache strings,
+                            StackTraceTable stackTraces) {
+        this.type = type;
+        this.encoders = new FieldEncoder[type.fields.size()];
+        for (ValueDescriptor field : fields) {
+            if (type.fields.stream().noneMatch(f -> f.name().equals(field.getName()))) {
+                throw new IllegalStateException("Field '" + field.getName() + "' is not registered for type " + type.name);
+            }
+        }
+        boolean truncatesStackTraces = stackTraces != null && type.name.equals(STACK_TRACE_TYPE)
+                && fields.stream().anyMatch(f -> f.getName().equals("frames") && f.isArray())
+                && fields.stream().anyMatch(f -> f.getName().equals("truncated"));
+        for (int i = 0; i < encoders.length; i++) {
+            NativeRecordingWriter.Field output = type.fields.get(i);
+            ValueDescriptor field = fields.stream().filter(f -> f.getName().equals(output.name())).findFirst().orElse(null);
+            if (field == null) {
+                encoders[i] = (out, object) -> out.putNull(output);
+                continue;
+            }
+            JFREventModifier fieldModifier = modifier != null && processedFields.test(field) ? modifier : null;
+            if (truncatesStackTraces && field.getName().equals("truncated")) {
+                encoders[i] = compileTruncated(fieldModifier, stackTraces);
+            } else if (truncatesStackTraces && field.getName().equals("frames")) {
+                encoders[i] = compileFrames(output, field, fieldModifier, strings, stackTraces);
+            } else {
+                encoders[i] = compileField(output, field, event, fieldModifier, strings, stackTraces);
+            }
+        }
+    }
+
+    /**
+     * Compile a plan for events of the given type.
+     *
+     * @param type            The registered output type of the event type
+     * @param modifier        The modifier applied to the field values, null to copy all values unchanged
+     * @param processedFields The fields whose values the modifier is applied to, including their nested values
+     * @param strings         The cache for transformed string values, or null to call the modifier for every value
+     * @param stackTraces     Truncates the stack traces, or null to write them like other values
+     */
+    static NativeWritePlan compile(NativeRecordingWriter.Type type, EventType eventType, JFREventModifier modifier,
+                                   Predicate<ValueDescriptor> processedFields, StringCache strings,
+                                   StackTraceTable stackTraces) {
+        return new NativeWritePlan(type, eventType.getFields(), true, modifier, processedFields, strings, stackTraces);
+    }
+
+    /**
+     * Encode the event as the next event of the output.
+     */
+    void writeEvent(NativeRecordingWriter out, RecordedEvent event) throws IOException {
+        out.beginEvent(type);
+        encodeFields(out, event);
+        out.endEvent();
+    }
+
+    private void encodeFields(NativeRecordingWriter out, RecordedObject object) {
+        for (FieldEncoder encoder : encoders) {
+            encoder.encode(out, object);
+        }
+    }
+
+    private static FieldEncoder compileField(NativeRecordingWriter.Field output, ValueDescriptor field, boolean event,
+                                             JFREventModifier modifier, StringCache strings, StackTraceTable stackTraces) {
+        String name = field.getName();
+        ValueEncoder encoder = field.isArray()
+                ? compileArray(output.type(), field, modifier, strings, stackTraces)
+                : compileValue(output.type(), field, event, modifier, strings, stackTraces);
+        return (out, object) -> {
+            Object value = readValue(object, name);
+            if (value == null) {
+                out.putNull(output);
+            } else {
+                encoder.encode(out, value);
+            }
+        };
+    }
+
+    /**
+     * Compile the encoder for single values of a field. Primitive values are unboxed from the values
+     * of the JDK parser, which stores them boxed anyway.
+     */
+    private static ValueEncoder compileValue(NativeRecordingWriter.Type type, ValueDescriptor field, boolean event,
+                                             JFREventModifier modifier, StringCache strings,
+                                             StackTraceTable stackTraces) {
+        String name = field.getName();
+        return switch (field.getTypeName()) {
+            case "boolean" -> (out, value) ->
+                    out.putBoolean(modifier == null ? (boolean) value : modifier.process(name, (boolean) value));
+            case "byte" -> (out, value) ->
+                    out.putByte(modifier == null ? (byte) value : modifier.process(name, (byte) value));
+            case "short" -> (out, value) ->
+                    out.putShort(modifier == null ? (short) value : modifier.process(name, (short) value));
+            case "char" -> (out, value) ->
+                    out.putChar(modifier == null ? (char) value : modifier.process(name, (char) value));
+            case "int" -> (out, value) ->
+                    out.putInt(modifier == null ? (int) value : modifier.process(name, (int) value));
+            case "long" -> {
+                ObjLongConsumer<NativeRecordingWriter> put = !event ? NativeRecordingWriter::putLong : switch (name) {
+                    case "startTime" -> NativeRecordingWriter::putStartTime;
+                    case "duration" -> NativeRecordingWriter::putDuration;
+                    default -> NativeRecordingWriter::putLong;
+                };
+                yield (out, value) -> put.accept(out, modifier == null ? (long) value : modifier.process(name, (long) value));
+            }
+            case "float" -> (out, value) ->
+                    out.putFloat(modifier == null ? (float) value : modifier.process(name, (float) value));
+            case "double" -> (out, value) ->
+                    out.putDouble(modifier == null ? (double) value : modifier.process(name, (double) value));
+            case "java.lang.String" -> {
+                if (modifier == null) {
+                    yield (out, value) -> out.putString((String) value);
+                }
+                if (strings != null) {
+                    // Interned, so that the keys of all fields with this name share one string
+                    String fieldName = name.intern();
+                    yield (out, value) -> out.putString(strings.process(modifier, fieldName, (String) value));
+                }
+                yield (out, value) -> out.putString(modifier.process(name, (String) value));
+            }
+            default -> compileComplex(type, field, modifier, strings, stackTraces);
+        };
+    }
+
+    /**
+     * Compile the encoder for complex values: pooled values are written as the id of their constant,
+     * other values inline
+     */
+    private static ValueEncoder compileComplex(NativeRecordingWriter.Type type, ValueDescriptor field,
+                                               JFREventModifier modifier, StringCache strings,
+                                               StackTraceTable stackTraces) {
+        String name = field.getName();
+        NestedPlan nested = new NestedPlan(type, field, modifier, strings, stackTraces);
+        if (!type.pooled) {
+            return (out, value) -> nested.get().encodeFields(out, recordedObject(name, value));
+        }
+        boolean processed = modifier != null;
+        return (out, value) -> {
+            long id = out.constant(type, processed, value);
+            if (id == 0) {
+                id = out.beginConstant(type, processed, value);
+                nested.get().encodeFields(out, recordedObject(name, value));
+                out.endConstant(type, id);
+            }
+            out.putLong(id);
+        };
+    }
+
+    /**
+     * Compile the encoder for arrays, the modifier is applied to every element.
+     * The JDK parser returns arrays as object arrays, other arrays are read reflectively.
+     */
+    private static ValueEncoder compileArray(NativeRecordingWriter.Type elementType, ValueDescriptor field,
+                                             JFREventModifier modifier, StringCache strings,
+                                             StackTraceTable stackTraces) {
+        ValueEncoder element = compileValue(elementType, field, false, modifier, strings, stackTraces);
+        return (out, value) -> {
+            if (value instanceof Object[] elements) {
+                encodeElements(out, elementType, element, elements, elements.length);
+            } else {
+                int length = Array.getLength(value);
+                out.putArrayLength(length);
+                for (int i = 0; i < length; i++) {
+                    element.encode(out, Array.get(value, i));
+                }
+            }
+        };
+    }
+
+    private static void encodeElements(NativeRecordingWriter out, NativeRecordingWriter.Type elementType,
+                                       ValueEncoder element, Object[] elements, int length) {
+        out.putArrayLength(length);
+        for (int i = 0; i < length; i++) {
+            if (elements[i] == null) {
+                out.putNull(elementType, false);
+            } else {
+                element.encode(out, elements[i]);
+            }
+        }
+    }
+
+    /**
+     * Compile the encoder of the truncated flag of stack traces, which is set if the frames are truncated
+     */
+    private static FieldEncoder compileTruncated(JFREventModifier modifier, StackTraceTable stackTraces) {
+        return (out, stackTrace) -> {
+            Object[] frames = frames(stackTrace);
+            boolean truncated = Boolean.TRUE.equals(readValue(stackTrace, "truncated"))
+                    || (frames != null && stackTraces.depth(frames.length) < frames.length);
+            out.putBoolean(modifier == null ? truncated : modifier.process("truncated", truncated));
+        };
+    }
+
+    /**
+     * Compile the encoder of the frames of stack traces, which only writes the top frames
+     */
+    private static FieldEncoder compileFrames(NativeRecordingWriter.Field output, ValueDescriptor field,
+                                              JFREventModifier modifier, StringCache strings,
+                                              StackTraceTable stackTraces) {
+        ValueEncoder element = compileValue(output.type(), field, false, modifier, strings, null);
+        return (out, stackTrace) -> {
+            Object[] frames = frames(stackTrace);
+            if (frames == null) {
+                out.putNull(output);
+            } else {
+                encodeElements(out, output.type(), element, frames, stackTraces.depth(frames.length));
+            }
+        };
+    }
+
+    private static Object[] frames(RecordedObject stackTrace) {
+        return readValue(stackTrace, "frames") instanceof Object[] frames ? frames : null;
+    }
+
+    private static RecordedObject recordedObject(String name, Object value) {
+        if (!(value instanceof RecordedObject recordedObject)) {
+            throw new UnsupportedOperationException(
+                    "Unsupported value type for field '" + name + "': " + value.getClass().getName());
+        }
+        return recordedObject;
+    }
+
+    private static Object readValue(RecordedObject object, String name) {
+        try {
+            return object.getValue(name);
+        } catch (IllegalArgumentException e) {
+            // Field might not be present in this particular recorded object
+            return null;
+        }
+    }
+
+    /**
+     * Plan for the values of a complex field, compiled on first use, which also supports recursive types
+     */
+    private static final class NestedPlan {
+        private final NativeRecordingWriter.Type type;
+        private final ValueDescriptor field;
+        private final JFREventModifier modifier;
+        private final StringCache strings;
+        private final StackTraceTable stackTraces;
+        private NativeWritePlan plan;
+
+        NestedPlan(NativeRecordingWriter.Type type, ValueDescriptor field, JFREventModifier modifier,
+                   StringCache strings, StackTraceTable stackTraces) {
+            this.type = type;
+            this.field = field;
+            this.modifier = modifier;
+            this.strings = strings;
+            this.stackTraces = stackTraces;
+        }
+
+        NativeWritePlan get() {
+            if (plan == null) {
+                plan = new NativeWritePlan(type, field.getFields(), false, modifier, nestedField -> true, strings,
+                        stackTraces);
+            }
+            return plan;
+        }
+    }
+}
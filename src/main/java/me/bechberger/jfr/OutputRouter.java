@@ -0,0 +1,318 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.EventType;
+import jdk.jfr.consumer.RecordedEvent;
+import org.openjdk.jmc.flightrecorder.writer.RecordingImpl;
+import org.slf4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Splits the output of a {@link JFRProcessor} into multiple files in a single pass over the input,
+ * see {@link JFRProcessor#process(OutputRouter)}.
+ * <p>
+ * Events are routed by a key of their event type, e.g. a category, every key gets its own sequence of files.
+ * A new file of a key is started when the current file reaches its approximate maximum size or when an event
+ * starts after the maximum duration since the first event of the file. Every file is written by its own JMC
+ * recording, which only registers the types of the events in the file.
+ * Files are written under a temporary name and renamed to {@code <prefix>-<key>-<index>.jfr}
+ * (or {@code <prefix>-<index>.jfr} without a key) once they are finished.
+ * <p>
+ * Like in {@link JFRStreamProcessor}, the size of a file is estimated from the number of events and the average
+ * event size of the previous files, as the JMC writer does not expose the size before the file is finished.
+ * <p>
+ * Example:
+ * <pre>
+ * List&lt;Path&gt; files = processor.process(new OutputRouter(outputDirectory)
+ *         .withKey(type -&gt; type.getCategoryNames().get(0))
+ *         .withMaxSize(256 * 1024 * 1024));
+ * </pre>
+ */
+public class OutputRouter {
+
+    /**
+     * Average event size assumed for the first file, before the size of a finished file is known
+     */
+    private static final long INITIAL_BYTES_PER_EVENT = 100;
+    /**
+     * Maximum number of files that are closed in the background at once
+     */
+    static final int MAX_CLOSING_FILES = 4;
+
+    private final Path outputDirectory;
+    private Function<EventType, String> key = eventType -> null;
+    private long maxSize = 0;
+    private Duration maxDuration;
+    private String filePrefix = "recording";
+    private Consumer<Path> fileListener = file -> {
+    };
+
+    /**
+     * Create a router that writes all events to a single file, until a maximum size or duration is set.
+     *
+     * @param outputDirectory Directory for the output files, it has to exist
+     */
+    public OutputRouter(Path outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Set the function that decides which files the events of a type are written to.
+     * It is called once per event type, the key is part of the file names.
+     *
+     * @param key the key of an event type, null for the files without a key
+     * @return this router
+     */
+    public OutputRouter withKey(Function<EventType, String> key) {
+        this.key = key;
+        return this;
+    }
+
+    /**
+     * Set the approximate size after which the current file of a key is finished.
+     *
+     * @param maxSize the maximum size of a file in bytes, 0 for no limit
+     * @return this router
+     */
+    public OutputRouter withMaxSize(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Maximum size must not be negative, got " + maxSize);
+        }
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /**
+     * Set the time span of the events of a file: a new file of a key is started for the first event that starts
+     * this long after the first event of the current file.
+     *
+     * @param maxDuration the maximum duration of a file, null for no limit
+     * @return this router
+     */
+    public OutputRouter withMaxDuration(Duration maxDuration) {
+        if (maxDuration != null && (maxDuration.isNegative() || maxDuration.isZero())) {
+            throw new IllegalArgumentException("Maximum duration must be positive, got " + maxDuration);
+        }
+        this.maxDuration = maxDuration;
+        return this;
+    }
+
+    /**
+     * Set the prefix of the output file names, default is {@code recording}.
+     *
+     * @param filePrefix the prefix
+     * @return this router
+     */
+    public OutputRouter withFilePrefix(String filePrefix) {
+        this.filePrefix = filePrefix;
+        return this;
+    }
+
+    /**
+     * Set the listener that is called with the path of every finished file, on the thread that writes it.
+     *
+     * @param fileListener the listener
+     * @return this router
+     */
+    public OutputRouter withFileListener(Consumer<Path> fileListener) {
+        this.fileListener = fileListener;
+        return this;
+    }
+
+    /**
+     * Start routing the output of a single processing run.
+     *
+     * @param newSink Creates the processor that writes a single file
+     * @param closer  Closes finished files in the background, closing a JMC recording waits up to half a second
+     *                for its merging thread. It should have {@link #MAX_CLOSING_FILES} threads
+     */
+    Session newSession(Supplier<JFRProcessor> newSink, ExecutorService closer, Logger logger) {
+        return new Session(newSink, closer, logger);
+    }
+
+    /**
+     * Files of a single processing run, not thread-safe
+     */
+    final class Session {
+        private final Supplier<JFRProcessor> newSink;
+        private final ExecutorService closer;
+        private final Logger logger;
+        /**
+         * Keys by event type name, values may be null
+         */
+        private final Map<String, String> keys = new HashMap<>();
+        /**
+         * Current files by key
+         */
+        private final Map<String, SinkFile> files = new HashMap<>();
+        private final Map<String, Integer> fileIndexes = new HashMap<>();
+        private final Deque<Future<SinkFile>> closing = new ArrayDeque<>();
+        private final List<Path> finishedFiles = new ArrayList<>();
+        private long writtenBytes = 0;
+        private long writtenEvents = 0;
+
+        private Session(Supplier<JFRProcessor> newSink, ExecutorService closer, Logger logger) {
+            this.newSink = newSink;
+            this.closer = closer;
+            this.logger = logger;
+        }
+
+        /**
+         * Get the processor that writes the next event of the given type, starting a new file if necessary.
+         * Every call counts as one written event.
+         *
+         * @param event The event, used to start files by time, or null for events without a start time like summaries
+         */
+        JFRProcessor sink(EventType eventType, RecordedEvent event) throws IOException {
+            String name = eventType.getName();
+            String fileKey = keys.get(name);
+            if (fileKey == null && !keys.containsKey(name)) {
+                fileKey = key.apply(eventType);
+                keys.put(name, fileKey);
+            }
+            SinkFile file = files.get(fileKey);
+            Instant start = maxDuration != null && event != null ? event.getStartTime() : null;
+            if (file != null && isFileFull(file, start)) {
+                finishFile(file);
+                file = null;
+            }
+            if (file == null) {
+                file = startFile(fileKey);
+                files.put(fileKey, file);
+            }
+            if (file.start == null) {
+                file.start = start;
+            }
+            file.events++;
+            return file.processor;
+        }
+
+        private boolean isFileFull(SinkFile file, Instant start) {
+            if (maxSize > 0) {
+                long bytesPerEvent = writtenEvents == 0 ? INITIAL_BYTES_PER_EVENT : Math.max(1, writtenBytes / writtenEvents);
+                if (file.events * bytesPerEvent >= maxSize) {
+                    return true;
+                }
+            }
+            return start != null && file.start != null && Duration.between(file.start, start).compareTo(maxDuration) >= 0;
+        }
+
+        private SinkFile startFile(String fileKey) throws IOException {
+            int index = fileIndexes.merge(fileKey, 1, Integer::sum) - 1;
+            String fileName = filePrefix + (fileKey == null ? "" : "-" + fileKey) + "-" + index + ".jfr";
+            Path file = outputDirectory.resolve(fileName);
+            Path partFile = outputDirectory.resolve(fileName + ".part");
+            JFRProcessor processor = newSink.get();
+            RecordingImpl recording = processor.startOutput(new BufferedOutputStream(Files.newOutputStream(partFile)));
+            return new SinkFile(processor, recording, file, partFile);
+        }
+
+        /**
+         * Close and rename a file in the background, files that have been closed are reported
+         */
+        private void finishFile(SinkFile file) throws IOException {
+            closing.add(closer.submit(() -> {
+                file.recording.close();
+                Files.move(file.partFile, file.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                file.size = Files.size(file.file);
+                return file;
+            }));
+            while (closing.size() > MAX_CLOSING_FILES) {
+                reportFinished(closing.poll());
+            }
+            reportClosedFiles();
+        }
+
+        /**
+         * Report the files that have been closed in the background since the last call, without waiting
+         */
+        void reportClosedFiles() throws IOException {
+            while (!closing.isEmpty() && closing.peek().isDone()) {
+                reportFinished(closing.poll());
+            }
+        }
+
+        private void reportFinished(Future<SinkFile> closed) throws IOException {
+            SinkFile file;
+            try {
+                file = closed.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while finishing file");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ioException
+                        ? ioException : new IOException("Failed to finish file", e.getCause());
+            }
+            writtenBytes += file.size;
+            writtenEvents += file.events;
+            finishedFiles.add(file.file);
+            logger.info("Finished {} with {} events", file.file, file.events);
+            fileListener.accept(file.file);
+        }
+
+        /**
+         * Finish all current files in the background, the next events start new files
+         */
+        void finishFiles() throws IOException {
+            for (SinkFile file : files.values()) {
+                finishFile(file);
+            }
+            files.clear();
+        }
+
+        /**
+         * Finish all current files and wait until they are closed
+         *
+         * @return All written files, in the order in which they were finished
+         */
+        List<Path> finish() throws IOException {
+            finishFiles();
+            while (!closing.isEmpty()) {
+                reportFinished(closing.poll());
+            }
+            return List.copyOf(finishedFiles);
+        }
+    }
+
+    /**
+     * The file currently written for a key
+     */
+    private static final class SinkFile {
+        private final JFRProcessor processor;
+        private final RecordingImpl recording;
+        private final Path file;
+        private final Path partFile;
+        private long events = 0;
+        private long size;
+        /**
+         * Start time of the first event, null if the file is not limited by time
+         */
+        private Instant start;
+
+        SinkFile(JFRProcessor processor, RecordingImpl recording, Path file, Path partFile) {
+            this.processor = processor;
+            this.recording = recording;
+            this.file = file;
+            this.partFile = partFile;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package me.bechberger.jfr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output stream that compresses with gzip on multiple threads, for writing compressed recordings directly:
+ * <pre>
+ * try (var out = new ParallelGzipOutputStream(Files.newOutputStream(outputFile))) {
+ *     processor.process(out).close();
+ * }
+ * </pre>
+ * The data is buffered in blocks, every block is compressed on its own into a separate gzip member
+ * and the members are written in order. A sequence of gzip members is a valid gzip file, which
+ * {@link java.util.zip.GZIPInputStream}, the {@code gzip} tool and the {@link JFRProcessor} inputs decompress
+ * as a whole. Blocks do not share a dictionary, which costs a little compression ratio per block.
+ * <p>
+ * At most {@code 2 * threads} blocks are in flight, writing waits if the compression falls behind.
+ * {@link #flush()} compresses the buffered data as a shorter block. The stream is not thread-safe.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final int maxPendingBlocks;
+    private final ExecutorService compressors;
+    /**
+     * Compressed blocks in output order
+     */
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block;
+    private int blockLength = 0;
+    private boolean closed = false;
+
+    /**
+     * Create a stream that compresses on one thread per available processor.
+     *
+     * @param out The stream to write the compressed data to, it is closed with this stream
+     */
+    public ParallelGzipOutputStream(OutputStream out) {
+        this(out, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param out     The stream to write the compressed data to, it is closed with this stream
+     * @param threads The number of compression threads
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads) {
+        this(out, threads, DEFAULT_BLOCK_SIZE);
+    }
+
+    ParallelGzipOutputStream(OutputStream out, int threads, int blockSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1, got " + threads);
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive, got " + blockSize);
+        }
+        this.out = out;
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = 2 * threads;
+        this.compressors = Executors.newFixedThreadPool(threads,
+                Thread.ofPlatform().name("jfr-gzip-compressor").daemon().factory());
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        block[blockLength++] = (byte) b;
+        if (blockLength == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int copied = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, copied);
+            blockLength += copied;
+            off += copied;
+            len -= copied;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * Compress the buffered data and write all blocks to the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        writeCompressedBlocks(0);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try (out) {
+            if (blockLength > 0) {
+                submitBlock();
+            }
+            writeCompressedBlocks(0);
+        } finally {
+            closed = true;
+            compressors.shutdownNow();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = block;
+        int length = blockLength;
+        pending.add(compressors.submit(() -> compress(data, length)));
+        block = new byte[blockSize];
+        blockLength = 0;
+        writeCompressedBlocks(maxPendingBlocks - 1);
+    }
+
+    /**
+     * Write compressed blocks in order until at most the given number of blocks are pending.
+     */
+    private void writeCompressedBlocks(int maxPending) throws IOException {
+        while (pending.size() > maxPending) {
+            out.write(awaitBlock(pending.poll()));
+        }
+    }
+
+    private static byte[] compress(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed, 64 * 1024)) {
+            gzip.write(data, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] awaitBlock(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedObject;
+import org.openjdk.jmc.flightrecorder.writer.api.TypedValue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Transformed values of the constant pool entries of the input, so that the modifier is called
+ * once per entry instead of once per referencing event.
+ * <p>
+ * The JDK parser resolves every constant pool entry of a chunk into a single object, like a
+ * {@link jdk.jfr.consumer.RecordedThread}, which all events of the chunk reference. The cache is keyed by
+ * the identity of these objects and holds them weakly, entries of finished chunks are dropped by the garbage collector.
+ * <p>
+ * The cache also keeps the output value of every pooled value. Without it, the JMC writer creates the output value
+ * for every event and has to hash the whole nested value to find it in the constant pool of the output.
+ * Repeated references then only cost a lookup of the output value.
+ * <p>
+ * The transformed values are thread-safe, the output values belong to the output and are only used by the thread
+ * that writes it.
+ */
+final class PooledValueCache {
+
+    private final Predicate<ValueDescriptor> pooledInInput;
+    /**
+     * RecordedObject does not override equals and hashCode, so this is an identity map
+     */
+    private final Map<RecordedObject, Object[]> values = Collections.synchronizedMap(new WeakHashMap<>());
+    /**
+     * Output values by transformed value, or by input object for values that are copied without the modifier.
+     * Both are identity keys that live as long as the input object
+     */
+    private final Map<Object, TypedValue> outputValues = new WeakHashMap<>();
+
+    /**
+     * @param pooledInInput Checks if the values of a field are stored in the constant pool of the input,
+     *                      it is called from multiple threads
+     */
+    PooledValueCache(Predicate<ValueDescriptor> pooledInInput) {
+        this.pooledInInput = pooledInInput;
+    }
+
+    /**
+     * Check if the values of the given complex field are cached
+     */
+    boolean caches(ValueDescriptor field) {
+        return pooledInInput.test(field);
+    }
+
+    /**
+     * @return The transformed values of the object, null if they are not cached
+     */
+    Object[] get(RecordedObject object) {
+        return values.get(object);
+    }
+
+    void put(RecordedObject object, Object[] transformed) {
+        values.put(object, transformed);
+    }
+
+    /**
+     * Get the output value of a pooled value, creating it on first use.
+     *
+     * @param value  The transformed value returned by {@link #get(RecordedObject)},
+     *               or the input object if it is copied without the modifier
+     * @param create Creates the output value
+     */
+    TypedValue outputValue(Object value, Supplier<TypedValue> create) {
+        TypedValue output = outputValues.get(value);
+        if (output == null) {
+            output = create.get();
+            outputValues.put(value, output);
+        }
+        return output;
+    }
+
+    /**
+     * Drop the output values when the output continues in a new chunk with empty constant pools
+     */
+    void clearOutputValues() {
+        outputValues.clear();
+    }
+}
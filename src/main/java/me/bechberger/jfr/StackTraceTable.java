@@ -0,0 +1,92 @@
+package me.bechberger.jfr;
+
+import org.openjdk.jmc.flightrecorder.writer.api.TypedValue;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Output values of the stack traces of one output: stack traces are truncated to a maximum depth
+ * and identical stack traces of the input can share a single output value.
+ * <p>
+ * The JDK parser resolves every stack trace of the input constant pool into a single
+ * {@link jdk.jfr.consumer.RecordedStackTrace}, which all events of the chunk reference. Interned output values are
+ * keyed by the identity of these objects and held weakly, like the {@link PooledValueCache}. The output value is
+ * then created and added to the constant pool of the output once per stack trace instead of once per event.
+ * <p>
+ * The output values belong to one output, the table is therefore not thread-safe and only used by the thread
+ * that writes the output. Truncation only reads the configuration and can be used from any thread.
+ */
+final class StackTraceTable {
+
+    private final int maxDepth;
+    private final boolean intern;
+
+    /**
+     * @param maxDepth The maximum number of frames, 0 for no limit
+     * @param intern   Whether to share the output value of identical input stack traces
+     */
+    StackTraceTable(int maxDepth, boolean intern) {
+        this.maxDepth = maxDepth;
+        this.intern = intern;
+    }
+
+    /**
+     * Get the top frames of a stack trace.
+     *
+     * @param frames The frames of the input stack trace, the top frame first
+     * @return The frames up to the maximum depth, the given array if it is not longer
+     */
+    Object[] truncate(Object[] frames) {
+        int depth = depth(frames.length);
+        if (depth == frames.length) {
+            return frames;
+        }
+        Object[] truncated = new Object[depth];
+        System.arraycopy(frames, 0, truncated, 0, depth);
+        return truncated;
+    }
+
+    /**
+     * Get the number of frames that are kept of a stack trace with the given number of frames
+     */
+    int depth(int frames) {
+        return maxDepth == 0 ? frames : Math.min(frames, maxDepth);
+    }
+
+    /**
+     * Create the table of the output values of one stack trace field. Fields of different event types
+     * can transform the same stack trace differently, so every field has its own values.
+     */
+    Values newValues() {
+        return new Values(intern ? new WeakHashMap<>() : null);
+    }
+
+    /**
+     * Output values of the stack traces of one field
+     *
+     * @param interned Output values by input stack trace, null if stack traces are not interned.
+     *                 RecordedObject and arrays do not override equals and hashCode, so this is an identity map
+     */
+    record Values(Map<Object, TypedValue> interned) {
+
+        /**
+         * Get the output value of a stack trace, creating it if the stack trace has not been written before.
+         *
+         * @param stackTrace The input stack trace, or another object that identifies it
+         * @param create     Creates the output value
+         */
+        TypedValue get(Object stackTrace, Supplier<TypedValue> create) {
+            if (interned == null) {
+                return create.get();
+            }
+            TypedValue value = interned.get(stackTrace);
+            if (value == null) {
+                value = create.get();
+                interned.put(stackTrace, value);
+            }
+            return value;
+        }
+    }
+}
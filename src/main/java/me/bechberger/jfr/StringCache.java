@@ -0,0 +1,100 @@
+package me.bechberger.jfr;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache for the results of {@link JFREventModifier#process(String, String)}, keyed by field name and value.
+ * <p>
+ * The least recently used entries are evicted when the estimated memory of all entries exceeds the limit.
+ * The estimate counts two bytes per character plus the overhead of the objects, so it is an upper bound
+ * for compact strings. Results that would take more than the whole limit are not cached.
+ * <p>
+ * The cache is thread-safe, the modifier is called outside of the lock.
+ */
+final class StringCache {
+
+    /**
+     * Estimated overhead of an entry: the map node, the key record and the header of the key string
+     */
+    private static final long ENTRY_OVERHEAD = 112;
+    /**
+     * Estimated overhead of a result string that is not the input string itself
+     */
+    private static final long STRING_OVERHEAD = 40;
+
+    private record Key(String fieldName, String value) {
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxBytes Maximum estimated memory of the cached entries
+     */
+    StringCache(long maxBytes) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Maximum cache size must be positive, got " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the cached result for the value or call the modifier and cache its result.
+     *
+     * @param fieldName The interned name of the field
+     */
+    String process(JFREventModifier modifier, String fieldName, String value) {
+        Key key = new Key(fieldName, value);
+        synchronized (this) {
+            String cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+        String result = modifier.process(fieldName, value);
+        if (result == null) {
+            return null;
+        }
+        long size = entrySize(value, result);
+        if (size > maxBytes) {
+            return result;
+        }
+        synchronized (this) {
+            if (entries.putIfAbsent(key, result) == null) {
+                bytes += size;
+                evict();
+            }
+        }
+        return result;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, String>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Key, String> eldest = iterator.next();
+            bytes -= entrySize(eldest.getKey().value(), eldest.getValue());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private static long entrySize(String value, String result) {
+        long size = ENTRY_OVERHEAD + 2L * value.length();
+        if (result != value) {
+            size += STRING_OVERHEAD + 2L * result.length();
+        }
+        return size;
+    }
+
+    synchronized StringCacheStatistics statistics() {
+        return new StringCacheStatistics(hits, misses, evictions, entries.size(), bytes);
+    }
+}
@@ -0,0 +1,21 @@
+package me.bechberger.jfr;
+
+/**
+ * Statistics of the string cache of a {@link JFRProcessor}, see {@link JFRProcessor#withStringCache(long)}.
+ *
+ * @param hits           Number of values whose result was found in the cache
+ * @param misses         Number of values the modifier was called for
+ * @param evictions      Number of entries that were dropped to stay within the memory limit
+ * @param entries        Number of cached entries
+ * @param estimatedBytes Estimated memory used by the cached entries
+ */
+public record StringCacheStatistics(long hits, long misses, long evictions, int entries, long estimatedBytes) {
+
+    /**
+     * Fraction of lookups that were found in the cache, 0 if there were no lookups
+     */
+    public double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+}
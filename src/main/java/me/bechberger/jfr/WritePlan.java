@@ -0,0 +1,618 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.Unsigned;
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedObject;
+import org.openjdk.jmc.flightrecorder.writer.api.Type;
+import org.openjdk.jmc.flightrecorder.writer.api.TypedField;
+import org.openjdk.jmc.flightrecorder.writer.api.TypedValue;
+import org.openjdk.jmc.flightrecorder.writer.api.TypedValueBuilder;
+
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Compiled plan for writing recorded objects of one JFR type to the output.
+ * <p>
+ * The plan is built once per type: every field of the type gets a writer that is bound to
+ * the field name, the resolved output type and the modifier method for the field's type.
+ * Writing a value then only runs these writers, instead of walking the value descriptors,
+ * looking up the output fields and switching over the runtime class of every value.
+ * Plans for nested types are compiled lazily on first use, which also supports recursive types.
+ * Fields that the modifier does not process get writers that copy the value without calling the modifier.
+ * Primitive fields are read with the typed getters of {@link RecordedObject} and passed to the output
+ * and the modifier as primitives, without going through {@code Object}.
+ * With a {@link PooledValueCache}, values of the input constant pools are only transformed once,
+ * with a {@link StringCache}, the results of the modifier for string values are reused.
+ * With a {@link StackTraceTable}, stack traces are truncated and identical stack traces share one output value.
+ * <p>
+ * Writing can also be split into two steps: {@link #transform(RecordedObject)} reads the values
+ * and applies the modifier, {@link #writeTransformed(Object[])} creates the output value.
+ * The first step can run on any thread, the second step adds to the constant pools of the output
+ * and has to run on the thread that writes the output, like {@link #write(RecordedObject)}.
+ */
+final class WritePlan {
+
+    private static final String STACK_TRACE_TYPE = "jdk.types.StackTrace";
+
+    /**
+     * Writes a non-null field value
+     */
+    @FunctionalInterface
+    private interface ValueWriter {
+        void write(TypedValueBuilder builder, Object value);
+    }
+
+    /**
+     * Applies the modifier to a non-null field value
+     */
+    @FunctionalInterface
+    private interface ValueTransformer {
+        Object transform(Object value);
+    }
+
+    /**
+     * Reads a field of a recorded object and writes it
+     */
+    @FunctionalInterface
+    private interface FieldWriter {
+        void write(TypedValueBuilder builder, RecordedObject object);
+    }
+
+    /**
+     * Compiled writers for the values of one field
+     *
+     * @param write            Applies the modifier and writes the value
+     * @param transform        Applies the modifier
+     * @param writeTransformed Writes a value returned by {@code transform}
+     */
+    private record ValuePlan(ValueWriter write, ValueTransformer transform, ValueWriter writeTransformed) {
+    }
+
+    private final Type type;
+    private final String[] names;
+    private final TypedValue[] nullValues;
+    private final ValuePlan[] plans;
+    private final FieldWriter[] writers;
+
+    /**
+     * @param modifier        The modifier, null to copy all values unchanged
+     * @param processedFields The fields whose values the modifier is applied to, including their nested values
+     * @param pooledValues    The cache for transformed constant pool values, or null
+     * @param strings         The cache for transformed string values, or null
+     * @param stackTraces     The stack traces of the output, or null to write stack traces like other values
+     */
+    private WritePlan(Type type, List<ValueDescriptor> fields, JFREventModifier modifier,
+                      Predicate<ValueDescriptor> processedFields, PooledValueCache pooledValues, StringCache strings,
+                      StackTraceTable stackTraces) {
+        this.type = type;
+        this.names = new String[fields.size()];
+        this.nullValues = new TypedValue[fields.size()];
+        this.plans = new ValuePlan[fields.size()];
+        this.writers = new FieldWriter[fields.size()];
+        for (int i = 0; i < plans.length; i++) {
+            ValueDescriptor field = fields.get(i);
+            String name = field.getName();
+            TypedField typedField = type.getField(name);
+            if (typedField == null) {
+                throw new IllegalStateException("Field '" + name + "' is not registered for type " + type.getTypeName());
+            }
+            Type fieldType = typedField.getType();
+            JFREventModifier fieldModifier = modifier != null && processedFields.test(field) ? modifier : null;
+            names[i] = name;
+            nullValues[i] = fieldType.nullValue();
+            plans[i] = field.isArray()
+                    ? compileArray(name, field, fieldType, fieldModifier, pooledValues, strings, stackTraces)
+                    : compileValue(name, field, fieldType, fieldModifier, pooledValues, strings, stackTraces);
+            writers[i] = compileFieldWriter(name, field, fieldModifier, nullValues[i], plans[i]);
+        }
+    }
+
+    /**
+     * Compile a plan for objects with the given fields.
+     *
+     * @param type            The registered output type, it has to contain all fields
+     * @param fields          The fields of the recorded objects to write
+     * @param modifier        The modifier applied to the field values, null to copy all values unchanged
+     * @param processedFields The fields whose values the modifier is applied to, including their nested values
+     * @param pooledValues    The cache for transformed constant pool values, or null to transform them for every event
+     * @param strings         The cache for transformed string values, or null to call the modifier for every value
+     * @param stackTraces     The stack traces of the output, or null to write stack traces like other values
+     */
+    static WritePlan compile(Type type, List<ValueDescriptor> fields, JFREventModifier modifier,
+                             Predicate<ValueDescriptor> processedFields, PooledValueCache pooledValues,
+                             StringCache strings, StackTraceTable stackTraces) {
+        return new WritePlan(type, fields, modifier, processedFields, pooledValues, strings, stackTraces);
+    }
+
+    /**
+     * Create the output value for the given recorded object.
+     */
+    TypedValue write(RecordedObject object) {
+        return type.asValue(builder -> writeFields(builder, object));
+    }
+
+    /**
+     * Write all fields of the recorded object into the builder of the output type.
+     */
+    void writeFields(TypedValueBuilder builder, RecordedObject object) {
+        for (FieldWriter writer : writers) {
+            writer.write(builder, object);
+        }
+    }
+
+    /**
+     * Read the field values of the recorded object and apply the modifier, without touching the output.
+     *
+     * @return The modified values by field index, nested objects are represented by their transformed values
+     */
+    Object[] transform(RecordedObject object) {
+        Object[] values = new Object[plans.length];
+        for (int i = 0; i < plans.length; i++) {
+            Object value = readValue(object, names[i]);
+            if (value != null) {
+                values[i] = plans[i].transform().transform(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Create the output value from values returned by {@link #transform(RecordedObject)}.
+     */
+    TypedValue writeTransformed(Object[] values) {
+        return type.asValue(builder -> writeTransformedFields(builder, values));
+    }
+
+    private void writeTransformedFields(TypedValueBuilder builder, Object[] values) {
+        for (int i = 0; i < plans.length; i++) {
+            if (values[i] == null) {
+                builder.putField(names[i], nullValues[i]);
+            } else {
+                plans[i].writeTransformed().write(builder, values[i]);
+            }
+        }
+    }
+
+    private static ValuePlan compileValue(String name, ValueDescriptor field, Type fieldType, JFREventModifier modifier,
+                                          PooledValueCache pooledValues, StringCache strings, StackTraceTable stackTraces) {
+        if (stackTraces != null && field.getTypeName().equals(STACK_TRACE_TYPE)) {
+            ValuePlan plan = compileStackTrace(name, field, fieldType, modifier, pooledValues, strings, stackTraces);
+            if (plan != null) {
+                return plan;
+            }
+        }
+        if (modifier == null) {
+            return compileCopy(name, field, fieldType, pooledValues, stackTraces);
+        }
+        return switch (field.getTypeName()) {
+            case "byte" -> new ValuePlan(
+                    (builder, value) -> builder.putField(name, modifier.process(name, (byte) value)),
+                    value -> modifier.process(name, (byte) value),
+                    (builder, value) -> builder.putField(name, (byte) value));
+            case "short" -> new ValuePlan(
+                    (builder, value) -> builder.putField(name, modifier.process(name, (short) value)),
+                    value -> modifier.process(name, (short) value),
+                    (builder, value) -> builder.putField(name, (short) value));
+            case "int" -> new ValuePlan(
+                    (builder, value) -> builder.putField(name, modifier.process(name, (int) value)),
+                    value -> modifier.process(name, (int) value),
+                    (builder, value) -> builder.putField(name, (int) value));
+            case "long" -> new ValuePlan(
+                    (builder, value) -> builder.putField(name, modifier.process(name, (long) value)),
+                    value -> modifier.process(name, (long) value),
+                    (builder, value) -> builder.putField(name, (long) value));
+            case "float" -> new ValuePlan(
+                    (builder, value) -> builder.putField(name, modifier.process(name, (float) value)),
+                    value -> modifier.process(name, (float) value),
+                    (builder, value) -> builder.putField(name, (float) value));
+            case "double" -> new ValuePlan(
+                    (builder, value) -> builder.putField(name, modifier.process(name, (double) value)),
+                    value -> modifier.process(name, (double) value),
+                    (builder, value) -> builder.putField(name, (double) value));
+            case "boolean" -> new ValuePlan(
+                    (builder, value) -> builder.putField(name, modifier.process(name, (boolean) value)),
+                    value -> modifier.process(name, (boolean) value),
+                    (builder, value) -> builder.putField(name, (boolean) value));
+            case "char" -> new ValuePlan(
+                    (builder, value) -> builder.putField(name, modifier.process(name, (char) value)),
+                    value -> modifier.process(name, (char) value),
+                    (builder, value) -> builder.putField(name, (char) value));
+            case "java.lang.String" -> {
+                if (strings != null) {
+                    // Interned, so that the keys of all fields with this name share one string
+                    String fieldName = name.intern();
+                    yield new ValuePlan(
+                            (builder, value) -> builder.putField(name, strings.process(modifier, fieldName, (String) value)),
+                            value -> strings.process(modifier, fieldName, (String) value),
+                            (builder, value) -> builder.putField(name, (String) value));
+                }
+                yield new ValuePlan(
+                        (builder, value) -> builder.putField(name, modifier.process(name, (String) value)),
+                        value -> modifier.process(name, (String) value),
+                        (builder, value) -> builder.putField(name, (String) value));
+            }
+            default -> {
+                NestedPlan nested = new NestedPlan(fieldType, field, modifier, pooledValues, strings, stackTraces);
+                if (pooledValues != null && pooledValues.caches(field)) {
+                    ValueTransformer transform = value -> transformPooled(pooledValues, (RecordedObject) value,
+                            pooledValue -> nested.get().transform((RecordedObject) pooledValue));
+                    ValueWriter writeTransformed = (builder, value) -> builder.putField(name,
+                            pooledValues.outputValue(value, () -> nested.get().writeTransformed((Object[]) value)));
+                    yield new ValuePlan(
+                            (builder, value) -> writeTransformed.write(builder, transform.transform(value)),
+                            transform, writeTransformed);
+                }
+                yield new ValuePlan(
+                        (builder, value) -> builder.putField(name,
+                                nestedBuilder -> nested.get().writeFields(nestedBuilder, (RecordedObject) value)),
+                        value -> nested.get().transform((RecordedObject) value),
+                        (builder, value) -> builder.putField(name,
+                                nestedBuilder -> nested.get().writeTransformedFields(nestedBuilder, (Object[]) value)));
+            }
+        };
+    }
+
+    /**
+     * Compile the writer that reads a field from a recorded object and writes it.
+     * Primitive fields use the typed getter of their type, all other fields read the value as object.
+     */
+    private static FieldWriter compileFieldWriter(String name, ValueDescriptor field, JFREventModifier modifier,
+                                                  TypedValue nullValue, ValuePlan plan) {
+        FieldWriter primitive = field.isArray() ? null : compilePrimitive(name, field, modifier, nullValue);
+        if (primitive != null) {
+            return primitive;
+        }
+        return (builder, object) -> {
+            Object value = readValue(object, name);
+            if (value == null) {
+                builder.putField(name, nullValue);
+            } else {
+                plan.write().write(builder, value);
+            }
+        };
+    }
+
+    /**
+     * Compile a writer that reads a primitive field with its typed getter, null for other fields.
+     * The getters throw for missing fields and null values, only the getter is guarded,
+     * so that the modifier is called once per value.
+     * <p>
+     * The getters for {@code short} and {@code int} wrap unsigned values in a new object for widening,
+     * unsigned fields of these types therefore use the generic path, which returns the stored value.
+     */
+    private static FieldWriter compilePrimitive(String name, ValueDescriptor field, JFREventModifier modifier,
+                                                TypedValue nullValue) {
+        boolean unsigned = field.getAnnotation(Unsigned.class) != null;
+        return switch (field.getTypeName()) {
+            case "byte" -> (builder, object) -> {
+                byte value;
+                try {
+                    value = object.getByte(name);
+                } catch (IllegalArgumentException e) {
+                    builder.putField(name, nullValue);
+                    return;
+                }
+                builder.putField(name, modifier == null ? value : modifier.process(name, value));
+            };
+            case "short" -> unsigned ? null : (builder, object) -> {
+                short value;
+                try {
+                    value = object.getShort(name);
+                } catch (IllegalArgumentException e) {
+                    builder.putField(name, nullValue);
+                    return;
+                }
+                builder.putField(name, modifier == null ? value : modifier.process(name, value));
+            };
+            case "int" -> unsigned ? null : (builder, object) -> {
+                int value;
+                try {
+                    value = object.getInt(name);
+                } catch (IllegalArgumentException e) {
+                    builder.putField(name, nullValue);
+                    return;
+                }
+                builder.putField(name, modifier == null ? value : modifier.process(name, value));
+            };
+            case "long" -> (builder, object) -> {
+                long value;
+                try {
+                    value = object.getLong(name);
+                } catch (IllegalArgumentException e) {
+                    builder.putField(name, nullValue);
+                    return;
+                }
+                builder.putField(name, modifier == null ? value : modifier.process(name, value));
+            };
+            case "float" -> (builder, object) -> {
+                float value;
+                try {
+                    value = object.getFloat(name);
+                } catch (IllegalArgumentException e) {
+                    builder.putField(name, nullValue);
+                    return;
+                }
+                builder.putField(name, modifier == null ? value : modifier.process(name, value));
+            };
+            case "double" -> (builder, object) -> {
+                double value;
+                try {
+                    value = object.getDouble(name);
+                } catch (IllegalArgumentException e) {
+                    builder.putField(name, nullValue);
+                    return;
+                }
+                builder.putField(name, modifier == null ? value : modifier.process(name, value));
+            };
+            case "boolean" -> (builder, object) -> {
+                boolean value;
+                try {
+                    value = object.getBoolean(name);
+                } catch (IllegalArgumentException e) {
+                    builder.putField(name, nullValue);
+                    return;
+                }
+                builder.putField(name, modifier == null ? value : modifier.process(name, value));
+            };
+            case "char" -> (builder, object) -> {
+                char value;
+                try {
+                    value = object.getChar(name);
+                } catch (IllegalArgumentException e) {
+                    builder.putField(name, nullValue);
+                    return;
+                }
+                builder.putField(name, modifier == null ? value : modifier.process(name, value));
+            };
+            default -> null;
+        };
+    }
+
+    /**
+     * Compile a plan that copies the values of a field without calling the modifier.
+     * With a {@link PooledValueCache}, the output values of pooled values are created once.
+     */
+    private static ValuePlan compileCopy(String name, ValueDescriptor field, Type fieldType,
+                                         PooledValueCache pooledValues, StackTraceTable stackTraces) {
+        ValueWriter writer = switch (field.getTypeName()) {
+            case "byte" -> (builder, value) -> builder.putField(name, (byte) value);
+            case "short" -> (builder, value) -> builder.putField(name, (short) value);
+            case "int" -> (builder, value) -> builder.putField(name, (int) value);
+            case "long" -> (builder, value) -> builder.putField(name, (long) value);
+            case "float" -> (builder, value) -> builder.putField(name, (float) value);
+            case "double" -> (builder, value) -> builder.putField(name, (double) value);
+            case "boolean" -> (builder, value) -> builder.putField(name, (boolean) value);
+            case "char" -> (builder, value) -> builder.putField(name, (char) value);
+            case "java.lang.String" -> (builder, value) -> builder.putField(name, (String) value);
+            default -> null;
+        };
+        if (writer != null) {
+            return new ValuePlan(writer, value -> value, writer);
+        }
+        NestedPlan nested = new NestedPlan(fieldType, field, null, pooledValues, null, stackTraces);
+        if (pooledValues != null && pooledValues.caches(field)) {
+            return new ValuePlan(
+                    (builder, value) -> builder.putField(name,
+                            pooledValues.outputValue(value, () -> nested.get().write((RecordedObject) value))),
+                    value -> nested.get().transform((RecordedObject) value),
+                    (builder, value) -> builder.putField(name,
+                            nestedBuilder -> nested.get().writeTransformedFields(nestedBuilder, (Object[]) value)));
+        }
+        return new ValuePlan(
+                (builder, value) -> builder.putField(name,
+                        nestedBuilder -> nested.get().writeFields(nestedBuilder, (RecordedObject) value)),
+                value -> nested.get().transform((RecordedObject) value),
+                (builder, value) -> builder.putField(name,
+                        nestedBuilder -> nested.get().writeTransformedFields(nestedBuilder, (Object[]) value)));
+    }
+
+    private static ValuePlan compileArray(String name, ValueDescriptor field, Type elementType, JFREventModifier modifier,
+                                          PooledValueCache pooledValues, StringCache strings, StackTraceTable stackTraces) {
+        NestedPlan nested = new NestedPlan(elementType, field, modifier, pooledValues, strings, stackTraces);
+        ValueTransformer transform = value -> switch (value) {
+            case Object[] arr when modifier == null && !(arr instanceof String[]) -> transformElements(nested, name, arr);
+            case Object arr when modifier == null -> arr;
+            case byte[] arr -> modifier.process(name, arr);
+            case short[] arr -> modifier.process(name, arr);
+            case int[] arr -> modifier.process(name, arr);
+            case long[] arr -> modifier.process(name, arr);
+            case float[] arr -> modifier.process(name, arr);
+            case double[] arr -> modifier.process(name, arr);
+            case boolean[] arr -> modifier.process(name, arr);
+            case char[] arr -> modifier.process(name, arr);
+            case String[] arr -> modifier.process(name, arr);
+            case Object[] arr -> transformElements(nested, name, arr);
+            default -> throw unsupportedValue(name, value);
+        };
+        ValueWriter writeTransformed = (builder, value) -> {
+            switch (value) {
+                case byte[] arr -> builder.putField(name, arr);
+                case short[] arr -> builder.putField(name, arr);
+                case int[] arr -> builder.putField(name, arr);
+                case long[] arr -> builder.putField(name, arr);
+                case float[] arr -> builder.putField(name, arr);
+                case double[] arr -> builder.putField(name, arr);
+                case boolean[] arr -> builder.putField(name, arr);
+                case char[] arr -> builder.putField(name, arr);
+                case String[] arr -> builder.putField(name, arr);
+                case Object[][] arr -> {
+                    TypedValue[] elements = new TypedValue[arr.length];
+                    for (int i = 0; i < arr.length; i++) {
+                        elements[i] = nested.get().writeTransformed(arr[i]);
+                    }
+                    builder.putField(name, elements);
+                }
+                default -> throw unsupportedValue(name, value);
+            }
+        };
+        ValueWriter write = (builder, value) -> {
+            switch (value) {
+                case Object[] arr when !(arr instanceof String[]) -> {
+                    TypedValue[] elements = new TypedValue[arr.length];
+                    for (int i = 0; i < arr.length; i++) {
+                        elements[i] = nested.get().write(recordedElement(name, arr[i]));
+                    }
+                    builder.putField(name, elements);
+                }
+                default -> writeTransformed.write(builder, transform.transform(value));
+            }
+        };
+        return new ValuePlan(write, transform, writeTransformed);
+    }
+
+    /**
+     * Compile a plan for stack trace values that truncates the frames and shares the output value of identical
+     * stack traces. The transformed value of a stack trace is {@code {truncated, frames}}.
+     *
+     * @return The plan, null if the stack trace type does not have the fields of the JDK stack trace type
+     */
+    private static ValuePlan compileStackTrace(String name, ValueDescriptor field, Type fieldType, JFREventModifier modifier,
+                                               PooledValueCache pooledValues, StringCache strings,
+                                               StackTraceTable stackTraces) {
+        ValueDescriptor framesField = field.getFields().stream()
+                .filter(f -> f.getName().equals("frames") && f.isArray())
+                .findFirst().orElse(null);
+        TypedField framesType = fieldType.getField("frames");
+        if (framesField == null || framesType == null || fieldType.getField("truncated") == null) {
+            return null;
+        }
+        NestedPlan frames = new NestedPlan(framesType.getType(), framesField, modifier, pooledValues, strings, null);
+        StackTraceTable.Values values = stackTraces.newValues();
+        ValueTransformer transformUncached = value -> {
+            RecordedObject stackTrace = (RecordedObject) value;
+            Object[] inputFrames = (Object[]) stackTrace.getValue("frames");
+            Object[] topFrames = stackTraces.truncate(inputFrames);
+            return new Object[]{
+                    transformTruncated(modifier, stackTrace, inputFrames, topFrames),
+                    transformElements(frames, name, topFrames)};
+        };
+        boolean pooled = modifier != null && pooledValues != null && pooledValues.caches(field);
+        ValueTransformer transform = pooled
+                ? value -> transformPooled(pooledValues, (RecordedObject) value, transformUncached)
+                : transformUncached;
+        Function<Object[], TypedValue> createTransformed = transformed -> fieldType.asValue(builder -> {
+            builder.putField("truncated", (boolean) transformed[0]);
+            Object[][] transformedFrames = (Object[][]) transformed[1];
+            TypedValue[] elements = new TypedValue[transformedFrames.length];
+            for (int i = 0; i < transformedFrames.length; i++) {
+                elements[i] = frames.get().writeTransformed(transformedFrames[i]);
+            }
+            builder.putField("frames", elements);
+        });
+        ValueWriter writeTransformed = pooled
+                ? (builder, value) -> builder.putField(name,
+                        pooledValues.outputValue(value, () -> createTransformed.apply((Object[]) value)))
+                : (builder, value) -> builder.putField(name, createTransformed.apply((Object[]) value));
+        Function<RecordedObject, TypedValue> create = stackTrace -> {
+            Object[] inputFrames = (Object[]) stackTrace.getValue("frames");
+            Object[] topFrames = stackTraces.truncate(inputFrames);
+            return fieldType.asValue(builder -> {
+                builder.putField("truncated", transformTruncated(modifier, stackTrace, inputFrames, topFrames));
+                TypedValue[] elements = new TypedValue[topFrames.length];
+                for (int i = 0; i < topFrames.length; i++) {
+                    elements[i] = frames.get().write(recordedElement(name, topFrames[i]));
+                }
+                builder.putField("frames", elements);
+            });
+        };
+        ValueWriter write;
+        if (pooled) {
+            write = (builder, value) -> writeTransformed.write(builder, transform.transform(value));
+        } else if (modifier == null && pooledValues != null && pooledValues.caches(field)) {
+            write = (builder, value) -> builder.putField(name,
+                    pooledValues.outputValue(value, () -> create.apply((RecordedObject) value)));
+        } else {
+            write = (builder, value) -> builder.putField(name,
+                    values.get(value, () -> create.apply((RecordedObject) value)));
+        }
+        return new ValuePlan(write, transform, writeTransformed);
+    }
+
+    /**
+     * The truncated flag of a stack trace whose frames are cut to the given top frames, with the modifier applied
+     */
+    private static boolean transformTruncated(JFREventModifier modifier, RecordedObject stackTrace,
+                                              Object[] inputFrames, Object[] topFrames) {
+        boolean truncated = stackTrace.getBoolean("truncated") || topFrames.length < inputFrames.length;
+        return modifier == null ? truncated : modifier.process("truncated", truncated);
+    }
+
+    /**
+     * Transform a value of the input constant pool, or reuse its cached transformation
+     */
+    private static Object[] transformPooled(PooledValueCache pooledValues, RecordedObject value,
+                                            ValueTransformer transform) {
+        Object[] transformed = pooledValues.get(value);
+        if (transformed == null) {
+            transformed = (Object[]) transform.transform(value);
+            pooledValues.put(value, transformed);
+        }
+        return transformed;
+    }
+
+    private static Object[][] transformElements(NestedPlan nested, String name, Object[] arr) {
+        Object[][] elements = new Object[arr.length][];
+        for (int i = 0; i < arr.length; i++) {
+            elements[i] = nested.get().transform(recordedElement(name, arr[i]));
+        }
+        return elements;
+    }
+
+    private static RecordedObject recordedElement(String name, Object element) {
+        if (!(element instanceof RecordedObject recordedObject)) {
+            throw new UnsupportedOperationException(
+                    "Object array contains non-RecordedObject element for field '" + name + "'");
+        }
+        return recordedObject;
+    }
+
+    private static UnsupportedOperationException unsupportedValue(String name, Object value) {
+        return new UnsupportedOperationException(
+                "Unsupported value type for field '" + name + "': " + value.getClass().getName());
+    }
+
+    private static Object readValue(RecordedObject object, String name) {
+        try {
+            return object.getValue(name);
+        } catch (IllegalArgumentException e) {
+            // Field might not be present in this particular recorded object
+            return null;
+        }
+    }
+
+    /**
+     * Plan for the values of a complex field, compiled on first use.
+     * Threads that race on the first use compile their own plan, all of them are equivalent.
+     */
+    private static final class NestedPlan {
+        private final Type type;
+        private final ValueDescriptor field;
+        private final JFREventModifier modifier;
+        private final PooledValueCache pooledValues;
+        private final StringCache strings;
+        private final StackTraceTable stackTraces;
+        private volatile WritePlan plan;
+
+        NestedPlan(Type type, ValueDescriptor field, JFREventModifier modifier, PooledValueCache pooledValues,
+                   StringCache strings, StackTraceTable stackTraces) {
+            this.type = type;
+            this.field = field;
+            this.modifier = modifier;
+            this.pooledValues = pooledValues;
+            this.strings = strings;
+            this.stackTraces = stackTraces;
+        }
+
+        WritePlan get() {
+            WritePlan result = plan;
+            if (result == null) {
+                result = new WritePlan(type, field.getFields(), modifier, nestedField -> true, pooledValues, strings,
+                        stackTraces);
+                plan = result;
+            }
+            return result;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package me.bechberger.jfr;
 
 import jdk.jfr.*;
 import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedObject;
 import jdk.jfr.consumer.RecordedStackTrace;
 import jdk.jfr.consumer.RecordingFile;
 import me.bechberger.jfr.util.JFRTestHelper;
@@ -10,9 +11,32 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static me.bechberger.jfr.util.JFRTestEvents.*;
 
@@ -217,6 +241,93 @@ public class JFRProcessorTest {
         .fieldChanged("test.SimpleEvent", "count");
     }
 
+    @Test
+    public void modifierTransformsAllPrimitiveFields() throws IOException {
+        Path inputPath = helper.recording()
+                .addEvent(() -> {
+                    ComplexEvent event = new ComplexEvent();
+                    event.intField = 1;
+                    event.longField = 2L;
+                    event.floatField = 3f;
+                    event.doubleField = 4.0;
+                    event.booleanField = false;
+                    event.byteField = (byte) 5;
+                    event.shortField = (short) 6;
+                    event.charField = 'a';
+                    event.commit();
+
+                    AnnotatedEvent annotated = new AnnotatedEvent();
+                    annotated.unsignedValue = -1;
+                    annotated.commit();
+                })
+                .build();
+        AtomicInteger doubleCalls = new AtomicInteger();
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withModifier(new JFREventModifier() {
+                    @Override
+                    public int process(String fieldName, int value) {
+                        return value + 10;
+                    }
+
+                    @Override
+                    public long process(String fieldName, long value) {
+                        return "longField".equals(fieldName) ? value + 10 : value;
+                    }
+
+                    @Override
+                    public float process(String fieldName, float value) {
+                        return value + 10;
+                    }
+
+                    @Override
+                    public double process(String fieldName, double value) {
+                        if ("doubleField".equals(fieldName)) {
+                            doubleCalls.incrementAndGet();
+                        }
+                        return value + 10;
+                    }
+
+                    @Override
+                    public boolean process(String fieldName, boolean value) {
+                        return !value;
+                    }
+
+                    @Override
+                    public byte process(String fieldName, byte value) {
+                        return (byte) (value + 10);
+                    }
+
+                    @Override
+                    public short process(String fieldName, short value) {
+                        return (short) (value + 10);
+                    }
+
+                    @Override
+                    public char process(String fieldName, char value) {
+                        return Character.toUpperCase(value);
+                    }
+                })
+                .process();
+
+        helper.verify(outputPath)
+                .findEvent("test.ComplexEvent")
+                .hasInt("intField", 11)
+                .hasLong("longField", 12L)
+                .hasFloat("floatField", 13f, 0.001f)
+                .hasDouble("doubleField", 14.0, 0.001)
+                .hasBoolean("booleanField", true)
+                .hasByte("byteField", (byte) 15)
+                .hasShort("shortField", (short) 16)
+                .hasChar("charField", 'A');
+        Assertions.assertEquals(1, doubleCalls.get());
+        // Unsigned ints are read with getValue, getInt would widen them, and are passed to the modifier as stored
+        helper.verify(outputPath)
+                .findEvent("test.AnnotatedEvent")
+                .hasInt("unsignedValue", 9);
+    }
+
     @Test
     public void modifierSelectivelyRemovesEvents() throws IOException {
         var verifier = helper.roundtrip(() -> {
@@ -286,6 +397,367 @@ public class JFRProcessorTest {
         .fieldChanged("test.ComplexEvent", "longField");
     }
 
+    @Test
+    public void modifierSkipsEventTypesItDoesNotProcess() throws IOException {
+        helper.roundtrip(() -> {
+            SimpleEvent simple = new SimpleEvent();
+            simple.message = "untouched";
+            simple.count = 1;
+            simple.commit();
+
+            ComplexEvent complex = new ComplexEvent();
+            complex.stringField = "secret";
+            complex.intField = 42;
+            complex.commit();
+        })
+        .withModifier(new JFREventModifier() {
+            @Override
+            public boolean processesEventType(EventType eventType) {
+                return "test.ComplexEvent".equals(eventType.getName());
+            }
+
+            @Override
+            public String process(String fieldName, String value) {
+                return value == null ? null : "***";
+            }
+        })
+        .eventCountPreserved()
+        .eventsOfTypeFullyPreserved("test.SimpleEvent")
+        .fieldChanged("test.ComplexEvent", "stringField");
+    }
+
+    @Test
+    public void modifierIsOnlyCalledForInterestedTypesAndFields() throws IOException {
+        Set<String> calledFields = ConcurrentHashMap.newKeySet();
+        helper.roundtrip(() -> {
+            SimpleEvent simple = new SimpleEvent();
+            simple.message = "untouched";
+            simple.count = 1;
+            simple.commit();
+
+            NetworkEvent network = new NetworkEvent();
+            network.sourceAddress = "10.0.0.1";
+            network.destinationAddress = "10.0.0.2";
+            network.protocol = "TCP";
+            network.sourcePort = 1234;
+            network.commit();
+        })
+        .withModifier(new JFREventModifier() {
+            @Override
+            public Set<String> interestedEventTypes() {
+                return Set.of("test.NetworkEvent");
+            }
+
+            @Override
+            public boolean processesField(EventType eventType, ValueDescriptor field) {
+                return field.getName().endsWith("Address");
+            }
+
+            @Override
+            public String process(String fieldName, String value) {
+                calledFields.add(fieldName);
+                return value == null ? null : "***";
+            }
+
+            @Override
+            public int process(String fieldName, int value) {
+                calledFields.add(fieldName);
+                return 0;
+            }
+        })
+        .eventCountPreserved()
+        .eventsOfTypeFullyPreserved("test.SimpleEvent")
+        .fieldChanged("test.NetworkEvent", "sourceAddress")
+        .fieldChanged("test.NetworkEvent", "destinationAddress")
+        .fieldPreserved("test.NetworkEvent", "protocol")
+        .fieldPreserved("test.NetworkEvent", "sourcePort");
+        Assertions.assertEquals(Set.of("sourceAddress", "destinationAddress"), calledFields);
+    }
+
+    @Test
+    public void removedEventTypesAreSkippedBeforeParsing() throws IOException {
+        helper.roundtrip(() -> {
+            for (int i = 0; i < 20; i++) {
+                NetworkEvent network = new NetworkEvent();
+                network.protocol = "TCP";
+                network.commit();
+
+                SimpleEvent simple = new SimpleEvent();
+                simple.message = "kept " + i;
+                simple.count = i;
+                simple.commit();
+                if (i == 10) {
+                    // Let the recording flush, so that the chunk has multiple linked constant pools
+                    Thread.sleep(1500);
+                }
+            }
+        })
+        .withModifier(new JFREventModifier() {
+            @Override
+            public boolean shouldRemoveEventType(EventType eventType) {
+                return "test.NetworkEvent".equals(eventType.getName());
+            }
+
+            @Override
+            public boolean shouldRemoveEvent(RecordedEvent event) {
+                Assertions.assertNotEquals("test.NetworkEvent", event.getEventType().getName());
+                return false;
+            }
+        })
+        .eventTypeRemoved("test.NetworkEvent")
+        .eventTypeCountPreserved("test.SimpleEvent")
+        .eventsOfTypeFullyPreserved("test.SimpleEvent");
+    }
+
+    @Test
+    public void pooledValuesAreTransformedOncePerConstantPoolEntry() throws IOException {
+        Path inputPath = helper.recording()
+                .addEvent(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        SimpleEvent event = new SimpleEvent();
+                        event.message = "Event " + i;
+                        event.commit();
+                    }
+                })
+                .build();
+        AtomicInteger threadNameCalls = new AtomicInteger();
+        JFREventModifier modifier = new JFREventModifier() {
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+
+            @Override
+            public String process(String fieldName, String value) {
+                if ("javaName".equals(fieldName)) {
+                    threadNameCalls.incrementAndGet();
+                    return "thread";
+                }
+                return value;
+            }
+        };
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withModifier(modifier)
+                .withPooledValueCaching()
+                .process();
+
+        helper.verify(outputPath)
+                .hasEventOfType("test.SimpleEvent", 50)
+                .verifyAllEvents("test.SimpleEvent",
+                        e -> Assertions.assertEquals("thread", e.getEvent().getThread("eventThread").getJavaName()));
+        // Once per thread in the constant pool, not once per event
+        Assertions.assertTrue(threadNameCalls.get() < 10, "Thread names transformed " + threadNameCalls.get() + " times");
+    }
+
+    @Test
+    public void pooledValueCachingPreservesThreadsAndStackTraces() throws IOException {
+        Path inputPath = helper.recording()
+                .addEvent(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        SimpleEvent simple = new SimpleEvent();
+                        simple.message = "Event " + i;
+                        simple.commit();
+                        ComplexEvent complex = new ComplexEvent();
+                        complex.intField = i;
+                        complex.commit();
+                    }
+                })
+                .build();
+        // Simple events are transformed, complex events are copied
+        JFREventModifier modifier = new JFREventModifier() {
+            @Override
+            public Set<String> interestedEventTypes() {
+                return Set.of("test.SimpleEvent");
+            }
+
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+        };
+        Function<Path, List<String>> threadsAndStackTraces = path -> {
+            try {
+                return RecordingFile.readAllEvents(path).stream()
+                        .filter(e -> e.getEventType().getName().startsWith("test."))
+                        .map(e -> e.getEventType().getName() + " " + e.getThread("eventThread").getJavaName() + " "
+                                + e.getStackTrace().getFrames().stream().map(f -> f.getMethod().getName()).toList())
+                        .toList();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+
+        for (int transformers : new int[]{0, 2}) {
+            Path outputPath = helper.process()
+                    .from(inputPath)
+                    .withModifier(modifier)
+                    .withPooledValueCaching()
+                    .withPipeline(transformers)
+                    .outputTo("pooled-" + transformers)
+                    .process();
+            Assertions.assertEquals(threadsAndStackTraces.apply(inputPath), threadsAndStackTraces.apply(outputPath));
+        }
+    }
+
+    /**
+     * Pure modifier that upper-cases messages and counts its calls for them
+     */
+    private static class CountingPureModifier implements JFREventModifier {
+        final AtomicInteger messageCalls = new AtomicInteger();
+
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+
+        @Override
+        public String process(String fieldName, String value) {
+            if ("message".equals(fieldName)) {
+                messageCalls.incrementAndGet();
+                return value.toUpperCase();
+            }
+            return value;
+        }
+    }
+
+    private Path processWithStringCache(Path inputPath, CountingPureModifier modifier, long maxBytes,
+                                        Consumer<StringCacheStatistics> statistics) throws IOException {
+        Path outputPath = tempDir.resolve("string-cache-output.jfr");
+        JFRProcessor processor = new JFRProcessor(modifier, inputPath).withStringCache(maxBytes);
+        try (var output = Files.newOutputStream(outputPath)) {
+            processor.process(output).close();
+        }
+        statistics.accept(processor.stringCacheStatistics());
+        return outputPath;
+    }
+
+    @Test
+    public void repeatedStringsAreTransformedOnceWithStringCache() throws IOException {
+        Path inputPath = helper.recording()
+                .addEvent(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        SimpleEvent event = new SimpleEvent();
+                        event.message = "Host " + (i % 5);
+                        event.commit();
+                    }
+                })
+                .build();
+        CountingPureModifier modifier = new CountingPureModifier();
+
+        Path outputPath = processWithStringCache(inputPath, modifier, 1024 * 1024, statistics -> {
+            // Other string fields, like the thread names, are cached too
+            Assertions.assertTrue(statistics.hits() >= 45, "Hits: " + statistics.hits());
+            Assertions.assertEquals(0, statistics.evictions());
+        });
+
+        Assertions.assertEquals(5, modifier.messageCalls.get());
+        helper.verify(outputPath)
+                .hasEventOfType("test.SimpleEvent", 50)
+                .verifyAllEvents("test.SimpleEvent",
+                        e -> Assertions.assertTrue(e.getEvent().getString("message").startsWith("HOST ")));
+    }
+
+    @Test
+    public void stringCacheStaysWithinMemoryLimit() throws IOException {
+        Path inputPath = helper.recording()
+                .addEvent(() -> {
+                    for (int i = 0; i < 200; i++) {
+                        SimpleEvent event = new SimpleEvent();
+                        event.message = "Unique message " + i;
+                        event.commit();
+                    }
+                })
+                .build();
+        CountingPureModifier modifier = new CountingPureModifier();
+        long maxBytes = 2048;
+
+        Path outputPath = processWithStringCache(inputPath, modifier, maxBytes, statistics -> {
+            Assertions.assertTrue(statistics.estimatedBytes() <= maxBytes, "Cache size: " + statistics.estimatedBytes());
+            Assertions.assertTrue(statistics.evictions() > 0);
+        });
+
+        Assertions.assertEquals(200, modifier.messageCalls.get());
+        Set<String> messages = RecordingFile.readAllEvents(outputPath).stream()
+                .filter(e -> e.getEventType().getName().equals("test.SimpleEvent"))
+                .map(e -> e.getString("message"))
+                .collect(Collectors.toSet());
+        Assertions.assertEquals(200, messages.size());
+        Assertions.assertTrue(messages.contains("UNIQUE MESSAGE 199"));
+    }
+
+    @Test
+    public void stringCacheRequiresPureModifier() {
+        JFRProcessor processor = new JFRProcessor(new JFREventModifier() {
+        }, tempDir.resolve("unused.jfr"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> processor.withStringCache(1024));
+        Assertions.assertNull(processor.withStringCache(0).stringCacheStatistics());
+    }
+
+    @Test
+    public void pooledValueCachingRequiresPureModifier() {
+        JFRProcessor processor = new JFRProcessor(new JFREventModifier() {
+        }, tempDir.resolve("unused.jfr"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> processor.withPooledValueCaching(true));
+        Assertions.assertSame(processor, processor.withPooledValueCaching(false));
+    }
+
+    @Test
+    public void removedEventTypesAreDroppedFromChunksThatCannotBeFiltered() throws IOException {
+        Path chunk = helper.recording()
+                .withName("mixed")
+                .addSimpleEvent("Kept", 1, true)
+                .addEvent(() -> {
+                    NetworkEvent network = new NetworkEvent();
+                    network.protocol = "TCP";
+                    network.commit();
+                })
+                .build();
+        // The filter refuses the first chunk, the JDK parser reads it as it is
+        byte[] withoutFlag = Files.readAllBytes(chunk);
+        ByteBuffer.wrap(withoutFlag).putInt(64, 0);
+        Path inputPath = concatenateChunks("unfiltered", withoutFlag, Files.readAllBytes(chunk));
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withModifier(new JFREventModifier() {
+                    @Override
+                    public boolean shouldRemoveEventType(EventType eventType) {
+                        return "test.NetworkEvent".equals(eventType.getName());
+                    }
+                })
+                .process();
+
+        helper.verify(outputPath)
+                .hasNoEventOfType("test.NetworkEvent")
+                .hasEventOfType("test.SimpleEvent", 2)
+                .verifyAllEvents("test.SimpleEvent", e -> e.hasString("message", "Kept"));
+    }
+
+    @Test
+    public void eventTypesAreRegisteredUpFront() throws IOException {
+        Path inputPath = helper.recording()
+                .addSimpleEvent("removed", 1, true)
+                .build();
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withModifier(new JFREventModifier() {
+                    @Override
+                    public boolean shouldRemoveEvent(RecordedEvent event) {
+                        return true;
+                    }
+                })
+                .process();
+
+        helper.verify(outputPath).hasNoEventOfType("test.SimpleEvent");
+        try (RecordingFile output = new RecordingFile(outputPath)) {
+            Assertions.assertTrue(output.readEventTypes().stream()
+                    .anyMatch(type -> type.getName().equals("test.SimpleEvent")));
+        }
+    }
+
     // ========== Edge Cases ==========
 
     @Test
@@ -509,6 +981,40 @@ public class JFRProcessorTest {
         Assertions.assertDoesNotThrow(stackTrace::getFrames);
     }
 
+    @Test
+    public void constantPoolPolicyDecidesPoolingOncePerType() throws IOException {
+        Path inputPath = helper.recording()
+                .addSimpleEvent("Inlined packages", 1, true)
+                .addSimpleEvent("Inlined packages", 2, true)
+                .build();
+        Map<String, Integer> decisions = new HashMap<>();
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withConstantPoolPolicy((typeName, pooledInInput) -> {
+                    decisions.merge(typeName, 1, Integer::sum);
+                    return pooledInInput && !"jdk.types.Package".equals(typeName);
+                })
+                .process();
+
+        Assertions.assertTrue(decisions.containsKey("jdk.types.Package"));
+        Assertions.assertTrue(decisions.values().stream().allMatch(count -> count == 1),
+                "Policy should be asked once per type: " + decisions);
+        List<RecordedEvent> original = RecordingFile.readAllEvents(inputPath);
+        List<RecordedEvent> processed = RecordingFile.readAllEvents(outputPath);
+        Assertions.assertEquals(
+                original.stream().map(e -> topFramePackage(e)).toList(),
+                processed.stream().map(e -> topFramePackage(e)).toList());
+        Assertions.assertEquals(
+                original.stream().map(e -> e.getStackTrace().getFrames().toString()).toList(),
+                processed.stream().map(e -> e.getStackTrace().getFrames().toString()).toList());
+    }
+
+    private static String topFramePackage(RecordedEvent event) {
+        RecordedObject pkg = event.getStackTrace().getFrames().getFirst().getMethod().getType().getValue("package");
+        return pkg.getString("name");
+    }
+
     @Test
     public void eventFieldsAccessibleAfterProcessing() throws IOException {
         Path inputPath = helper.recording()
@@ -721,4 +1227,1242 @@ public class JFRProcessorTest {
                 .hasEventOfType("test.ComplexEvent", 3)
                 .hasEventOfType("test.NetworkEvent", 2);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void eventTypeMapSharesValuesBetweenTheTypesOfAllChunks() throws IOException {
+        Path inputPath = createMultiChunkRecording();
+        List<EventType> first;
+        List<EventType> second;
+        try (RecordingFile recording = new RecordingFile(inputPath)) {
+            first = recording.readEventTypes();
+        }
+        try (RecordingFile recording = new RecordingFile(inputPath)) {
+            second = recording.readEventTypes();
+        }
+        EventTypeMap<String> map = new EventTypeMap<>();
+        for (EventType type : first) {
+            map.put(type, type.getName());
+        }
+
+        Assertions.assertEquals(first.size(), second.size());
+        for (int i = 0; i < second.size(); i++) {
+            Assertions.assertNotSame(first.get(i), second.get(i));
+            Assertions.assertEquals(second.get(i).getName(), map.get(second.get(i)));
+        }
+    }
+
+    // ========== Parallel Processing Tests ==========
+
+    private Path createMultiChunkRecording() throws IOException {
+        Path[] recordings = new Path[3];
+        for (int r = 0; r < recordings.length; r++) {
+            int file = r;
+            recordings[r] = helper.recording()
+                    .withName("chunk" + r)
+                    .addEvent(() -> {
+                        for (int i = 0; i < 5; i++) {
+                            SimpleEvent event = new SimpleEvent();
+                            event.message = "Chunk " + file + " - Event " + i;
+                            event.count = file * 100 + i;
+                            event.flag = i % 2 == 0;
+                            event.commit();
+                        }
+                    })
+                    .build();
+        }
+        return helper.concatenate("multi-chunk", recordings);
+    }
+
+    private static List<String> simpleEventMessages(Path recording) throws IOException {
+        return RecordingFile.readAllEvents(recording).stream()
+                .filter(e -> e.getEventType().getName().equals("test.SimpleEvent"))
+                .map(e -> e.getString("message"))
+                .toList();
+    }
+
+    @Test
+    public void parallelProcessingPreservesEventsAndChunkOrder() throws IOException {
+        Path inputPath = createMultiChunkRecording();
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withParallelism(2)
+                .process();
+
+        helper.verify(outputPath)
+                .fileExists()
+                .fileNotEmpty()
+                .hasEventOfType("test.SimpleEvent", 15);
+        Assertions.assertEquals(simpleEventMessages(inputPath), simpleEventMessages(outputPath));
+    }
+
+    @Test
+    public void parallelProcessingAppliesModifier() throws IOException {
+        Path inputPath = createMultiChunkRecording();
+
+        helper.verify(helper.process()
+                .from(inputPath)
+                .withParallelism(3)
+                .withModifier(new JFREventModifier() {
+                    @Override
+                    public boolean shouldRemoveEvent(RecordedEvent event) {
+                        return "test.SimpleEvent".equals(event.getEventType().getName())
+                               && event.getInt("count") % 100 == 0;
+                    }
+
+                    @Override
+                    public String process(String fieldName, String value) {
+                        return "message".equals(fieldName) ? "***" : value;
+                    }
+                })
+                .process())
+                .hasEventOfType("test.SimpleEvent", 12)
+                .verifyAllEvents("test.SimpleEvent", e -> e.hasString("message", "***"));
+    }
+
+    @Test
+    public void parallelProcessingCopiesUnchangedChunks() throws IOException {
+        Path simpleChunk = helper.recording()
+                .withName("simple")
+                .addSimpleEvent("Copied", 1, true)
+                .build();
+        Path networkChunk = helper.recording()
+                .withName("network")
+                .addEvent(() -> {
+                    NetworkEvent event = new NetworkEvent();
+                    event.protocol = "TCP";
+                    event.commit();
+                })
+                .build();
+        Path inputPath = helper.concatenate("mixed", simpleChunk, networkChunk, simpleChunk);
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withParallelism(2)
+                .withChunkCopying()
+                .withModifier(new JFREventModifier() {
+                    @Override
+                    public boolean processesEventType(EventType eventType) {
+                        return false;
+                    }
+
+                    @Override
+                    public boolean mayRemoveEventsOfType(EventType eventType) {
+                        return "test.NetworkEvent".equals(eventType.getName());
+                    }
+
+                    @Override
+                    public boolean shouldRemoveEvent(RecordedEvent event) {
+                        return true;
+                    }
+                })
+                .process();
+
+        helper.verify(outputPath)
+                .hasNoEventOfType("test.NetworkEvent")
+                .hasEventOfType("test.SimpleEvent", 2)
+                .verifyAllEvents("test.SimpleEvent", e -> e.hasString("message", "Copied"));
+        // The first chunk only contains untouched event types, so it is copied byte by byte
+        byte[] expected = Files.readAllBytes(simpleChunk);
+        byte[] actual = Files.readAllBytes(outputPath);
+        Assertions.assertArrayEquals(expected, Arrays.copyOf(actual, expected.length));
+    }
+
+    @Test
+    public void chunkScannerRejectsMalformedChunks() throws IOException {
+        byte[] chunk = Files.readAllBytes(helper.recording().addSimpleEvent("Scanned", 1, true).build());
+        ChunkHeader header = ChunkHeader.read(ByteBuffer.wrap(chunk), 0);
+        Assertions.assertEquals(Set.of("test.SimpleEvent"),
+                new ChunkScanner(ByteBuffer.wrap(chunk), header).eventTypeNames().stream()
+                        .filter(name -> name.startsWith("test."))
+                        .collect(Collectors.toSet()));
+
+        // Truncated chunk
+        ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(chunk, (int) header.metadataOffset() + 8));
+        Assertions.assertThrows(IOException.class, () -> new ChunkScanner(truncated, header).eventTypeNames());
+
+        // Metadata with a string table larger than the chunk
+        byte[] corrupted = chunk.clone();
+        ByteBuffer corruptedBuffer = ByteBuffer.wrap(corrupted);
+        corruptedBuffer.position(new ChunkScanner(corruptedBuffer, header).metadataIdPosition());
+        ChunkScanner.readVarLong(corruptedBuffer); // metadata id
+        corruptedBuffer.put(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07});
+        Assertions.assertThrows(IOException.class,
+                () -> new ChunkScanner(ByteBuffer.wrap(corrupted), header).eventTypeNames());
+
+        // Fixed-size integers
+        Assertions.assertThrows(IOException.class, () -> new ChunkScanner(ByteBuffer.wrap(chunk),
+                new ChunkHeader(0, header.size(), header.constantPoolOffset(), header.metadataOffset(),
+                        header.startNanos(), header.durationNanos(), header.startTicks(), header.ticksPerSecond(), 0))
+                .eventTypeNames());
+    }
+
+    @Test
+    public void parallelProcessingDecodesChunksThatCannotBeScanned() throws IOException {
+        Path simpleChunk = helper.recording()
+                .withName("simple")
+                .addSimpleEvent("Decoded", 1, true)
+                .build();
+        // The JDK parser ignores the compressed integers flag, the scanner refuses the chunk without it
+        byte[] withoutFlag = Files.readAllBytes(simpleChunk);
+        ByteBuffer.wrap(withoutFlag).putInt(64, 0);
+        Path inputPath = concatenateChunks("without-flag", withoutFlag, Files.readAllBytes(simpleChunk));
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withParallelism(2)
+                .withChunkCopying()
+                .withModifier(new JFREventModifier() {
+                    @Override
+                    public boolean processesEventType(EventType eventType) {
+                        return false;
+                    }
+                })
+                .process();
+
+        helper.verify(outputPath)
+                .hasEventOfType("test.SimpleEvent", 2)
+                .verifyAllEvents("test.SimpleEvent", e -> e.hasString("message", "Decoded"));
+        // Only the second chunk is copied
+        byte[] output = Files.readAllBytes(outputPath);
+        Assertions.assertFalse(Arrays.equals(withoutFlag, Arrays.copyOf(output, withoutFlag.length)));
+    }
+
+    @Test
+    public void parallelProcessingHandlesChunksWithDifferentEventTypes() throws IOException {
+        Path simpleChunk = helper.recording()
+                .withName("simple")
+                .addSimpleEvent("Simple", 1, true)
+                .build();
+        Path networkChunk = helper.recording()
+                .withName("network")
+                .addEvent(() -> {
+                    NetworkEvent event = new NetworkEvent();
+                    event.protocol = "TCP";
+                    event.commit();
+                })
+                .build();
+        Path inputPath = helper.concatenate("mixed", simpleChunk, networkChunk, simpleChunk);
+
+        helper.verify(helper.process()
+                .from(inputPath)
+                .withParallelism(2)
+                .process())
+                .hasEventOfType("test.SimpleEvent", 2)
+                .hasEventOfType("test.NetworkEvent", 1)
+                .verifyAllEvents("test.NetworkEvent", e -> e.hasString("protocol", "TCP"));
+    }
+
+    /**
+     * Write the recording with the JMC writer into a single chunk
+     */
+    private static byte[] writtenChunk(Path recording) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new JFRProcessor(new JFREventModifier() {
+        }, recording).process(output).close();
+        return output.toByteArray();
+    }
+
+    private Path concatenateChunks(String name, byte[]... chunks) throws IOException {
+        Path result = tempDir.resolve(name + ".jfr");
+        try (OutputStream out = Files.newOutputStream(result)) {
+            for (byte[] chunk : chunks) {
+                out.write(chunk);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The parallel mode separates its output chunks with empty chunks and gives them distinct metadata ids,
+     * because the JDK parser reuses the constants and the metadata of the previous chunk. If this test fails,
+     * the parser no longer does this and the workarounds of the chunk writer of {@link JFRProcessor} can be removed.
+     */
+    @Test
+    public void jdkParserReusesConstantsAndMetadataOfThePreviousChunk() throws IOException {
+        Path mainThreadChunk = helper.recording()
+                .withName("main-thread")
+                .addSimpleEvent("Main", 1, true)
+                .build();
+        Path otherThreadChunk = helper.recording()
+                .withName("other-thread")
+                .addEvent(() -> {
+                    Thread thread = new Thread(() -> {
+                        SimpleEvent event = new SimpleEvent();
+                        event.message = "Other";
+                        event.commit();
+                    }, "other");
+                    thread.start();
+                    thread.join();
+                })
+                .build();
+        Path networkChunk = helper.recording()
+                .withName("network")
+                .addEvent(() -> {
+                    NetworkEvent event = new NetworkEvent();
+                    event.protocol = "TCP";
+                    event.commit();
+                })
+                .build();
+
+        // Both chunks number their constants from 1, the second event gets the thread of the first chunk
+        List<String> threads = RecordingFile.readAllEvents(concatenateChunks("reused-constants",
+                        writtenChunk(mainThreadChunk), writtenChunk(otherThreadChunk))).stream()
+                .map(e -> e.getThread().getJavaName())
+                .toList();
+        Assertions.assertEquals(List.of("main", "main"), threads);
+
+        // Both chunks have the metadata id 0, the type of the network event is unknown in the second chunk
+        helper.verify(concatenateChunks("reused-metadata", writtenChunk(mainThreadChunk), writtenChunk(networkChunk)))
+                .hasEventOfType("test.SimpleEvent", 1)
+                .hasNoEventOfType("test.NetworkEvent");
+
+        // The chunk writer of the parallel mode avoids both
+        Path outputPath = helper.process()
+                .from(helper.concatenate("mixed-threads", mainThreadChunk, otherThreadChunk, networkChunk))
+                .withParallelism(2)
+                .process();
+        Assertions.assertEquals(List.of("main", "other"), RecordingFile.readAllEvents(outputPath).stream()
+                .filter(e -> e.getEventType().getName().equals("test.SimpleEvent"))
+                .map(e -> e.getThread().getJavaName())
+                .toList());
+        helper.verify(outputPath).hasEventOfType("test.NetworkEvent", 1);
+    }
+
+    @Test
+    public void parallelProcessingParsesSingleChunkInPlace() throws IOException {
+        Path inputPath = helper.recording()
+                .addSimpleEvent("Single", 1, true)
+                .build();
+
+        helper.verify(helper.process()
+                .from(inputPath)
+                .withParallelism(2)
+                .process())
+                .hasEventOfType("test.SimpleEvent", 1)
+                .verifyAllEvents("test.SimpleEvent", e -> e.hasString("message", "Single"));
+    }
+
+    // ========== Stream Input Tests ==========
+
+    @Test
+    public void streamInputIsProcessedChunkByChunk() throws IOException {
+        Path inputPath = createMultiChunkRecording();
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withStreamInput()
+                .withParallelism(1)
+                .withModifier(new JFREventModifier() {
+                    @Override
+                    public String process(String fieldName, String value) {
+                        return "message".equals(fieldName) ? value.toUpperCase() : value;
+                    }
+                })
+                .process();
+
+        Assertions.assertEquals(
+                simpleEventMessages(inputPath).stream().map(String::toUpperCase).toList(),
+                simpleEventMessages(outputPath));
+    }
+
+    @Test
+    public void streamInputCopiesUnchangedChunks() throws IOException {
+        Path inputPath = createMultiChunkRecording();
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withStreamInput()
+                .withParallelism(2)
+                .withChunkCopying()
+                .withModifier(new JFREventModifier() {
+                    @Override
+                    public boolean processesEventType(EventType eventType) {
+                        return false;
+                    }
+
+                    @Override
+                    public boolean mayRemoveEventsOfType(EventType eventType) {
+                        return false;
+                    }
+                })
+                .process();
+
+        // All chunks are copied, so the output is the input
+        Assertions.assertArrayEquals(Files.readAllBytes(inputPath),
+                Files.readAllBytes(outputPath));
+    }
+
+    @Test
+    public void streamInputSupportsAllProcessingModes() throws IOException {
+        Path inputPath = createMultiChunkRecording();
+        List<String> expected = simpleEventMessages(inputPath);
+
+        Assertions.assertEquals(expected, simpleEventMessages(helper.process()
+                .from(inputPath)
+                .withStreamInput()
+                .outputTo("stream-sequential")
+                .process()));
+        Assertions.assertEquals(expected, simpleEventMessages(helper.process()
+                .from(inputPath)
+                .withStreamInput()
+                .withPipeline(2)
+                .outputTo("stream-pipelined")
+                .process()));
+        Path nativeOutput = tempDir.resolve("stream-native.jfr");
+        try (InputStream input = Files.newInputStream(inputPath);
+             OutputStream output = Files.newOutputStream(nativeOutput)) {
+            new JFRProcessor(new JFREventModifier() {
+                @Override
+                public boolean isPure() {
+                    return true;
+                }
+            }, input).processNative(output);
+        }
+        Assertions.assertEquals(expected, simpleEventMessages(nativeOutput));
+    }
+
+    // ========== Time Window Tests ==========
+
+    /**
+     * Start times of the simple events with the given message prefix, in file order
+     */
+    private static List<Instant> startTimes(Path recording, String messagePrefix) throws IOException {
+        return RecordingFile.readAllEvents(recording).stream()
+                .filter(e -> e.getEventType().getName().equals("test.SimpleEvent"))
+                .filter(e -> e.getString("message").startsWith(messagePrefix))
+                .map(RecordedEvent::getStartTime)
+                .toList();
+    }
+
+    private static Instant middle(Instant first, Instant second) {
+        return first.plus(Duration.between(first, second).dividedBy(2));
+    }
+
+    @Test
+    public void timeWindowKeepsOnlyEventsStartingInIt() throws IOException {
+        Path inputPath = createMultiChunkRecording();
+        // From between the first two events of the middle chunk to between the middle and the last chunk,
+        // the start times depend slightly on the chunks the parser has read before
+        List<Instant> middleChunk = startTimes(inputPath, "Chunk 1");
+        Instant start = middle(middleChunk.get(0), middleChunk.get(1));
+        Instant end = middle(middleChunk.getLast(), startTimes(inputPath, "Chunk 2").getFirst());
+        List<String> expected = simpleEventMessages(inputPath).stream()
+                .filter(message -> message.startsWith("Chunk 1") && !message.endsWith("Event 0"))
+                .toList();
+
+        Assertions.assertEquals(expected, simpleEventMessages(helper.process()
+                .from(inputPath)
+                .withTimeWindow(start, end)
+                .process()));
+        Assertions.assertEquals(expected, simpleEventMessages(helper.process()
+                .from(inputPath)
+                .withTimeWindow(start, end)
+                .withParallelism(2)
+                .withChunkCopying()
+                .outputTo("parallel")
+                .process()));
+        Assertions.assertEquals(expected, simpleEventMessages(helper.process()
+                .from(inputPath)
+                .withTimeWindow(start, end)
+                .withStreamInput()
+                .outputTo("stream")
+                .process()));
+        Assertions.assertEquals(expected, simpleEventMessages(helper.process()
+                .from(inputPath)
+                .withTimeWindow(start, end)
+                .withPipeline(2)
+                .outputTo("pipelined")
+                .process()));
+    }
+
+    @Test
+    public void timeWindowWithoutChunksProducesEmptyRecording() throws IOException {
+        Path inputPath = createMultiChunkRecording();
+        Instant beforeRecording = startTimes(inputPath, "Chunk 0").getFirst().minusSeconds(3600);
+
+        helper.verify(helper.process()
+                .from(inputPath)
+                .withTimeWindow(beforeRecording, beforeRecording.plusSeconds(1))
+                .process())
+                .fileExists()
+                .hasNoEventOfType("test.SimpleEvent");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new JFRProcessor(new JFREventModifier() {
+        }, inputPath).withTimeWindow(beforeRecording, beforeRecording.minusNanos(1)));
+    }
+
+    // ========== Sampling Tests ==========
+
+    private static List<Integer> simpleEventCounts(Path recording) throws IOException {
+        return RecordingFile.readAllEvents(recording).stream()
+                .filter(e -> e.getEventType().getName().equals("test.SimpleEvent"))
+                .map(e -> e.getInt("count"))
+                .toList();
+    }
+
+    @Test
+    public void samplingKeepsOneInN() throws IOException {
+        Path inputPath = createLargeRecording(100);
+        // Every 10th event in the order in which the events are read, which is not always the commit order
+        List<Integer> inputCounts = simpleEventCounts(inputPath);
+        List<Integer> expected = IntStream.range(0, 10).mapToObj(i -> inputCounts.get(i * 10)).toList();
+
+        for (int transformers : new int[]{0, 2}) {
+            Path outputPath = helper.process()
+                    .from(inputPath)
+                    .withSampling(new EventSampler().keepOneIn("test.SimpleEvent", 10))
+                    .withPipeline(transformers)
+                    .outputTo("sampled-" + transformers)
+                    .process();
+            Assertions.assertEquals(expected, simpleEventCounts(outputPath));
+        }
+    }
+
+    @Test
+    public void samplingKeepsAtMostMaxPerSecond() throws IOException {
+        Path inputPath = helper.recording()
+                .addEvent(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        SimpleEvent event = new SimpleEvent();
+                        event.message = "Event " + i;
+                        event.count = i;
+                        event.commit();
+                    }
+                    ComplexEvent complex = new ComplexEvent();
+                    complex.commit();
+                })
+                .build();
+        long seconds = startTimes(inputPath, "").stream().map(Instant::getEpochSecond).distinct().count();
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withSampling(new EventSampler().keepAtMostPerSecond("test.SimpleEvent", 5))
+                .process();
+
+        // The first events of every second are kept, other event types are not sampled.
+        // Events are read in the order in which the thread buffers were flushed, not in commit order
+        List<Integer> counts = simpleEventCounts(outputPath);
+        Assertions.assertTrue(counts.size() >= 5 && counts.size() <= 5 * seconds, "Kept " + counts);
+        Assertions.assertEquals(simpleEventCounts(inputPath).subList(0, 5), counts.subList(0, 5));
+        helper.verify(outputPath).hasEventOfType("test.ComplexEvent", 1);
+    }
+
+    @Test
+    public void samplingKeepsRandomSamplePerBucket() throws IOException {
+        Path inputPath = createLargeRecording(100);
+        long buckets = startTimes(inputPath, "").stream()
+                .map(time -> time.getEpochSecond() / 3600).distinct().count();
+        EventSampler sampler = new EventSampler()
+                .keepRandom("test.SimpleEvent", 7, Duration.ofHours(1))
+                .withSeed(42);
+
+        Path first = helper.process()
+                .from(inputPath)
+                .withSampling(sampler)
+                .outputTo("first")
+                .process();
+        Path second = helper.process()
+                .from(inputPath)
+                .withSampling(sampler)
+                .withPipeline(2)
+                .outputTo("second")
+                .process();
+
+        List<Integer> counts = simpleEventCounts(first);
+        Assertions.assertEquals(7 * buckets, counts.size());
+        // JFR does not always write the events of a thread in commit order, compare with the order of the file
+        Assertions.assertEquals(simpleEventCounts(inputPath).stream().filter(counts::contains).toList(), counts,
+                "Sampled events keep the input order");
+        Assertions.assertEquals(counts, simpleEventCounts(second), "The same seed gives the same sample");
+    }
+
+    // ========== Aggregation Tests ==========
+
+    @Name("test.AllocationSample")
+    @StackTrace
+    static class AllocationSampleEvent extends Event {
+        @DataAmount
+        long weight;
+
+        double ratio;
+    }
+
+    @Test
+    public void aggregationReplacesEventsWithSummaries() throws IOException {
+        Path inputPath = helper.recording()
+                .withEventClasses(AllocationSampleEvent.class)
+                .addEvent(() -> {
+                    for (int i = 0; i < 40; i++) {
+                        AllocationSampleEvent event = new AllocationSampleEvent();
+                        event.weight = i;
+                        event.ratio = 0.5;
+                        if (i % 4 == 0) {
+                            event.commit(); // 10 events with this stack trace
+                        } else {
+                            event.commit(); // 30 events with this stack trace
+                        }
+                    }
+                    new ComplexEvent().commit();
+                })
+                .build();
+        List<RecordedEvent> inputEvents = RecordingFile.readAllEvents(inputPath).stream()
+                .filter(e -> e.getEventType().getName().equals("test.AllocationSample"))
+                .toList();
+        long buckets = inputEvents.stream().map(e -> e.getStartTime().getEpochSecond() / 3600).distinct().count();
+        String summaryType = EventAggregator.summaryTypeName("test.AllocationSample");
+
+        for (int transformers : new int[]{0, 2}) {
+            Path outputPath = helper.process()
+                    .from(inputPath)
+                    .withAggregation(new EventAggregator(Duration.ofHours(1))
+                            .aggregate("test.AllocationSample", "weight", "ratio")
+                            .withTopStacks(1))
+                    .withPipeline(transformers)
+                    .outputTo("aggregated-" + transformers)
+                    .process();
+
+            helper.verify(outputPath)
+                    .hasEventOfType("test.AllocationSample", 0)
+                    .hasEventOfType("test.ComplexEvent", 1);
+            List<RecordedEvent> summaries = RecordingFile.readAllEvents(outputPath).stream()
+                    .filter(e -> e.getEventType().getName().equals(summaryType))
+                    .toList();
+            Assertions.assertEquals(40, summaries.stream().mapToLong(e -> e.getLong("count")).sum());
+            Assertions.assertEquals(780, summaries.stream().mapToLong(e -> e.getLong("weightSum")).sum());
+            Assertions.assertEquals(20.0, summaries.stream().mapToDouble(e -> e.getDouble("ratioSum")).sum());
+            if (buckets == 1) {
+                // The summaries span the start times of the events, in ticks of the input
+                long firstTicks = inputEvents.stream().mapToLong(e -> e.getLong("startTime")).min().orElseThrow();
+                long lastTicks = inputEvents.stream().mapToLong(e -> e.getLong("startTime")).max().orElseThrow();
+                Assertions.assertEquals(firstTicks, summaries.get(0).getLong("startTime"));
+                Assertions.assertEquals(lastTicks - firstTicks, summaries.get(0).getLong("duration"));
+                // The top stack trace and the other events
+                Assertions.assertEquals(2, summaries.size());
+                Assertions.assertEquals(30, summaries.get(0).getLong("count"));
+                Assertions.assertNotNull(summaries.get(0).getStackTrace());
+                Assertions.assertEquals(10, summaries.get(1).getLong("count"));
+                Assertions.assertNull(summaries.get(1).getStackTrace());
+            }
+        }
+    }
+
+    @Test
+    public void pipelinedAggregationWritesSummariesWhenBucketsClose() throws IOException {
+        Path inputPath = helper.recording()
+                .withEventClasses(AllocationSampleEvent.class)
+                .addEvent(() -> {
+                    for (int round = 0; round < 5; round++) {
+                        for (int i = 0; i < 20; i++) {
+                            AllocationSampleEvent event = new AllocationSampleEvent();
+                            event.weight = i;
+                            event.commit();
+                        }
+                        SimpleEvent marker = new SimpleEvent();
+                        marker.message = "Round " + round;
+                        marker.commit();
+                        try {
+                            Thread.sleep(50);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                })
+                .build();
+        String summaryType = EventAggregator.summaryTypeName("test.AllocationSample");
+        Function<Path, List<String>> summariesAndMarkers = recording -> {
+            try {
+                return RecordingFile.readAllEvents(recording).stream()
+                        .filter(e -> e.getEventType().getName().equals(summaryType)
+                                     || e.getEventType().getName().equals("test.SimpleEvent"))
+                        .map(e -> e.getEventType().getName().equals(summaryType)
+                                ? "Summary " + e.getLong("startTime") + " " + e.getLong("count")
+                                : e.getString("message"))
+                        .toList();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+
+        List<List<String>> outputs = new ArrayList<>();
+        for (int transformers : new int[]{0, 2}) {
+            outputs.add(summariesAndMarkers.apply(helper.process()
+                    .from(inputPath)
+                    .withAggregation(new EventAggregator(Duration.ofMillis(10))
+                            .aggregate("test.AllocationSample", "weight")
+                            .withTopStacks(0))
+                    .withPipeline(transformers)
+                    .outputTo("aggregated-buckets-" + transformers)
+                    .process()));
+        }
+
+        List<String> sequential = outputs.get(0);
+        Assertions.assertEquals(sequential, outputs.get(1));
+        Assertions.assertEquals(100, sequential.stream().filter(e -> e.startsWith("Summary"))
+                .mapToLong(e -> Long.parseLong(e.substring(e.lastIndexOf(' ') + 1))).sum());
+        // Summaries of closed buckets are written between the later events, not only at the end
+        Assertions.assertTrue(sequential.subList(0, sequential.indexOf("Round 4")).stream()
+                .anyMatch(e -> e.startsWith("Summary")));
+    }
+
+    @Test
+    public void aggregationRejectsNonNumericFields() throws IOException {
+        Path inputPath = createLargeRecording(10);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> helper.process()
+                .from(inputPath)
+                .withAggregation(new EventAggregator(Duration.ofSeconds(1))
+                        .aggregate("test.SimpleEvent", "message"))
+                .process());
+    }
+
+    // ========== Stack Trace Tests ==========
+
+    private static void commitAllocationSample(int depth, long weight) {
+        if (depth > 0) {
+            commitAllocationSample(depth - 1, weight);
+            return;
+        }
+        AllocationSampleEvent event = new AllocationSampleEvent();
+        event.weight = weight;
+        event.commit();
+    }
+
+    /**
+     * The frames of the stack traces of the allocation samples, and whether they are truncated
+     */
+    private static List<String> allocationStackTraces(Path recording) throws IOException {
+        return RecordingFile.readAllEvents(recording).stream()
+                .filter(e -> e.getEventType().getName().equals("test.AllocationSample"))
+                .map(e -> e.getStackTrace().isTruncated() + " " + e.getStackTrace().getFrames().stream()
+                        .map(frame -> frame.getMethod().getName() + ":" + frame.getLineNumber())
+                        .toList())
+                .toList();
+    }
+
+    @Test
+    public void stackTracesAreTruncatedToMaxDepth() throws IOException {
+        Path inputPath = helper.recording()
+                .withEventClasses(AllocationSampleEvent.class)
+                .addEvent(() -> {
+                    for (int i = 0; i < 10; i++) {
+                        commitAllocationSample(20, i);
+                    }
+                })
+                .build();
+        List<RecordedEvent> inputEvents = RecordingFile.readAllEvents(inputPath).stream()
+                .filter(e -> e.getEventType().getName().equals("test.AllocationSample"))
+                .toList();
+        Assertions.assertTrue(inputEvents.get(0).getStackTrace().getFrames().size() > 20);
+
+        for (int transformers : new int[]{0, 2}) {
+            Path outputPath = helper.process()
+                    .from(inputPath)
+                    .withMaxStackDepth(5)
+                    .withPooledValueCaching()
+                    .withPipeline(transformers)
+                    .outputTo("truncated-" + transformers)
+                    .process();
+
+            List<RecordedEvent> outputEvents = RecordingFile.readAllEvents(outputPath).stream()
+                    .filter(e -> e.getEventType().getName().equals("test.AllocationSample"))
+                    .toList();
+            Assertions.assertEquals(inputEvents.size(), outputEvents.size());
+            for (int i = 0; i < outputEvents.size(); i++) {
+                RecordedStackTrace stackTrace = outputEvents.get(i).getStackTrace();
+                Assertions.assertTrue(stackTrace.isTruncated());
+                Assertions.assertEquals(5, stackTrace.getFrames().size());
+                Assertions.assertEquals(
+                        inputEvents.get(i).getStackTrace().getFrames().get(0).getMethod().getName(),
+                        stackTrace.getFrames().get(0).getMethod().getName());
+            }
+        }
+    }
+
+    @Test
+    public void stackTraceInterningRequiresPureModifier() {
+        JFRProcessor processor = new JFRProcessor(new JFREventModifier() {
+        }, tempDir.resolve("unused.jfr"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> processor.withStackTraceInterning(true));
+        Assertions.assertSame(processor, processor.withStackTraceInterning(false));
+    }
+
+    @Test
+    public void stackTraceInterningPreservesStackTraces() throws IOException {
+        Path inputPath = helper.recording()
+                .withEventClasses(AllocationSampleEvent.class)
+                .addEvent(() -> {
+                    for (int i = 0; i < 30; i++) {
+                        commitAllocationSample(i % 3, i);
+                    }
+                })
+                .build();
+        List<String> expected = allocationStackTraces(inputPath);
+
+        Path sequential = helper.process()
+                .from(inputPath)
+                .withStackTraceInterning()
+                .outputTo("interned")
+                .process();
+        Path pipelined = helper.process()
+                .from(inputPath)
+                .withStackTraceInterning()
+                .withPooledValueCaching()
+                .withPipeline(2)
+                .outputTo("interned-pipelined")
+                .process();
+        Path unprocessed = helper.process()
+                .from(inputPath)
+                .withModifier(new JFREventModifier() {
+                    @Override
+                    public Set<String> interestedEventTypes() {
+                        return Set.of();
+                    }
+
+                    @Override
+                    public boolean isPure() {
+                        return true;
+                    }
+                })
+                .withStackTraceInterning()
+                .outputTo("interned-copied")
+                .process();
+
+        Assertions.assertEquals(expected, allocationStackTraces(sequential));
+        Assertions.assertEquals(expected, allocationStackTraces(pipelined));
+        Assertions.assertEquals(expected, allocationStackTraces(unprocessed));
+    }
+
+    // ========== Rolling Output Tests ==========
+
+    @Test
+    public void rollingOutputSplitsIntoChunks() throws IOException {
+        Path inputPath = helper.recording()
+                .withEventClasses(AllocationSampleEvent.class)
+                .addEvent(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        commitAllocationSample(i % 3, i);
+                        SimpleEvent event = new SimpleEvent();
+                        event.message = "Event " + i;
+                        event.count = i;
+                        event.commit();
+                    }
+                })
+                .build();
+        List<String> stackTraces = allocationStackTraces(inputPath);
+        List<Integer> counts = simpleEventCounts(inputPath);
+
+        for (int transformers : new int[]{0, 2}) {
+            Path outputPath = helper.process()
+                    .from(inputPath)
+                    .withMaxChunkEvents(30)
+                    .withPooledValueCaching()
+                    .withStackTraceInterning()
+                    .withPipeline(transformers)
+                    .outputTo("rolling-" + transformers)
+                    .process();
+
+            // Every chunk after the first is preceded by an empty chunk
+            try (FileChannel channel = FileChannel.open(outputPath)) {
+                Assertions.assertEquals(2 * 7 - 1, ChunkHeader.readAll(channel).size());
+            }
+            Assertions.assertEquals(stackTraces, allocationStackTraces(outputPath));
+            Assertions.assertEquals(counts, simpleEventCounts(outputPath));
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new JFRProcessor(new JFREventModifier() {
+        }, inputPath).withMaxChunkEvents(-1));
+    }
+
+    // ========== Routed Output Tests ==========
+
+    @Test
+    public void routedOutputSplitsByEventTypeAndSize() throws IOException {
+        Path inputPath = helper.recording()
+                .addEvent(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        SimpleEvent simple = new SimpleEvent();
+                        simple.message = "Event " + i;
+                        simple.count = i;
+                        simple.commit();
+                        if (i % 10 == 0) {
+                            ComplexEvent complex = new ComplexEvent();
+                            complex.intField = i;
+                            complex.commit();
+                        }
+                    }
+                })
+                .build();
+        Path outputDirectory = Files.createDirectory(tempDir.resolve("routed"));
+        List<Path> finished = new ArrayList<>();
+
+        List<Path> files = new JFRProcessor(new JFREventModifier() {
+            @Override
+            public boolean shouldRemoveEventType(EventType eventType) {
+                return !eventType.getName().startsWith("test.");
+            }
+        }, inputPath).process(new OutputRouter(outputDirectory)
+                .withKey(type -> type.getName().equals("test.SimpleEvent") ? "simple" : "other")
+                .withMaxSize(3000)
+                .withFileListener(finished::add));
+
+        Assertions.assertEquals(files, finished);
+        List<Path> simpleFiles = files.stream().filter(f -> f.getFileName().toString().contains("-simple-")).toList();
+        List<Path> otherFiles = files.stream().filter(f -> f.getFileName().toString().contains("-other-")).toList();
+        Assertions.assertTrue(simpleFiles.size() > 1, "Files: " + files);
+        Assertions.assertEquals(files.size(), simpleFiles.size() + otherFiles.size());
+
+        // The events of a key keep their order across its files, every file only registers its own types
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 0; i < simpleFiles.size(); i++) {
+            Path file = outputDirectory.resolve("recording-simple-" + i + ".jfr");
+            counts.addAll(simpleEventCounts(file));
+            try (RecordingFile recording = new RecordingFile(file)) {
+                Assertions.assertTrue(recording.readEventTypes().stream().noneMatch(t -> t.getName().equals("test.ComplexEvent")));
+            }
+        }
+        Assertions.assertEquals(simpleEventCounts(inputPath), counts);
+        long complexEvents = 0;
+        for (Path file : otherFiles) {
+            helper.verify(file).hasNoEventOfType("test.SimpleEvent");
+            complexEvents += RecordingFile.readAllEvents(file).size();
+        }
+        Assertions.assertEquals(10, complexEvents);
+    }
+
+    // ========== Compression Tests ==========
+
+    @Test
+    public void compressedInputsAreProcessed() throws IOException {
+        Path inputPath = createMultiChunkRecording();
+        List<String> messages = simpleEventMessages(inputPath);
+
+        // Small blocks, so that the gzip file consists of many members
+        Path gzipPath = tempDir.resolve("input.jfr.gz");
+        try (var out = new ParallelGzipOutputStream(Files.newOutputStream(gzipPath), 2, 4096)) {
+            Files.copy(inputPath, out);
+        }
+        Path zipPath = tempDir.resolve("input.zip");
+        try (var zip = new ZipOutputStream(Files.newOutputStream(zipPath))) {
+            zip.putNextEntry(new ZipEntry("README.txt"));
+            zip.write("not a recording".getBytes());
+            zip.putNextEntry(new ZipEntry("recordings/input.jfr"));
+            Files.copy(inputPath, zip);
+        }
+
+        for (Path compressed : List.of(gzipPath, zipPath)) {
+            Path processed = tempDir.resolve("processed.jfr");
+            try (var out = Files.newOutputStream(processed)) {
+                new JFRProcessor(new JFREventModifier() {
+                }, compressed).process(out).close();
+            }
+            Assertions.assertEquals(messages, simpleEventMessages(processed), compressed.toString());
+
+            try (var out = Files.newOutputStream(processed)) {
+                new JFRProcessor(new JFREventModifier() {
+                }, compressed).processParallel(out, 2);
+            }
+            Assertions.assertEquals(messages, simpleEventMessages(processed), compressed.toString());
+
+            try (var in = Files.newInputStream(compressed);
+                 var out = Files.newOutputStream(processed)) {
+                new JFRProcessor(new JFREventModifier() {
+                }, in).processParallel(out, 1);
+            }
+            Assertions.assertEquals(messages, simpleEventMessages(processed), compressed.toString());
+        }
+    }
+
+    @Test
+    public void gzipOutputIsDecompressedToTheRecording() throws IOException {
+        Path inputPath = createMultiChunkRecording();
+
+        Path gzipPath = tempDir.resolve("output.jfr.gz");
+        try (var out = new ParallelGzipOutputStream(Files.newOutputStream(gzipPath), 4, 1024)) {
+            new JFRProcessor(new JFREventModifier() {
+            }, inputPath).process(out).close();
+        }
+        Path outputPath = tempDir.resolve("output.jfr");
+        try (var in = new GZIPInputStream(Files.newInputStream(gzipPath))) {
+            Files.copy(in, outputPath);
+        }
+
+        Assertions.assertEquals(simpleEventMessages(inputPath), simpleEventMessages(outputPath));
+    }
+
+    // ========== Native Writer Tests ==========
+
+    private Path processNative(JFRProcessor processor, String name) throws IOException {
+        Path outputPath = tempDir.resolve(name + ".jfr");
+        try (var output = Files.newOutputStream(outputPath)) {
+            processor.processNative(output);
+        }
+        return outputPath;
+    }
+
+    /**
+     * All events with their values, without the ids of the pooled values, which differ between writers
+     */
+    private static List<String> eventValues(Path recording) throws IOException {
+        return RecordingFile.readAllEvents(recording).stream()
+                .map(e -> e.getStartTime() + " " + e.toString().replaceAll("id = \\d+", "id = ?"))
+                .toList();
+    }
+
+    @Test
+    public void nativeWriterPreservesAllEventValues() throws IOException {
+        Path inputPath = createMultiChunkRecording();
+
+        Path outputPath = processNative(new JFRProcessor(new JFREventModifier() {
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+        }, inputPath), "native");
+
+        Assertions.assertEquals(eventValues(inputPath), eventValues(outputPath));
+    }
+
+    @Test
+    public void nativeWriterAppliesModifierAndSplitsIntoChunks() throws IOException {
+        Path inputPath = helper.recording()
+                .withEventClasses(AllocationSampleEvent.class)
+                .addEvent(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        commitAllocationSample(i % 3 + 10, i);
+                        SimpleEvent event = new SimpleEvent();
+                        event.message = "Event " + i;
+                        event.count = i;
+                        event.commit();
+                    }
+                })
+                .build();
+        JFREventModifier modifier = new JFREventModifier() {
+            @Override
+            public String process(String fieldName, String value) {
+                return "message".equals(fieldName) ? value.toUpperCase() : value;
+            }
+
+            @Override
+            public boolean shouldRemoveEvent(RecordedEvent event) {
+                return "test.SimpleEvent".equals(event.getEventType().getName())
+                       && event.getInt("count") % 2 == 0;
+            }
+
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+        };
+
+        Path expected = helper.process()
+                .from(inputPath)
+                .withModifier(modifier)
+                .withMaxStackDepth(5)
+                .outputTo("native-expected")
+                .process();
+        Path outputPath = processNative(new JFRProcessor(modifier, inputPath)
+                .withMaxStackDepth(5)
+                .withMaxChunkEvents(30), "native-rolling");
+
+        try (FileChannel channel = FileChannel.open(outputPath)) {
+            Assertions.assertTrue(ChunkHeader.readAll(channel).size() > 1);
+        }
+        Assertions.assertEquals(50, simpleEventCounts(outputPath).size());
+        Assertions.assertEquals(simpleEventMessages(expected), simpleEventMessages(outputPath));
+        Assertions.assertEquals(allocationStackTraces(expected), allocationStackTraces(outputPath));
+
+        // The JMC writer aggregates instead, the output stream stays open
+        String summaryType = EventAggregator.summaryTypeName("test.AllocationSample");
+        ByteArrayOutputStream output = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                Assertions.fail("The output stream is closed");
+            }
+        };
+        new JFRProcessor(modifier, inputPath)
+                .withAggregation(new EventAggregator(Duration.ofHours(1)).aggregate("test.AllocationSample", "weight"))
+                .processNative(output);
+        Path aggregatedPath = Files.write(tempDir.resolve("native-aggregated.jfr"), output.toByteArray());
+        helper.verify(aggregatedPath).hasEventOfType("test.AllocationSample", 0);
+        Assertions.assertEquals(100, RecordingFile.readAllEvents(aggregatedPath).stream()
+                .filter(e -> e.getEventType().getName().equals(summaryType))
+                .mapToLong(e -> e.getLong("count"))
+                .sum());
+        Assertions.assertEquals(simpleEventMessages(expected), simpleEventMessages(aggregatedPath));
+    }
+
+    @Test
+    public void nativeWriterTransformsPooledValuesForEveryEventWithImpureModifier() throws IOException {
+        Path inputPath = helper.recording()
+                .addEvent(() -> {
+                    for (int i = 0; i < 10; i++) {
+                        SimpleEvent event = new SimpleEvent();
+                        event.message = "Event " + i;
+                        event.commit();
+                    }
+                })
+                .build();
+        AtomicInteger calls = new AtomicInteger();
+        // Numbers the thread of every event, the events share the thread constant of the input
+        JFREventModifier modifier = new JFREventModifier() {
+            @Override
+            public String process(String fieldName, String value) {
+                return "javaName".equals(fieldName) ? value + " " + calls.getAndIncrement() : value;
+            }
+        };
+
+        Path outputPath = processNative(new JFRProcessor(modifier, inputPath), "native-impure");
+
+        Assertions.assertEquals(simpleEventMessages(inputPath), simpleEventMessages(outputPath));
+        List<String> threads = RecordingFile.readAllEvents(outputPath).stream()
+                .filter(e -> e.getEventType().getName().equals("test.SimpleEvent"))
+                .map(e -> e.getThread().getJavaName())
+                .toList();
+        Assertions.assertEquals(10, threads.size());
+        Assertions.assertEquals(10, threads.stream().distinct().count());
+    }
+
+    @Test
+    public void nativeWriterKeepsTheClockOfEveryChunk() throws IOException {
+        Path recording = createMultiChunkRecording();
+        byte[] bytes = Files.readAllBytes(recording);
+        List<ChunkHeader> chunks;
+        try (FileChannel channel = FileChannel.open(recording)) {
+            chunks = ChunkHeader.readAll(channel);
+        }
+        // Let the second chunk count ticks with a clock that started 1000 seconds earlier, like another JVM
+        ChunkHeader second = chunks.get(1);
+        ByteBuffer.wrap(bytes).putLong((int) second.offset() + 48, second.startTicks() + second.ticksPerSecond() * 1000);
+        Path inputPath = concatenateChunks("other-clock", bytes);
+
+        Path outputPath = processNative(new JFRProcessor(new JFREventModifier() {
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+        }, inputPath), "native-other-clock");
+
+        Assertions.assertEquals(simpleEventMessages(recording), simpleEventMessages(outputPath));
+        // The JDK parser converts the ticks of the input with the clock of its first chunk,
+        // the output has its own chunks for the events of the second chunk
+        for (int chunk = 0; chunk < 3; chunk++) {
+            List<Instant> expected = startTimes(recording, "Chunk " + chunk);
+            List<Instant> actual = startTimes(outputPath, "Chunk " + chunk);
+            long shiftNanos = chunk == 1 ? Duration.ofSeconds(1000).toNanos() : 0;
+            for (int i = 0; i < expected.size(); i++) {
+                Assertions.assertEquals(-shiftNanos, Duration.between(expected.get(i), actual.get(i)).toNanos(), 1000);
+            }
+        }
+    }
+
+    @Test
+    public void chunksOfOneRecordingHoursApartHaveTheSameClock() {
+        long ticksPerSecond = 1_000_000_000L;
+        long hours = Duration.ofHours(3).toNanos();
+        ChunkHeader first = new ChunkHeader(0, 0, 0, 0, 1_000_000_000_000L, 0, 5_000, ticksPerSecond, 0);
+        // Two seconds of drift between the tick counter and the wall clock within three hours
+        ChunkHeader drifted = new ChunkHeader(0, 0, 0, 0, first.startNanos() + hours + 2_000_000_000L, 0,
+                first.startTicks() + hours, ticksPerSecond, 0);
+        ChunkHeader otherJvm = new ChunkHeader(0, 0, 0, 0, first.startNanos() + 1_000_000L, 0,
+                first.startTicks() + 1_000_000L + Duration.ofSeconds(1000).toNanos(), ticksPerSecond, 0);
+        ChunkHeader otherFrequency = new ChunkHeader(0, 0, 0, 0, first.startNanos(), 0, first.startTicks(),
+                ticksPerSecond / 1000, 0);
+
+        Assertions.assertTrue(first.hasSameClock(drifted));
+        Assertions.assertTrue(drifted.hasSameClock(first));
+        Assertions.assertFalse(first.hasSameClock(otherJvm));
+        Assertions.assertFalse(first.hasSameClock(otherFrequency));
+    }
+
+    @Test
+    public void nativeWriterKeepsOneClockForChunksHoursApart() throws IOException {
+        Path recording = createMultiChunkRecording();
+        byte[] bytes = Files.readAllBytes(recording);
+        List<ChunkHeader> chunks;
+        try (FileChannel channel = FileChannel.open(recording)) {
+            chunks = ChunkHeader.readAll(channel);
+        }
+        // Let the second chunk start three hours later, with two seconds of drift between ticks and wall clock,
+        // its events keep their ticks
+        ChunkHeader second = chunks.get(1);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putLong((int) second.offset() + 32, second.startNanos() + Duration.ofHours(3).plusSeconds(2).toNanos());
+        buffer.putLong((int) second.offset() + 48, second.startTicks() + second.ticksPerSecond() * 3 * 3600);
+        Path inputPath = concatenateChunks("hours-apart", bytes);
+
+        Path outputPath = processNative(new JFRProcessor(new JFREventModifier() {
+            @Override
+            public boolean isPure() {
+                return true;
+            }
+        }, inputPath), "native-hours-apart");
+
+        // Like the JDK parser, the native writer converts the ticks of all chunks with the clock of the first one
+        for (int chunk = 0; chunk < 3; chunk++) {
+            List<Instant> expected = startTimes(inputPath, "Chunk " + chunk);
+            List<Instant> actual = startTimes(outputPath, "Chunk " + chunk);
+            Assertions.assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                Assertions.assertEquals(0, Duration.between(expected.get(i), actual.get(i)).toNanos(), 1000);
+            }
+        }
+    }
+
+    // ========== Pipelined Processing Tests ==========
+
+    private Path createLargeRecording(int events) throws IOException {
+        return helper.recording()
+                .withName("large")
+                .addEvent(() -> {
+                    for (int i = 0; i < events; i++) {
+                        SimpleEvent event = new SimpleEvent();
+                        event.message = "Event " + i;
+                        event.count = i;
+                        event.flag = i % 2 == 0;
+                        event.commit();
+                    }
+                })
+                .build();
+    }
+
+    @Test
+    public void pipelinedProcessingPreservesEventOrder() throws IOException {
+        // More events than fit into one batch
+        Path inputPath = createLargeRecording(1000);
+
+        Path outputPath = helper.process()
+                .from(inputPath)
+                .withPipeline(3)
+                .withModifier(new JFREventModifier() {
+                    @Override
+                    public String process(String fieldName, String value) {
+                        return "message".equals(fieldName) ? value.toUpperCase() : value;
+                    }
+                })
+                .process();
+
+        Assertions.assertEquals(
+                simpleEventMessages(inputPath).stream().map(String::toUpperCase).toList(),
+                simpleEventMessages(outputPath));
+        Assertions.assertEquals(RecordingFile.readAllEvents(inputPath).size(),
+                RecordingFile.readAllEvents(outputPath).size());
+    }
+
+    @Test
+    public void pipelinedProcessingRemovesEventsOnVirtualThreads() throws IOException {
+        Path inputPath = createLargeRecording(600);
+
+        helper.verify(helper.process()
+                .from(inputPath)
+                .withPipeline(2)
+                .withVirtualThreads()
+                .withModifier(new JFREventModifier() {
+                    @Override
+                    public boolean shouldRemoveEvent(RecordedEvent event) {
+                        return "test.SimpleEvent".equals(event.getEventType().getName())
+                               && event.getInt("count") % 3 == 0;
+                    }
+                })
+                .process())
+                .hasEventOfType("test.SimpleEvent", 400)
+                .verifyAllEvents("test.SimpleEvent", e -> e.hasString("message", "Event " + e.getEvent().getInt("count")));
+    }
+}
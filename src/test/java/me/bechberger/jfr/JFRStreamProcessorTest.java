@@ -0,0 +1,133 @@
+package me.bechberger.jfr;
+
+import jdk.jfr.consumer.EventStream;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import jdk.jfr.consumer.RecordingStream;
+import me.bechberger.jfr.util.JFRTestHelper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static me.bechberger.jfr.util.JFRTestEvents.*;
+
+public class JFRStreamProcessorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private JFRTestHelper helper;
+
+    @BeforeEach
+    void setUp() {
+        helper = new JFRTestHelper(tempDir);
+    }
+
+    /**
+     * Keeps only simple events and upper-cases their messages
+     */
+    private static class SimpleEventModifier implements JFREventModifier {
+        @Override
+        public boolean shouldRemoveEvent(RecordedEvent event) {
+            return !event.getEventType().getName().equals("test.SimpleEvent");
+        }
+
+        @Override
+        public String process(String fieldName, String value) {
+            return "message".equals(fieldName) ? value.toUpperCase() : value;
+        }
+    }
+
+    @Test
+    public void streamIsWrittenToRollingFiles() throws IOException {
+        Path inputPath = helper.recording()
+                .addSimpleEvent("First", 1, true)
+                .addSimpleEvent("Second", 2, false)
+                .addSimpleEvent("Third", 3, true)
+                .build();
+        Path outputDirectory = Files.createDirectory(tempDir.resolve("output"));
+        List<Path> files = new ArrayList<>();
+
+        try (JFRStreamProcessor processor = new JFRStreamProcessor(new SimpleEventModifier(),
+                EventStream.openFile(inputPath), outputDirectory)
+                .withMaxSize(1)
+                .withFileListener(files::add)) {
+            processor.start();
+        }
+
+        // Every event fills a file, removed events do not count
+        Assertions.assertEquals(List.of(outputDirectory.resolve("recording-0.jfr"),
+                outputDirectory.resolve("recording-1.jfr"),
+                outputDirectory.resolve("recording-2.jfr")), files);
+        List<String> messages = new ArrayList<>();
+        for (Path file : files) {
+            messages.addAll(simpleEventMessages(file));
+        }
+        Assertions.assertEquals(List.of("FIRST", "SECOND", "THIRD"), messages);
+        try (var entries = Files.list(outputDirectory)) {
+            Assertions.assertEquals(3, entries.count(), "No temporary files are left");
+        }
+    }
+
+    @Test
+    public void liveRecordingStreamIsProcessed() throws Exception {
+        Path outputDirectory = Files.createDirectory(tempDir.resolve("output"));
+        int eventCount = 20;
+        CountDownLatch written = new CountDownLatch(eventCount);
+        JFREventModifier modifier = new SimpleEventModifier() {
+            @Override
+            public boolean shouldRemoveEvent(RecordedEvent event) {
+                boolean remove = super.shouldRemoveEvent(event);
+                if (!remove) {
+                    written.countDown();
+                }
+                return remove;
+            }
+        };
+
+        RecordingStream stream = new RecordingStream();
+        stream.enable(SimpleEvent.class).withoutThreshold();
+        List<Path> files = new ArrayList<>();
+        try (JFRStreamProcessor processor = new JFRStreamProcessor(modifier, stream, outputDirectory)
+                .withMaxDuration(Duration.ofMillis(500))
+                .withFilePrefix("live")
+                .withFileListener(files::add)) {
+            processor.startAsync();
+            for (int i = 0; i < eventCount; i++) {
+                SimpleEvent event = new SimpleEvent();
+                event.message = "Live " + i;
+                event.count = i;
+                event.commit();
+            }
+            Assertions.assertTrue(written.await(30, TimeUnit.SECONDS), "All events arrive");
+        }
+
+        List<String> messages = new ArrayList<>();
+        for (Path file : files) {
+            Assertions.assertTrue(file.getFileName().toString().startsWith("live-"));
+            messages.addAll(simpleEventMessages(file));
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < eventCount; i++) {
+            expected.add("LIVE " + i);
+        }
+        Assertions.assertEquals(expected, messages);
+    }
+
+    private static List<String> simpleEventMessages(Path recording) throws IOException {
+        return RecordingFile.readAllEvents(recording).stream()
+                .filter(e -> e.getEventType().getName().equals("test.SimpleEvent"))
+                .map(e -> e.getString("message"))
+                .toList();
+    }
+}
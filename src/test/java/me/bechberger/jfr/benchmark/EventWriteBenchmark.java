@@ -0,0 +1,208 @@
+package me.bechberger.jfr.benchmark;
+
+import jdk.jfr.EventType;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import me.bechberger.jfr.JFREventModifier;
+import me.bechberger.jfr.JFRProcessor;
+import org.openjdk.jmc.flightrecorder.writer.api.Recording;
+import org.openjdk.jmc.flightrecorder.writer.api.Recordings;
+import org.openjdk.jmc.flightrecorder.writer.api.Type;
+import org.openjdk.jmc.flightrecorder.writer.api.Types;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Per-event cost of writing a recording that is dominated by {@code jdk.ExecutionSample} events.
+ * <p>
+ * The lookup benchmarks compare the per-event type lookup by name in the JMC type registry,
+ * which was done twice per event before, with the identity-keyed lookup that {@link JFRProcessor} uses now.
+ * The processing benchmarks measure the whole pipeline, divide by the printed event count to get the per-event cost.
+ * The benchmarks with an expensive modifier compare the sequential mode with the pipelined mode.
+ * <p>
+ * Run with
+ * <pre>
+ * mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-cp %classpath me.bechberger.jfr.benchmark.EventWriteBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class EventWriteBenchmark {
+
+    private static final int MIN_EVENTS = 20_000;
+
+    private Path recording;
+    private RecordedEvent[] events;
+    private Recording lookupRecording;
+    private Types types;
+    private final Map<EventType, Type> typesByEventType = new IdentityHashMap<>();
+    private int index = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        recording = createRecording();
+        List<RecordedEvent> recordedEvents = RecordingFile.readAllEvents(recording);
+        events = recordedEvents.toArray(new RecordedEvent[0]);
+        System.out.println("\nRecording contains " + events.length + " events");
+
+        lookupRecording = Recordings.newRecording(OutputStream.nullOutputStream());
+        types = lookupRecording.getTypes();
+        for (RecordedEvent event : events) {
+            EventType eventType = event.getEventType();
+            if (!typesByEventType.containsKey(eventType)) {
+                Type type = types.getType(eventType.getName(), false);
+                if (type == null) {
+                    type = lookupRecording.registerType(eventType.getName(), "jdk.jfr.Event", builder -> {
+                    });
+                }
+                typesByEventType.put(eventType, type);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        lookupRecording.close();
+        Files.deleteIfExists(recording);
+    }
+
+    private RecordedEvent nextEvent() {
+        RecordedEvent event = events[index];
+        index = index + 1 == events.length ? 0 : index + 1;
+        return event;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Type nameKeyedTypeLookup() {
+        return types.getType(nextEvent().getEventType().getName(), false);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Type identityKeyedTypeLookup() {
+        return typesByEventType.get(nextEvent().getEventType());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void processRecording() throws IOException {
+        new JFRProcessor(new JFREventModifier() {
+        }, recording).process(OutputStream.nullOutputStream()).close();
+    }
+
+    /**
+     * Modifier with expensive string work, like redaction with regular expressions
+     */
+    private static final JFREventModifier EXPENSIVE_MODIFIER = new JFREventModifier() {
+        private final Pattern digits = Pattern.compile("[0-9]+");
+
+        @Override
+        public String process(String fieldName, String value) {
+            String result = value;
+            for (int i = 0; i < 10; i++) {
+                result = digits.matcher(result).replaceAll("0");
+            }
+            return result;
+        }
+    };
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void processRecordingWithExpensiveModifier() throws IOException {
+        new JFRProcessor(EXPENSIVE_MODIFIER, recording).process(OutputStream.nullOutputStream()).close();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void processRecordingPipelinedWithExpensiveModifier() throws IOException {
+        new JFRProcessor(EXPENSIVE_MODIFIER, recording).processPipelined(OutputStream.nullOutputStream(), 4).close();
+    }
+
+    /**
+     * Create a recording with at least {@link #MIN_EVENTS} execution samples by sampling a few busy threads
+     * and concatenating the samples until the recording is large enough
+     */
+    private static Path createRecording() throws Exception {
+        Path samples = Files.createTempFile("execution-samples", ".jfr");
+        try {
+            recordExecutionSamples(samples, Duration.ofSeconds(2));
+            long sampleCount = RecordingFile.readAllEvents(samples).size();
+            if (sampleCount == 0) {
+                throw new IllegalStateException("No execution samples recorded");
+            }
+            List<RecordingFile> copies = new ArrayList<>();
+            for (long count = 0; count < MIN_EVENTS; count += sampleCount) {
+                copies.add(new RecordingFile(samples));
+            }
+            Path path = Files.createTempFile("execution-sample-benchmark", ".jfr");
+            try (OutputStream out = Files.newOutputStream(path)) {
+                new JFRProcessor(new JFREventModifier() {
+                }, samples).processRecordingFilesWithoutAnyProcessing(copies, out).close();
+            } finally {
+                for (RecordingFile copy : copies) {
+                    copy.close();
+                }
+            }
+            return path;
+        } finally {
+            Files.deleteIfExists(samples);
+        }
+    }
+
+    private static void recordExecutionSamples(Path path, Duration duration) throws Exception {
+        try (jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+            recording.enable("jdk.ExecutionSample").withPeriod(Duration.ofMillis(1)).withStackTrace();
+            recording.start();
+            long end = System.nanoTime() + duration.toNanos();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    long result = 0;
+                    while (System.nanoTime() < end) {
+                        result += busyWork(result);
+                    }
+                    if (result == 42) {
+                        System.out.println(result);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            recording.stop();
+            recording.dump(path);
+        }
+    }
+
+    private static long busyWork(long seed) {
+        long value = seed;
+        for (int i = 0; i < 10_000; i++) {
+            value = value * 31 + i;
+        }
+        return value;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(EventWriteBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -7,6 +7,8 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.function.Executable;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
@@ -62,6 +64,20 @@ public class JFRTestHelper {
                 .build();
     }
 
+    /**
+     * Concatenate recordings into a single multi-chunk recording.
+     * Every recording contributes its chunks, which keeps the result a valid JFR file.
+     */
+    public Path concatenate(String name, Path... recordings) throws IOException {
+        Path result = tempDir.resolve(name + ".jfr");
+        try (OutputStream out = Files.newOutputStream(result)) {
+            for (Path recording : recordings) {
+                Files.copy(recording, out);
+            }
+        }
+        return result;
+    }
+
     /**
      * Create a verifier for an existing recording.
      */
@@ -1,12 +1,17 @@
 package me.bechberger.jfr.util;
 
+import me.bechberger.jfr.ConstantPoolPolicy;
+import me.bechberger.jfr.EventAggregator;
+import me.bechberger.jfr.EventSampler;
 import me.bechberger.jfr.JFREventModifier;
 import me.bechberger.jfr.JFRProcessor;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
 
 /**
  * Helper for processing JFR recordings with a fluent API.
@@ -15,8 +20,27 @@ import java.nio.file.Path;
 public class JFRTestProcessor {
     private final Path tempDir;
     private Path inputPath;
-    private JFREventModifier modifier = new JFREventModifier() {}; // No-op modifier by default
+    private JFREventModifier modifier = new JFREventModifier() { // No-op modifier by default
+        @Override
+        public boolean isPure() {
+            return true;
+        }
+    };
     private String outputName = "output";
+    private int parallelism = 0; // Sequential processing by default
+    private boolean chunkCopying = false;
+    private boolean streamInput = false;
+    private int transformers = 0; // No pipeline by default
+    private boolean virtualThreads = false;
+    private boolean pooledValueCaching = false;
+    private int maxStackDepth = 0;
+    private boolean stackTraceInterning = false;
+    private long maxChunkEvents = 0;
+    private ConstantPoolPolicy constantPoolPolicy = ConstantPoolPolicy.INPUT;
+    private Instant windowStart;
+    private Instant windowEnd;
+    private EventSampler sampler;
+    private EventAggregator aggregator;
 
     public JFRTestProcessor(Path tempDir) {
         this.tempDir = tempDir;
@@ -43,6 +67,111 @@ public class JFRTestProcessor {
         return this;
     }
 
+    /**
+     * Process the recording chunk-wise with the given number of threads.
+     */
+    public JFRTestProcessor withParallelism(int parallelism) {
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Process the recording in a pipeline with the given number of transformer threads.
+     */
+    public JFRTestProcessor withPipeline(int transformers) {
+        this.transformers = transformers;
+        return this;
+    }
+
+    /**
+     * Run worker threads on virtual threads.
+     */
+    public JFRTestProcessor withVirtualThreads() {
+        this.virtualThreads = true;
+        return this;
+    }
+
+    /**
+     * Transform every constant pool entry of the input only once.
+     */
+    public JFRTestProcessor withPooledValueCaching() {
+        this.pooledValueCaching = true;
+        return this;
+    }
+
+    /**
+     * Truncate stack traces to the given number of frames.
+     */
+    public JFRTestProcessor withMaxStackDepth(int maxStackDepth) {
+        this.maxStackDepth = maxStackDepth;
+        return this;
+    }
+
+    /**
+     * Write every stack trace of the input only once.
+     */
+    public JFRTestProcessor withStackTraceInterning() {
+        this.stackTraceInterning = true;
+        return this;
+    }
+
+    /**
+     * Split the output into chunks of at most the given number of events.
+     */
+    public JFRTestProcessor withMaxChunkEvents(long maxChunkEvents) {
+        this.maxChunkEvents = maxChunkEvents;
+        return this;
+    }
+
+    /**
+     * Copy chunks that need no changes when processing chunk-wise.
+     */
+    public JFRTestProcessor withChunkCopying() {
+        this.chunkCopying = true;
+        return this;
+    }
+
+    /**
+     * Read the input as a stream instead of a file.
+     */
+    public JFRTestProcessor withStreamInput() {
+        this.streamInput = true;
+        return this;
+    }
+
+    /**
+     * Use a custom policy for storing complex types in the constant pool.
+     */
+    public JFRTestProcessor withConstantPoolPolicy(ConstantPoolPolicy constantPoolPolicy) {
+        this.constantPoolPolicy = constantPoolPolicy;
+        return this;
+    }
+
+    /**
+     * Only keep the events that start in the given time window.
+     */
+    public JFRTestProcessor withTimeWindow(Instant start, Instant end) {
+        this.windowStart = start;
+        this.windowEnd = end;
+        return this;
+    }
+
+    /**
+     * Downsample events with the given sampler.
+     */
+    public JFRTestProcessor withSampling(EventSampler sampler) {
+        this.sampler = sampler;
+        return this;
+    }
+
+    /**
+     * Replace events with summary events of the given aggregator.
+     */
+    public JFRTestProcessor withAggregation(EventAggregator aggregator) {
+        this.aggregator = aggregator;
+        return this;
+    }
+
     public JFRTestProcessor outputTo(String name) {
         this.outputName = name;
         return this;
@@ -50,16 +179,40 @@ public class JFRTestProcessor {
 
     public Path process() throws IOException {
         Path outputPath = tempDir.resolve(outputName + ".jfr");
-        try (ByteArrayOutputStream output = new ByteArrayOutputStream()) {
-            JFRProcessor processor = new JFRProcessor(modifier, inputPath);
-            var recording = processor.process(output);
-            recording.close(); // Must close to flush data to output stream
+        try (ByteArrayOutputStream output = new ByteArrayOutputStream();
+             InputStream input = streamInput ? Files.newInputStream(inputPath) : null) {
+            JFRProcessor processor = configure(newProcessor(input)
+                    .withChunkCopying(chunkCopying)
+                    .withConstantPoolPolicy(constantPoolPolicy)
+                    .withVirtualThreads(virtualThreads)
+                    .withPooledValueCaching(pooledValueCaching));
+            if (parallelism > 0) {
+                processor.processParallel(output, parallelism);
+            } else if (transformers > 0) {
+                processor.processPipelined(output, transformers).close();
+            } else {
+                var recording = processor.process(output);
+                recording.close(); // Must close to flush data to output stream
+            }
 
             Files.write(outputPath, output.toByteArray());
         }
         return outputPath;
     }
 
+    private JFRProcessor newProcessor(InputStream input) {
+        return input != null ? new JFRProcessor(modifier, input) : new JFRProcessor(modifier, inputPath);
+    }
+
+    private JFRProcessor configure(JFRProcessor processor) {
+        processor.withSampling(sampler)
+                .withAggregation(aggregator)
+                .withMaxStackDepth(maxStackDepth)
+                .withStackTraceInterning(stackTraceInterning)
+                .withMaxChunkEvents(maxChunkEvents);
+        return windowStart != null ? processor.withTimeWindow(windowStart, windowEnd) : processor;
+    }
+
     public JFREventVerifier processAndVerify() throws IOException {
         return new JFREventVerifier(process());
     }